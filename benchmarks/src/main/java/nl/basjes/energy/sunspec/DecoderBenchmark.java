@@ -0,0 +1,173 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the decode kernels of the ModelParser with the byte by byte loops they replaced
+ * and with a ByteBuffer view of the same data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+
+    // The registers of a typical model
+    private static final int REGISTERS = 128;
+
+    private final ModelParser parser = new ParseSunSpec.Model_1();
+    private byte[]            block;
+    private ByteBuffer        buffer;
+
+    @Setup
+    public void setup() {
+        block = new byte[REGISTERS * 2];
+        new Random(42).nextBytes(block);
+        buffer = ByteBuffer.wrap(block);
+    }
+
+    // The 32 bit kernel as it was before (including the sign extension).
+    private static long legacyGet32bits(byte[] block, int registerAddress) {
+        int byteNo = registerAddress * 2;
+        long value = 0;
+        value |= (block[byteNo] & 255) << 24;
+        value |= (block[byteNo + 1] & 255) << 16;
+        value |= (block[byteNo + 2] & 255) << 8;
+        value |= (block[byteNo + 3] & 255);
+        return value;
+    }
+
+    // The 64 bit kernel as it was before (including the extra shift).
+    private static long legacyGet64bits(byte[] block, int registerAddress) {
+        int byteNo = registerAddress * 2;
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value |= (block[byteNo++] & 255);
+            value <<= 8;
+        }
+        return value;
+    }
+
+    @Benchmark
+    public long legacyUint32() {
+        long sum = 0;
+        for (int register = 0; register < REGISTERS - 1; register += 2) {
+            sum += legacyGet32bits(block, register);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long uint32AsLong() {
+        long sum = 0;
+        for (int register = 0; register < REGISTERS - 1; register += 2) {
+            sum += parser.uint32AsLong(block, register);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long byteBufferUint32() {
+        long sum = 0;
+        for (int register = 0; register < REGISTERS - 1; register += 2) {
+            sum += buffer.getInt(register * 2) & 0xFFFFFFFFL;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long legacyInt64() {
+        long sum = 0;
+        for (int register = 0; register < REGISTERS - 3; register += 4) {
+            sum += legacyGet64bits(block, register);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long int64AsLong() {
+        long sum = 0;
+        for (int register = 0; register < REGISTERS - 3; register += 4) {
+            sum += parser.int64AsLong(block, register);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long byteBufferInt64() {
+        long sum = 0;
+        for (int register = 0; register < REGISTERS - 3; register += 4) {
+            sum += buffer.getLong(register * 2);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double float32AsDouble() {
+        double sum = 0;
+        for (int register = 0; register < REGISTERS - 1; register += 2) {
+            double value = parser.float32AsDouble(block, register);
+            if (ModelParser.isImplemented(value)) {
+                sum += value;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double float32Boxed() {
+        double sum = 0;
+        for (int register = 0; register < REGISTERS - 1; register += 2) {
+            Float value = parser.float32(block, register);
+            if (value != null) {
+                sum += value;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double float64AsDouble() {
+        double sum = 0;
+        for (int register = 0; register < REGISTERS - 3; register += 4) {
+            double value = parser.float64AsDouble(block, register);
+            if (ModelParser.isImplemented(value)) {
+                sum += value;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The memory needed for the bookkeeping of a single device: a SunSpecFetcher with 4 models
+ * (without the retrieved data). Run it with the GC profiler to get the bytes per device:
+ * java -jar benchmarks/target/benchmarks.jar FetcherFootprintBenchmark -prof gc
+ * and look at gc.alloc.rate.norm (the bytes allocated per created fetcher).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FetcherFootprintBenchmark {
+
+    @Benchmark
+    public SunSpecFetcher newFetcher() {
+        // Without a data reader the fetchers are only created (nothing is retrieved).
+        return new SunSpecFetcher(null)
+            .useModel(1)
+            .useModel(101)
+            .useModel(120)
+            .useModel(132);
+    }
+}
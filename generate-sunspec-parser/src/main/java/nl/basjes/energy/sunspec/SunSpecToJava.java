@@ -138,6 +138,34 @@ public class SunSpecToJava {
         return functionName;
     }
 
+    /**
+     * @return The name of the primitive (null free) decoder in ModelParser for this point or null if there is none.
+     */
+    private static String primitiveDecoder(Point point) {
+        switch (point.type) {
+            case int16:
+            case uint16:
+            case acc16:
+            case count:
+            case enum16:
+            case bitfield16:
+            case int32:
+            case uint32:
+            case acc32:
+            case enum32:
+            case bitfield32:
+            case int64:
+            case acc64:
+            case sunssf:
+                return point.type + "AsLong";
+            case float32:
+            case float64:
+                return point.type + "AsDouble";
+            default:
+                return null;
+        }
+    }
+
     private static String modelComment(Model model) {
         return getCommentString(model.label, model.description, model.notes);
     }
@@ -164,8 +192,12 @@ public class SunSpecToJava {
     }
 
 
+    // The stable ids of the PointKeys (in the order of the models and points).
+    private static int pointKeyId = 0;
+
     private static String generateJavaParser(SunSpec tree) {
         StringBuilder sb = new StringBuilder(128 * 1024);
+        pointKeyId = 0;
         sb.append(header);
         sb.append("public class ParseSunSpec {\n");
 
@@ -245,8 +277,27 @@ public class SunSpecToJava {
                 sb.append("            return result;\n");
                 sb.append("        }\n");
 
+                sb.append("        public void decodeAll(byte[] dataBlock, PointSink sink) {\n");
+                sb.append("            for( int index = 0 ; index < (dataBlock.length/2)/").append(repeatBlockLen).append("; index++) { \n");
+                sb.append("                decodeAll(dataBlock, index, sink);\n");
+                sb.append("            }\n");
+                sb.append("        }\n");
+
+                sb.append("        public void updateHashMap(byte[] dataBlock, ChangedRegisters changed, Map<String, Object> result, Set<PointKey> changedPoints) throws MissingMandatoryFieldException {\n");
+                sb.append("            for( int index = 0 ; index < (dataBlock.length/2)/").append(repeatBlockLen).append("; index++) { \n");
+                sb.append("                updateHashMap(dataBlock, index, changed, result, changedPoints);\n");
+                sb.append("            }\n");
+                sb.append("        }\n");
             }
 
+            // The points (in decodeAll order) of the columnar schema of this model
+            List<Point> fixedSchemaPoints     = new ArrayList<>();
+            List<Point> repeatingSchemaPoints = new ArrayList<>();
+
+            // The ids of the points (in toHashMap order) that have a PointKey
+            List<String> fixedKeys     = new ArrayList<>();
+            List<String> repeatingKeys = new ArrayList<>();
+
             for (Block block : model.blocks) {
                 Set<String> throwsToString = new HashSet<>();
 
@@ -264,86 +315,21 @@ public class SunSpecToJava {
                 String declRepeatParam       = "";
                 String passRepeatParam       = "";
                 String declRepeatParamSingle = "";
-                String hashMapRepeatParam    = "|-";
                 if (block.type == repeating) {
                     declRepeatParam = ", int index";
                     passRepeatParam = ", index";
                     declRepeatParamSingle = "int index";
-                    hashMapRepeatParam = "|\"+index+\"";
                 }
 
                 for (Point point : block.points) {
-                    String      returntype = "Long";
+                    if (point.type == pad) {
+                        continue; // We do NOT want to have a getter for padding.
+                    }
+                    String      returntype = returnType(point);
                     Set<String> throwsSpec = new HashSet<>();
-                    switch (point.type) {
-                        case int16:
-                        case sunssf:
-                            returntype = "Short";
-                            break;
-
-                        case uint16:
-                        case acc16:
-                        case count:
-                        case int32:
-                            returntype = "Integer";
-                            break;
-
-                        case pad:
-                            continue; // We do NOT want to have a getter for padding.
-
-                        case uint32:
-                        case acc32:
-                        case enum32: // We do not support a custom enum for this.
-                        case int64:
-                        case uint64:
-                        case acc64:
-                            returntype = "Long";
-                            break;
-
-                        case enum16:
-                            if (point.symbols.isEmpty()) {
-                                returntype = "Integer";
-                            } else {
-                                returntype = enumName(point);
-                            }
-                            break;
-
-                        case bitfield16:
-                            if (point.symbols.isEmpty()) {
-                                returntype = "Integer";
-                            } else {
-                                returntype = "EnumSet<" + enumName(point) + ">";
-                            }
-                            break;
-
-                        case bitfield32:
-                            if (point.symbols.isEmpty()) {
-                                returntype = "Long";
-                            } else {
-                                returntype = "EnumSet<" + enumName(point) + ">";
-                            }
-                            break;
-
-                        case eui48: // Since eui48 is undocumented we return it as a String
-                        case string:
-                            returntype = "String";
-                            break;
-
-                        case float32:
-                            returntype = "Float";
-                            break;
-
-                        case float64:
-                            returntype = "Double";
-                            break;
-
-                        case ipaddr:
-                        case ipv6addr:
-                            returntype = "InetAddress";
-                            throwsSpec.add("UnknownHostException");
-                            throwsToString.add("UnknownHostException");
-                            break;
-
+                    if (returntype.equals("InetAddress")) {
+                        throwsSpec.add("UnknownHostException");
+                        throwsToString.add("UnknownHostException");
                     }
 
                     if (point.mandatory) {
@@ -525,6 +511,9 @@ public class SunSpecToJava {
                         }
                         sb.append(" return result; }\n");
                     }
+
+                    appendPrimitiveAccessors(sb, model, point, functionName, offset, scalingFactors.contains(point.id),
+                        declRepeatParam, declRepeatParamSingle, passRepeatParam);
                 }
 
                 // Create the toString function
@@ -616,6 +605,27 @@ public class SunSpecToJava {
                 sb.append("            return sb.toString();\n");
                 sb.append("        }\n");
 
+                // The keys of all values in the map
+                for (Point point : block.points) {
+                    if (point.type == pad || scalingFactors.contains(point.id)) {
+                        continue;
+                    }
+                    String units = "";
+                    if (point.units != null && !point.units.isEmpty()) {
+                        units = point.units.replaceAll(Pattern.quote("|"), "_");
+                    }
+                    if (block.type == repeating) {
+                        sb.append("        private static final PointKey.Repeating RKEY_").append(point.id)
+                            .append(" = PointKey.repeating(");
+                    } else {
+                        sb.append("        private static final PointKey KEY_").append(point.id)
+                            .append(" = PointKey.fixed(");
+                    }
+                    sb.append(pointKeyId++).append(", ").append(model.id).append(", \"").append(point.id).append("\", \"")
+                        .append(enumName(point)).append("\", \"").append(units).append("\", ").append(valueClass(point)).append(");\n");
+                    (block.type == repeating ? repeatingKeys : fixedKeys).add(point.id);
+                }
+
                 // Create the toHashMap function
                 sb.append("        /**\n");
                 sb.append("         * The returned value can be Short, Integer, Long, String, Float, Double, InetAddress and in some cases a custom enum or EnumSet&lt;custom enum&gt;.\n");
@@ -634,12 +644,13 @@ public class SunSpecToJava {
                     String functionName = functionName(point);
 
                     sb.append("            Object ").append(point.id).append(" = get").append(functionName).append("(dataBlock").append(passRepeatParam).append("); ");
-                    sb.append("if (").append(point.id).append(" != null) { result.put(\"").append(model.id).append(hashMapRepeatParam).append("|").append(enumName(point));
-                    sb.append("|");
-                    if (point.units != null && !point.units.isEmpty()) {
-                        sb.append(point.units.replaceAll(Pattern.quote("|"), "_"));
+                    sb.append("if (").append(point.id).append(" != null) { result.put(");
+                    if (block.type == repeating) {
+                        sb.append("RKEY_").append(point.id).append(".get(index)");
+                    } else {
+                        sb.append("KEY_").append(point.id);
                     }
-                    sb.append("\", ").append(point.id).append("); }\n");
+                    sb.append(".getName(), ").append(point.id).append("); }\n");
                 }
                 if (block.type == fixed && repeatBlockLen != 0) {
                     sb.append("            for( int index = 0 ; index < ((dataBlock.length/2) - ").append(fixedBlockLen).append(")/").append(repeatBlockLen).append("; index++) {\n");
@@ -648,38 +659,125 @@ public class SunSpecToJava {
                 }
                 sb.append("            return result;\n");
                 sb.append("        }\n");
+
+                appendUpdateHashMap(sb, model, block, scalingFactors, fixedBlockLen, repeatBlockLen, declRepeatParam, passRepeatParam, throwsToString);
+
+                appendDecodeAll(sb, model, block, scalingFactors, fixedBlockLen, repeatBlockLen, declRepeatParam);
+
+                for (Point point : block.points) {
+                    if (isDecodedPoint(point, scalingFactors)) {
+                        (block.type == repeating ? repeatingSchemaPoints : fixedSchemaPoints).add(point);
+                    }
+                }
             }
+
+            appendSchema(sb, model, fixedSchemaPoints, repeatingSchemaPoints);
+            appendPointKeys(sb, fixedKeys, repeatingKeys, fixedBlockLen, repeatBlockLen);
             sb.append("    }\n");
         }
 
 
         sb.append("\n");
         sb.append("\n");
-        sb.append("    private static Map<Integer, ModelParser> MODEL_PARSERS = null;\n");
+        // The metadata of all models without loading the class of any model.
+        sb.append("    private static final List<ModelMetadata> MODEL_METADATA = Collections.unmodifiableList(Arrays.asList(\n");
+        for (int i = 0; i < tree.models.size(); i++) {
+            Model model = tree.models.get(i);
+            sb.append("        new ModelMetadata(").append(model.id)
+                .append(", \"").append(model.label)
+                .append("\", \"").append(model.description)
+                .append("\", \"").append(model.notes).append("\")")
+                .append(i + 1 < tree.models.size() ? ",\n" : "\n");
+        }
+        sb.append("    ));\n");
+        sb.append("\n");
         sb.append("    /**\n");
-        sb.append("     * Create a map with all parsers\n");
+        sb.append("     * @return The metadata of all known models (this does not load any of the model parsers).\n");
         sb.append("     */\n");
-        sb.append("    public static Map<Integer, ModelParser> modelParsers() {\n");
-        sb.append("        if (MODEL_PARSERS == null) {\n");
-        sb.append("            MODEL_PARSERS = new LinkedHashMap<>();\n");
+        sb.append("    public static List<ModelMetadata> modelMetadata() {\n");
+        sb.append("        return MODEL_METADATA;\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * @return The metadata of the model or null if the model does not exist.\n");
+        sb.append("     */\n");
+        sb.append("    public static ModelMetadata getModelMetadata(int modelId) {\n");
+        sb.append("        for (ModelMetadata modelMetadata : MODEL_METADATA) {\n");
+        sb.append("            if (modelMetadata.getId() == modelId) {\n");
+        sb.append("                return modelMetadata;\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("        return null;\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Create a new parser for a single model. Only the class of this model is loaded.\n");
+        sb.append("     * @return The new parser or null if the model does not exist.\n");
+        sb.append("     */\n");
+        sb.append("    public static ModelParser newModelParser(int modelId) {\n");
+        sb.append("        switch(modelId) {\n");
         for (Integer modelId : modelList) {
-            sb.append("            MODEL_PARSERS.put(").append(modelId).append(", new Model_").append(modelId).append("());\n");
+            sb.append("            case ").append(modelId).append(": return new Model_").append(modelId).append("();\n");
         }
+        sb.append("            default:  return null;\n");
         sb.append("        }\n");
-        sb.append("        return MODEL_PARSERS;\n");
         sb.append("    }\n");
-
         sb.append("\n");
-        sb.append("    public static class ModelParserHolder {\n");
-        sb.append("        protected Map<Integer, ModelParser> usedModelParsers = null;\n");
-        sb.append("        public ModelParserHolder() {\n");
-        sb.append("            usedModelParsers = new LinkedHashMap<>();\n");
+        sb.append("    private static final ConcurrentMap<Integer, ModelParser> MODEL_PARSERS = new ConcurrentHashMap<>();\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * The shared parser of a single model which is created on first use.\n");
+        sb.append("     * @return The parser or null if the model does not exist.\n");
+        sb.append("     */\n");
+        sb.append("    public static ModelParser getModelParser(int modelId) {\n");
+        sb.append("        ModelParser modelParser = MODEL_PARSERS.get(modelId);\n");
+        sb.append("        if (modelParser == null) {\n");
+        sb.append("            modelParser = newModelParser(modelId);\n");
+        sb.append("            if (modelParser == null) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            ModelParser existing = MODEL_PARSERS.putIfAbsent(modelId, modelParser);\n");
+        sb.append("            if (existing != null) {\n");
+        sb.append("                return existing;\n");
+        sb.append("            }\n");
         sb.append("        }\n");
-
+        sb.append("        return modelParser;\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    // Initialized (exactly once) by the JVM when modelParsers() is first called.\n");
+        sb.append("    private static final class AllModelParsers {\n");
+        sb.append("        private static final Map<Integer, ModelParser> ALL_MODEL_PARSERS;\n");
+        sb.append("        static {\n");
+        sb.append("            Map<Integer, ModelParser> modelParsers = new LinkedHashMap<>();\n");
+        sb.append("            for (ModelMetadata modelMetadata : MODEL_METADATA) {\n");
+        sb.append("                modelParsers.put(modelMetadata.getId(), getModelParser(modelMetadata.getId()));\n");
+        sb.append("            }\n");
+        sb.append("            ALL_MODEL_PARSERS = Collections.unmodifiableMap(modelParsers);\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * A map with all parsers. NOTE: This loads the classes of ALL models,\n");
+        sb.append("     * use modelMetadata() and getModelParser(int) to only load the models that are needed.\n");
+        sb.append("     */\n");
+        sb.append("    public static Map<Integer, ModelParser> modelParsers() {\n");
+        sb.append("        return AllModelParsers.ALL_MODEL_PARSERS;\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Typed access to the models that are in use: the model_N fields (null if the model is not used)\n");
+        sb.append("     * or the equivalent model_N() methods.\n");
+        sb.append("     */\n");
+        sb.append("    public static class ModelParserHolder {\n");
         for (Integer modelId : modelList) {
             sb.append("        public Model_").append(modelId).append(" model_").append(modelId).append(" = null;\n");
         }
-
+        sb.append("\n");
+        for (Integer modelId : modelList) {
+            sb.append("        public Model_").append(modelId).append(" model_").append(modelId)
+                .append("() { return model_").append(modelId).append("; }\n");
+        }
+        sb.append("\n");
         sb.append("        public ModelFetcher getModelFetcher(SunSpecModbusDataReader dataReader, int modelId) {\n");
         sb.append("            switch(modelId) {\n");
         for (Integer modelId : modelList) {
@@ -695,6 +793,338 @@ public class SunSpecToJava {
         return sb.toString();
     }
 
+    /**
+     * The primitive accessors return a long or double instead of a boxed value so decoding does not allocate.
+     * Instead of null they return ModelParser.NOT_IMPLEMENTED (for a long) or NaN (for a double).
+     */
+    private static void appendPrimitiveAccessors(StringBuilder sb, Model model, Point point, String functionName, String offset,
+                                                 boolean isScalingFactor, String declRepeatParam,
+                                                 String declRepeatParamSingle, String passRepeatParam) {
+        String decoder = primitiveDecoder(point);
+        if (decoder == null) {
+            return;
+        }
+
+        String access = isScalingFactor ? "private" : "public";
+        String value  = decoder + "(dataBlock,  " + offset + ")";
+        String returntype;
+        String suffix;
+
+        if (point.sf != null && decoder.endsWith("AsLong")) {
+            String scale;
+            if (NumberUtils.isNumber(point.sf)) {
+                scale = point.sf;
+            } else {
+                scale = scaleFactorAccessor(getScaleFactor(model, point));
+            }
+            value = "scaledValue(" + value + ", " + scale + ")";
+            returntype = "double";
+            suffix = "AsDouble";
+        } else if (decoder.endsWith("AsDouble")) {
+            returntype = "double";
+            suffix = "AsDouble";
+        } else {
+            returntype = "long";
+            suffix = "AsLong";
+        }
+
+        sb.append("        ").append(access).append(" ").append(returntype).append(" get").append(functionName).append(suffix)
+            .append("(").append(declRepeatParamSingle).append(") throws ModbusException")
+            .append(" { return get").append(functionName).append(suffix).append("(getCurrentData()").append(passRepeatParam).append("); }\n");
+        sb.append("        ").append(access).append(" ").append(returntype).append(" get").append(functionName).append(suffix)
+            .append("(byte[] dataBlock").append(declRepeatParam).append(")")
+            .append(" { return ").append(value).append("; }\n");
+    }
+
+    private static Point getScaleFactor(Model model, Point point) {
+        return model.blocks.stream()
+            .map(b -> b.pointLookup.get(point.sf))
+            .filter(Objects::nonNull)
+            .findFirst()
+            .orElseThrow(() -> new IllegalStateException(
+                "In " + model.id + " -> " + point.id + " requires SF \"" + point.sf + "\" which does not exist."));
+    }
+
+    private static String scaleFactorAccessor(Point sf) {
+        return "get" + functionName(sf) + "AsLong(dataBlock" + (sf.parent.type == repeating ? ", index" : "") + ")";
+    }
+
+    /**
+     * @return The number of registers used by the point.
+     */
+    private static int registerCount(Point point) {
+        if (point.len != null) {
+            return point.len;
+        }
+        switch (point.type) {
+            case int32:
+            case uint32:
+            case acc32:
+            case enum32:
+            case bitfield32:
+            case float32:
+            case ipaddr:
+                return 2;
+            case int64:
+            case uint64:
+            case acc64:
+            case float64:
+            case eui48:
+                return 4;
+            case ipv6addr:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+    private static String registerOffset(Point point, int fixedBlockLen, int repeatBlockLen) {
+        if (point.parent.type == repeating) {
+            return fixedBlockLen + "+(index*" + repeatBlockLen + ")+" + point.offset;
+        }
+        return "" + point.offset;
+    }
+
+    /**
+     * Generate an updateHashMap that only decodes the points of which the registers (or the scale factor) changed.
+     */
+    private static void appendUpdateHashMap(StringBuilder sb, Model model, Block block, Set<String> scalingFactors,
+                                            int fixedBlockLen, int repeatBlockLen,
+                                            String declRepeatParam, String passRepeatParam, Set<String> throwsToString) {
+        sb.append("        /**\n");
+        sb.append("         * Update a map (made by toHashMap) with only the values of which the registers changed.\n");
+        sb.append("         */\n");
+        sb.append("        public void updateHashMap(byte[] dataBlock").append(declRepeatParam)
+            .append(", ChangedRegisters changed, Map<String, Object> result, Set<PointKey> changedPoints) ")
+            .append(genThrows(throwsToString)).append(" {\n");
+
+        for (Point point : block.points) {
+            if (point.type == pad || scalingFactors.contains(point.id)) {
+                continue;
+            }
+            sb.append("            if (changed.isChanged(").append(registerOffset(point, fixedBlockLen, repeatBlockLen))
+                .append(", ").append(registerCount(point)).append(")");
+            if (point.sf != null && !NumberUtils.isNumber(point.sf)) {
+                Point sf = getScaleFactor(model, point);
+                sb.append(" || changed.isChanged(").append(registerOffset(sf, fixedBlockLen, repeatBlockLen)).append(", 1)");
+            }
+            sb.append(") { updateValue(result, changedPoints, ");
+            if (block.type == repeating) {
+                sb.append("RKEY_").append(point.id).append(".get(index)");
+            } else {
+                sb.append("KEY_").append(point.id);
+            }
+            sb.append(", get").append(functionName(point)).append("(dataBlock").append(passRepeatParam).append(")); }\n");
+        }
+
+        if (block.type == fixed && repeatBlockLen != 0) {
+            sb.append("            for( int index = 0 ; index < ((dataBlock.length/2) - ").append(fixedBlockLen).append(")/").append(repeatBlockLen).append("; index++) {\n");
+            sb.append("                updateHashMap(dataBlock, index, changed, result, changedPoints);\n");
+            sb.append("            }\n");
+        }
+        sb.append("        }\n");
+    }
+
+    /**
+     * Generate a straight line decodeAll that pushes all numerical points of a block into a PointSink.
+     * Every scale factor is decoded only once and no objects are created.
+     */
+    private static void appendDecodeAll(StringBuilder sb, Model model, Block block, Set<String> scalingFactors,
+                                        int fixedBlockLen, int repeatBlockLen, String declRepeatParam) {
+        String blockIndex = block.type == repeating ? "index" : "-1";
+
+        sb.append("        public void decodeAll(byte[] dataBlock").append(declRepeatParam).append(", PointSink sink) {\n");
+        sb.append("            sink.beginBlock(SCHEMA, ").append(blockIndex).append(");\n");
+
+        // First all scale factors that are needed in this block (each only once)
+        List<String> declaredScaleFactors = new ArrayList<>();
+        for (Point point : block.points) {
+            if (point.type == pad || scalingFactors.contains(point.id) || point.sf == null ||
+                NumberUtils.isNumber(point.sf) || primitiveDecoder(point) == null) {
+                continue;
+            }
+            Point sf = getScaleFactor(model, point);
+            String variable = "sf_" + functionName(sf);
+            if (!declaredScaleFactors.contains(variable)) {
+                declaredScaleFactors.add(variable);
+                sb.append("            long ").append(variable).append(" = ").append(scaleFactorAccessor(sf)).append(";\n");
+            }
+        }
+
+        // The slot of a point is its position in the schema of the block.
+        int slot = 0;
+        for (Point point : block.points) {
+            if (!isDecodedPoint(point, scalingFactors)) {
+                continue;
+            }
+            String decoder = primitiveDecoder(point);
+            String target = "sink, " + (slot++) + " /* " + point.id + " */, ";
+
+            String offset = "" + point.offset;
+            if (block.type == repeating) {
+                offset = fixedBlockLen + "+(index*" + repeatBlockLen + ")+" + point.offset;
+            }
+            String value = decoder + "(dataBlock,  " + offset + ")";
+
+            if (point.sf != null && decoder.endsWith("AsLong")) {
+                String scale;
+                if (NumberUtils.isNumber(point.sf)) {
+                    scale = point.sf;
+                } else {
+                    scale = "sf_" + functionName(getScaleFactor(model, point));
+                }
+                sb.append("            emitDouble(").append(target).append("scaledValue(").append(value).append(", ").append(scale).append("));\n");
+            } else if (decoder.endsWith("AsDouble")) {
+                sb.append("            emitDouble(").append(target).append(value).append(");\n");
+            } else {
+                sb.append("            emitLong(").append(target).append(value).append(");\n");
+            }
+        }
+
+        if (block.type == fixed && repeatBlockLen != 0) {
+            sb.append("            for( int index = 0 ; index < ((dataBlock.length/2) - ").append(fixedBlockLen).append(")/").append(repeatBlockLen).append("; index++) {\n");
+            sb.append("                decodeAll(dataBlock, index, sink);\n");
+            sb.append("            }\n");
+        }
+        sb.append("        }\n");
+    }
+
+    /**
+     * @return The Java type of the value of a point as returned by the (raw) getter.
+     */
+    private static String returnType(Point point) {
+        String returntype = "Long";
+        switch (point.type) {
+            case int16:
+            case sunssf:
+                returntype = "Short";
+                break;
+
+            case uint16:
+            case acc16:
+            case count:
+            case int32:
+                returntype = "Integer";
+                break;
+
+            case uint32:
+            case acc32:
+            case enum32: // We do not support a custom enum for this.
+            case int64:
+            case uint64:
+            case acc64:
+                returntype = "Long";
+                break;
+
+            case enum16:
+                if (point.symbols.isEmpty()) {
+                    returntype = "Integer";
+                } else {
+                    returntype = enumName(point);
+                }
+                break;
+
+            case bitfield16:
+                if (point.symbols.isEmpty()) {
+                    returntype = "Integer";
+                } else {
+                    returntype = "EnumSet<" + enumName(point) + ">";
+                }
+                break;
+
+            case bitfield32:
+                if (point.symbols.isEmpty()) {
+                    returntype = "Long";
+                } else {
+                    returntype = "EnumSet<" + enumName(point) + ">";
+                }
+                break;
+
+            case eui48: // Since eui48 is undocumented we return it as a String
+            case string:
+                returntype = "String";
+                break;
+
+            case float32:
+                returntype = "Float";
+                break;
+
+            case float64:
+                returntype = "Double";
+                break;
+
+            case ipaddr:
+            case ipv6addr:
+                returntype = "InetAddress";
+                break;
+
+        }
+        return returntype;
+    }
+
+    /**
+     * @return The class of the values of a point in the map produced by toHashMap (a scaled value is a Double).
+     */
+    private static String valueClass(Point point) {
+        String returntype = returnType(point);
+        boolean hasSymbols = (point.type == bitfield16 || point.type == bitfield32 || point.type == enum16 || point.type == enum32) && !point.symbols.isEmpty();
+        if (point.sf != null && !hasSymbols) {
+            returntype = "Double";
+        }
+        return returntype.replaceAll("<.*>", "") + ".class";
+    }
+
+    /**
+     * @return true if the point is passed to the PointSink by decodeAll (only numerical values, no padding or scale factors).
+     */
+    private static boolean isDecodedPoint(Point point, Set<String> scalingFactors) {
+        return point.type != pad && !scalingFactors.contains(point.id) && primitiveDecoder(point) != null;
+    }
+
+    private static boolean isDecodedAsDouble(Point point) {
+        return point.sf != null || Objects.requireNonNull(primitiveDecoder(point)).endsWith("AsDouble");
+    }
+
+    private static void appendSchemaPoints(StringBuilder sb, List<Point> points) {
+        sb.append("            new String[]{");
+        sb.append(points.stream().map(p -> "\"" + p.id + "\"").collect(Collectors.joining(", ")));
+        sb.append("},\n");
+        sb.append("            new boolean[]{");
+        sb.append(points.stream().map(p -> String.valueOf(isDecodedAsDouble(p))).collect(Collectors.joining(", ")));
+        sb.append("}");
+    }
+
+    /**
+     * The schema lists the points in the same order as they are passed by decodeAll.
+     */
+    private static void appendSchema(StringBuilder sb, Model model, List<Point> fixedPoints, List<Point> repeatingPoints) {
+        sb.append("        public static final ModelSchema SCHEMA = new ModelSchema(").append(model.id).append(",\n");
+        appendSchemaPoints(sb, fixedPoints);
+        sb.append(",\n");
+        appendSchemaPoints(sb, repeatingPoints);
+        sb.append(");\n");
+        sb.append("        public ModelSchema getSchema() { return SCHEMA; }\n");
+    }
+
+    /**
+     * The keys of all points in the same order as they are put in the map by toHashMap.
+     */
+    private static void appendPointKeys(StringBuilder sb, List<String> fixedKeys, List<String> repeatingKeys, int fixedBlockLen, int repeatBlockLen) {
+        sb.append("        private static final List<PointKey> FIXED_KEYS = Collections.unmodifiableList(Arrays.asList(");
+        sb.append(fixedKeys.stream().map(id -> "KEY_" + id).collect(Collectors.joining(", ")));
+        sb.append("));\n");
+        sb.append("        public List<PointKey> getFixedPointKeys() { return FIXED_KEYS; }\n");
+        sb.append("        private static final List<PointKey.Repeating> REPEATING_KEYS = Collections.unmodifiableList(Arrays.asList(");
+        sb.append(repeatingKeys.stream().map(id -> "RKEY_" + id).collect(Collectors.joining(", ")));
+        sb.append("));\n");
+        sb.append("        public List<PointKey.Repeating> getRepeatingPointKeys() { return REPEATING_KEYS; }\n");
+        if (repeatBlockLen == 0) {
+            sb.append("        public int getRepeatCount(byte[] dataBlock) { return 0; }\n");
+        } else {
+            sb.append("        public int getRepeatCount(byte[] dataBlock) { return ((dataBlock.length/2) - ").append(fixedBlockLen).append(")/").append(repeatBlockLen).append("; }\n");
+        }
+    }
+
     private static String format(int len, String value) {
         return String.format("%-" + len + "s", value);
     }
@@ -731,9 +1161,15 @@ public class SunSpecToJava {
         "\n" +
         "import java.net.InetAddress;\n" +
         "import java.net.UnknownHostException;\n" +
+        "import java.util.Arrays;\n" +
+        "import java.util.Collections;\n" +
         "import java.util.EnumSet;\n" +
         "import java.util.LinkedHashMap;\n" +
+        "import java.util.List;\n" +
         "import java.util.Map;\n" +
+        "import java.util.Set;\n" +
+        "import java.util.concurrent.ConcurrentHashMap;\n" +
+        "import java.util.concurrent.ConcurrentMap;\n" +
         "\n" +
         "import com.ghgande.j2mod.modbus.ModbusException;\n" +
         "\n";
@@ -0,0 +1,266 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides which values must be emitted when only the changes are wanted.
+ * A value is emitted when it differs from the value that was last emitted for the same name by more
+ * than the deadband of that name. Every keyframe interval (and at the start) a keyframe is done
+ * which emits all values so consumers that join late get a complete picture.
+ * A value that is no longer available (null or no longer present) is emitted once with the value null.
+ * This class is not thread safe.
+ */
+public class DeltaFilter {
+
+    /**
+     * A change is significant if it is more than the absolute deadband and more than the
+     * relative deadband (a fraction of the last emitted value).
+     * A deadband of 0 means that any change is significant.
+     */
+    public static final class Deadband {
+        public static final Deadband NONE = new Deadband(0, 0);
+
+        private final double absolute;
+        private final double relative;
+
+        public Deadband(double absolute, double relative) {
+            if (absolute < 0 || relative < 0) {
+                throw new IllegalArgumentException("A deadband cannot be negative");
+            }
+            this.absolute = absolute;
+            this.relative = relative;
+        }
+
+        public double getAbsolute() {
+            return absolute;
+        }
+
+        public double getRelative() {
+            return relative;
+        }
+
+        /**
+         * @param previous The value that was emitted last
+         * @param value    The current value
+         * @return true if the change from previous to value must be emitted.
+         */
+        public boolean isSignificant(Object previous, Object value) {
+            if (previous == null || value == null) {
+                return previous != value;
+            }
+            if ((absolute > 0 || relative > 0) &&
+                previous instanceof Number && value instanceof Number) {
+                double previousValue = ((Number) previous).doubleValue();
+                double currentValue  = ((Number) value).doubleValue();
+                if (Double.isNaN(previousValue) || Double.isNaN(currentValue)) {
+                    return !previous.equals(value);
+                }
+                double threshold = Math.max(absolute, relative * Math.abs(previousValue));
+                return Math.abs(currentValue - previousValue) > threshold;
+            }
+            return !previous.equals(value);
+        }
+
+        @Override
+        public String toString() {
+            return "Deadband{absolute=" + absolute + ", relative=" + relative + '}';
+        }
+    }
+
+    private Deadband                    defaultDeadband  = Deadband.NONE;
+    private final Map<String, Deadband> deadbands        = new HashMap<>();
+    // The deadband to use for each name that was seen (so the lookup is done only once per name).
+    private final Map<String, Deadband> usedDeadbands    = new HashMap<>();
+
+    private long                        keyframeInterval = 0;
+    private long                        lastKeyframe     = 0;
+    private boolean                     hadKeyframe      = false;
+    private boolean                     inKeyframe       = false;
+
+    private final Map<String, Object>   lastEmitted      = new HashMap<>();
+
+    /**
+     * @param keyframeIntervalMs Every how many milliseconds all values must be emitted (0 means only at the start).
+     * @return this
+     */
+    public DeltaFilter withKeyframeInterval(long keyframeIntervalMs) {
+        if (keyframeIntervalMs < 0) {
+            throw new IllegalArgumentException("The keyframe interval cannot be negative");
+        }
+        this.keyframeInterval = keyframeIntervalMs;
+        return this;
+    }
+
+    /**
+     * @param absolute The absolute deadband for all values without a specific deadband.
+     * @param relative The relative deadband (fraction of the last emitted value) for all values without a specific deadband.
+     * @return this
+     */
+    public DeltaFilter withDeadband(double absolute, double relative) {
+        this.defaultDeadband = new Deadband(absolute, relative);
+        usedDeadbands.clear();
+        return this;
+    }
+
+    /**
+     * @param name     The name of the value
+     * @param absolute The absolute deadband for this value.
+     * @param relative The relative deadband (fraction of the last emitted value) for this value.
+     * @return this
+     */
+    public DeltaFilter withDeadband(String name, double absolute, double relative) {
+        deadbands.put(name, new Deadband(absolute, relative));
+        usedDeadbands.clear();
+        return this;
+    }
+
+    public long getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    public Deadband getDefaultDeadband() {
+        return defaultDeadband;
+    }
+
+    /**
+     * Find the deadband for a name that does not have a deadband yet.
+     * Override this to support other ways of specifying the name.
+     * @param name The name of the value
+     * @return The deadband that must be used for this name.
+     */
+    protected Deadband findDeadband(String name) {
+        Deadband deadband = deadbands.get(name);
+        return deadband == null ? defaultDeadband : deadband;
+    }
+
+    public Deadband getDeadband(String name) {
+        return usedDeadbands.computeIfAbsent(name, this::findDeadband);
+    }
+
+    /**
+     * Start a new set of values.
+     * @param timestamp The timestamp of the values.
+     * @return true if this set of values is a keyframe in which all values must be emitted.
+     */
+    public boolean start(long timestamp) {
+        inKeyframe = !hadKeyframe ||
+                     (keyframeInterval > 0 && timestamp - lastKeyframe >= keyframeInterval);
+        if (inKeyframe) {
+            hadKeyframe  = true;
+            lastKeyframe = timestamp;
+        }
+        return inKeyframe;
+    }
+
+    /**
+     * @return true if the current set of values (see {@link #start(long)}) is a keyframe.
+     */
+    public boolean isKeyframe() {
+        return inKeyframe;
+    }
+
+    /**
+     * Determine if a value of the current set of values must be emitted and if so remember it.
+     * @param name  The name of the value
+     * @param value The current value (null if there is no value)
+     * @return true if the value must be emitted (a null value means it was removed)
+     */
+    public boolean accept(String name, Object value) {
+        if (value == null) {
+            // The removal is emitted once if the value was emitted before.
+            return lastEmitted.remove(name) != null;
+        }
+        if (inKeyframe) {
+            lastEmitted.put(name, value);
+            return true;
+        }
+        Object previous = lastEmitted.get(name);
+        if (previous == value) {
+            return false; // The same (unchanged) object as last time
+        }
+        if (previous != null && !getDeadband(name).isSignificant(previous, value)) {
+            return false;
+        }
+        lastEmitted.put(name, value);
+        return true;
+    }
+
+    /**
+     * Filter a complete set of values.
+     * @param timestamp  The timestamp of the values.
+     * @param values     All current values.
+     * @param candidates The names of the values that may have changed (null means all values).
+     *                   Values that are not candidates are known to be unchanged and cost nothing.
+     * @return The values that must be emitted (all values if this was a keyframe).
+     *         The values that were removed since they were emitted are included with the value null.
+     *         Only with all values (keyframe or no candidates) the values that are no longer present are found.
+     */
+    public Map<String, Object> filter(long timestamp, Map<String, ?> values, Collection<String> candidates) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (start(timestamp) || candidates == null) {
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                if (accept(entry.getKey(), entry.getValue())) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+            // What was emitted but is no longer present has been removed.
+            // After a keyframe the remembered values are exactly the current values.
+            Iterator<String> names = lastEmitted.keySet().iterator();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (!values.containsKey(name)) {
+                    names.remove();
+                    result.put(name, null);
+                }
+            }
+            return result;
+        }
+        for (String name : candidates) {
+            Object value = values.get(name);
+            if (accept(name, value)) {
+                result.put(name, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forget everything that was emitted so the next set of values will be a keyframe.
+     */
+    public void reset() {
+        lastEmitted.clear();
+        hadKeyframe = false;
+        inKeyframe  = false;
+    }
+
+    @Override
+    public String toString() {
+        return "DeltaFilter{" +
+            "keyframeInterval=" + keyframeInterval +
+            ", defaultDeadband=" + defaultDeadband +
+            ", deadbands=" + deadbands +
+            '}';
+    }
+}
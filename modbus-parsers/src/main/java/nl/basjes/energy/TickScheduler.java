@@ -0,0 +1,323 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fires on the moments the clock is an exact multiple of a modulo (i.e. every whole 5 seconds).
+ * Each tick is calculated from the clock (not from the previous tick) so there is no cumulative drift;
+ * if a tick was missed completely it is skipped (and counted) instead of fired late.
+ * The waiting is done by parking the thread (no polling) and can be interrupted.
+ * <ul>
+ *     <li>{@link #awaitNextTick(long, Tick)} blocks the calling thread until the next tick.</li>
+ *     <li>{@link #schedule(long, TickListener)} calls a listener on every tick from a single shared thread.</li>
+ * </ul>
+ */
+public class TickScheduler implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(TickScheduler.class);
+
+    private static final class DefaultHolder {
+        private static final TickScheduler INSTANCE = new TickScheduler("TickScheduler");
+    }
+
+    /**
+     * @return The scheduler shared by all pollers in this JVM.
+     */
+    public static TickScheduler getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * A single moment a tick fired.
+     */
+    public static final class Tick {
+        private final long timestamp;
+        private final long latenessNanos;
+        private final long skipped;
+
+        Tick(long timestamp, long latenessNanos, long skipped) {
+            this.timestamp = timestamp;
+            this.latenessNanos = latenessNanos;
+            this.skipped = skipped;
+        }
+
+        /**
+         * @return The aligned moment (epoch milliseconds) this tick was scheduled at.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return How much later than the scheduled moment the tick really fired.
+         */
+        public long getLatenessNanos() {
+            return latenessNanos;
+        }
+
+        public double getLatenessMs() {
+            return latenessNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        /**
+         * @return How many ticks were skipped before this one because they were missed completely.
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Tick{timestamp=%d, lateness=%.3fms, skipped=%d}", timestamp, getLatenessMs(), skipped);
+        }
+    }
+
+    @FunctionalInterface
+    public interface TickListener {
+        /**
+         * Called from the scheduler thread so it should hand over any real work to another thread.
+         */
+        void onTick(Tick tick);
+    }
+
+    /**
+     * @param nowMs The current time (epoch milliseconds)
+     * @param moduloMs The modulo
+     * @return The first multiple of the modulo that is after now.
+     */
+    public static long nextBoundary(long nowMs, long moduloMs) {
+        if (moduloMs < 1) {
+            throw new IllegalArgumentException("The modulo must be at least 1 ms");
+        }
+        return (Math.floorDiv(nowMs, moduloMs) + 1) * moduloMs;
+    }
+
+    /**
+     * Park the current thread until the clock has reached the provided moment.
+     * @return How late (in nanoseconds) the thread woke up.
+     */
+    private static long parkUntil(long timestampMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timestampMs - System.currentTimeMillis());
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Interrupted while waiting for the tick at " + timestampMs);
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                if (System.currentTimeMillis() >= timestampMs) {
+                    return -remaining;
+                }
+                // The wall clock is slightly behind the monotonic clock: wait a little longer.
+                remaining = TimeUnit.MICROSECONDS.toNanos(100);
+            }
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Block the calling thread until the next tick.
+     * @param moduloMs The ticks are at every multiple of this many milliseconds.
+     * @return The tick
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public Tick awaitNextTick(long moduloMs) throws InterruptedException {
+        return awaitNextTick(moduloMs, null);
+    }
+
+    /**
+     * Block the calling thread until the tick that follows the previous tick of this caller.
+     * If that tick has already passed (i.e. the work after the previous tick took too long) the most
+     * recent boundary is returned immediately with its lateness and the ticks before it that were
+     * missed completely are counted as skipped.
+     * @param moduloMs The ticks are at every multiple of this many milliseconds.
+     * @param previous The tick this caller got the previous time (null if there is none).
+     * @return The tick
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public Tick awaitNextTick(long moduloMs, Tick previous) throws InterruptedException {
+        long nowMs = System.currentTimeMillis();
+        long next = nextBoundary(nowMs, moduloMs);
+        if (previous == null || previous.getTimestamp() % moduloMs != 0) {
+            // No previous tick (or one of a different modulo): nothing can have been missed.
+            return new Tick(next, parkUntil(next), 0);
+        }
+        long expected = previous.getTimestamp() + moduloMs;
+        if (expected >= next) {
+            return new Tick(expected, parkUntil(expected), 0);
+        }
+        long latest = next - moduloMs;
+        return new Tick(latest, TimeUnit.MILLISECONDS.toNanos(nowMs - latest), (latest - expected) / moduloMs);
+    }
+
+    // ------------------------------------------
+
+    /**
+     * A listener that is called on every tick until it is cancelled.
+     */
+    public final class Registration implements AutoCloseable {
+        private final long         moduloMs;
+        private final TickListener listener;
+        private long               nextTick;
+        private volatile boolean   cancelled = false;
+
+        Registration(long moduloMs, TickListener listener) {
+            this.moduloMs = moduloMs;
+            this.listener = listener;
+            this.nextTick = nextBoundary(System.currentTimeMillis(), moduloMs);
+        }
+
+        public long getModuloMs() {
+            return moduloMs;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            synchronized (TickScheduler.this) {
+                registrations.remove(this);
+            }
+            wakeup();
+        }
+
+        @Override
+        public void close() {
+            cancel();
+        }
+    }
+
+    private final String                          threadName;
+    private final PriorityQueue<Registration>     registrations =
+        new PriorityQueue<>((a, b) -> Long.compare(a.nextTick, b.nextTick));
+    private Thread                                thread  = null;
+    private volatile boolean                      running = true;
+
+    public TickScheduler() {
+        this("TickScheduler");
+    }
+
+    public TickScheduler(String threadName) {
+        this.threadName = threadName;
+    }
+
+    /**
+     * Call the listener on every tick of the modulo (from the thread of this scheduler).
+     * @param moduloMs The ticks are at every multiple of this many milliseconds.
+     * @param listener What must be called.
+     * @return The registration which can be used to stop.
+     */
+    public Registration schedule(long moduloMs, TickListener listener) {
+        Registration registration = new Registration(moduloMs, listener);
+        synchronized (this) {
+            if (!running) {
+                throw new IllegalStateException("The scheduler has been closed");
+            }
+            registrations.add(registration);
+            if (thread == null) {
+                thread = new Thread(this::run, threadName);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        wakeup();
+        return registration;
+    }
+
+    private void wakeup() {
+        Thread schedulerThread;
+        synchronized (this) {
+            schedulerThread = thread;
+        }
+        if (schedulerThread != null) {
+            LockSupport.unpark(schedulerThread);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            Registration first;
+            synchronized (this) {
+                first = registrations.peek();
+            }
+            if (first == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            long remainingMs = first.nextTick - System.currentTimeMillis();
+            if (remainingMs > 0) {
+                // Woken up early when something is (un)registered; then the first one is determined again.
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(remainingMs));
+                if (first.nextTick - System.currentTimeMillis() > 0) {
+                    continue;
+                }
+            }
+
+            long nowMs = System.currentTimeMillis();
+            while (true) {
+                Registration due;
+                synchronized (this) {
+                    due = registrations.peek();
+                    if (due == null || due.nextTick > nowMs) {
+                        break;
+                    }
+                    registrations.poll();
+                }
+                fire(due, nowMs);
+            }
+        }
+    }
+
+    private void fire(Registration registration, long nowMs) {
+        long tick = registration.nextTick;
+        // The most recent boundary that was reached; older ones that were missed entirely are skipped.
+        long latest = nextBoundary(nowMs, registration.moduloMs) - registration.moduloMs;
+        long skipped = (latest - tick) / registration.moduloMs;
+        if (!registration.cancelled) {
+            try {
+                registration.listener.onTick(new Tick(latest, TimeUnit.MILLISECONDS.toNanos(nowMs - latest), skipped));
+            } catch (RuntimeException e) {
+                LOG.error("The tick listener failed: {}", e.getMessage(), e);
+            }
+        }
+        registration.nextTick = latest + registration.moduloMs;
+        synchronized (this) {
+            if (!registration.cancelled && running) {
+                registrations.add(registration);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        Thread schedulerThread;
+        synchronized (this) {
+            running = false;
+            registrations.clear();
+            schedulerThread = thread;
+        }
+        if (schedulerThread != null) {
+            LockSupport.unpark(schedulerThread);
+        }
+    }
+}
@@ -19,19 +19,21 @@ package nl.basjes.energy;
 
 public class Utils {
 
+    /**
+     * Wait until the clock is the next multiple of the modulo.
+     * If the thread is interrupted this returns immediately with the interrupt flag set.
+     * @param moduloMs The modulo in milliseconds
+     * @return The moment that was waited for.
+     * @deprecated Use {@link TickScheduler#awaitNextTick(long)} which reports interrupts and lateness.
+     */
+    @Deprecated
     public static long waitTillNextTimeModulo(long moduloMs) {
-        long now       = System.currentTimeMillis();
-        long refreshAt = (Math.floorDiv(now, moduloMs) + 1) * moduloMs;
-
-        while (now < refreshAt) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                // Ignore
-            }
-            now = System.currentTimeMillis();
+        try {
+            return TickScheduler.getDefault().awaitNextTick(moduloMs).getTimestamp();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return TickScheduler.nextBoundary(System.currentTimeMillis(), moduloMs);
         }
-        return refreshAt;
     }
 
 }
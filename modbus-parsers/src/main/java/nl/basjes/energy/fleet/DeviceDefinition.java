@@ -0,0 +1,151 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.fleet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+
+/**
+ * A single device (reachable via Modbus TCP) that must be polled by the {@link FleetPoller}.
+ */
+public class DeviceDefinition {
+
+    public enum Type {
+        SUNSPEC,
+        SDM630
+    }
+
+    private final String  name;
+    private final Type    type;
+    private final String  host;
+    private final int     port;
+    private int           unitId;
+    private int           registerBase;
+    private List<Integer> models   = Collections.emptyList();
+    private long          moduloMs = 1000;
+
+    public DeviceDefinition(String name, Type type, String host, int port, int unitId) {
+        this.name = name;
+        this.type = type;
+        this.host = host;
+        this.port = port;
+        this.unitId = unitId;
+        this.registerBase = type == Type.SUNSPEC ? SUNSPEC_STANDARD_STARTBASE : 0;
+    }
+
+    /**
+     * A SunSpec device at the standard unit id and register base reading all models.
+     */
+    public static DeviceDefinition sunSpec(String name, String host, int port) {
+        return new DeviceDefinition(name, Type.SUNSPEC, host, port, SUNSPEC_STANDARD_UNITID);
+    }
+
+    public static DeviceDefinition sdm630(String name, String host, int port, int unitId) {
+        return new DeviceDefinition(name, Type.SDM630, host, port, unitId);
+    }
+
+    public DeviceDefinition withUnitId(int newUnitId) {
+        unitId = newUnitId;
+        return this;
+    }
+
+    public DeviceDefinition withRegisterBase(int newRegisterBase) {
+        registerBase = newRegisterBase;
+        return this;
+    }
+
+    /**
+     * @param newModels The SunSpec models to read (none = all models the device has).
+     */
+    public DeviceDefinition withModels(int... newModels) {
+        List<Integer> modelList = new ArrayList<>();
+        for (int model : newModels) {
+            modelList.add(model);
+        }
+        models = Collections.unmodifiableList(modelList);
+        return this;
+    }
+
+    /**
+     * @param newModuloMs The device is polled every time the clock is a multiple of this many milliseconds.
+     */
+    public DeviceDefinition withModuloMs(long newModuloMs) {
+        if (newModuloMs < 1) {
+            throw new IllegalArgumentException("The modulo must be at least 1 ms");
+        }
+        moduloMs = newModuloMs;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getUnitId() {
+        return unitId;
+    }
+
+    public int getRegisterBase() {
+        return registerBase;
+    }
+
+    public List<Integer> getModels() {
+        return models;
+    }
+
+    public long getModuloMs() {
+        return moduloMs;
+    }
+
+    /**
+     * @return All devices with the same gateway key share a single connection.
+     */
+    public String getGatewayKey() {
+        return host + ':' + port;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceDefinition{" +
+            "name='" + name + '\'' +
+            ", type=" + type +
+            ", gateway=" + getGatewayKey() +
+            ", unitId=" + unitId +
+            ", registerBase=" + registerBase +
+            ", models=" + models +
+            ", moduloMs=" + moduloMs +
+            '}';
+    }
+}
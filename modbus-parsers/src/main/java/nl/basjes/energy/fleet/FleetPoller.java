@@ -0,0 +1,267 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.fleet;
+
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import nl.basjes.energy.TickScheduler;
+import nl.basjes.energy.sdm630.SDM630Reader;
+import nl.basjes.energy.sdm630.SDM630Reader.SDM630Values;
+import nl.basjes.energy.sunspec.SunSpecFetcher;
+import nl.basjes.energy.sunspec.SunSpecModbusDataReader;
+import nl.basjes.modbus.ModBusDataReader;
+import nl.basjes.modbus.ModbusGateway;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls many devices; every device has its own thread that polls it on the aligned moments
+ * defined by its modulo.
+ * <ul>
+ *     <li>When running on Java 21 or newer these are virtual threads (so thousands of devices are cheap);
+ *         otherwise normal daemon threads are used. A different ThreadFactory can be provided.</li>
+ *     <li>All devices behind the same host and port share a single connection ({@link ModbusGateway}).</li>
+ *     <li>The number of devices that are polled at the same time via the same gateway is limited.</li>
+ *     <li>The results are delivered to a {@link SnapshotSink}.</li>
+ * </ul>
+ */
+public class FleetPoller implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(FleetPoller.class);
+
+    private final List<DeviceDefinition> devices;
+    private final SnapshotSink           sink;
+    private ThreadFactory                threadFactory                   = null;
+    private int                          maxConcurrentDevicesPerGateway  = 1;
+
+    private final Map<String, ModbusGateway> gateways      = new HashMap<>();
+    private final Map<String, Semaphore>     gatewayLimits = new HashMap<>();
+    private final List<Thread>               threads       = new ArrayList<>();
+    private volatile boolean                 running       = false;
+    private boolean                          usingVirtualThreads = false;
+
+    public FleetPoller(List<DeviceDefinition> devices, SnapshotSink sink) {
+        this.devices = Collections.unmodifiableList(new ArrayList<>(devices));
+        this.sink = sink;
+    }
+
+    /**
+     * @param newThreadFactory Creates the thread for each device (default: virtual threads if available).
+     */
+    public FleetPoller withThreadFactory(ThreadFactory newThreadFactory) {
+        threadFactory = newThreadFactory;
+        return this;
+    }
+
+    /**
+     * @param newMaxConcurrentDevicesPerGateway How many devices behind the same gateway may be polled at the same time.
+     */
+    public FleetPoller withMaxConcurrentDevicesPerGateway(int newMaxConcurrentDevicesPerGateway) {
+        if (newMaxConcurrentDevicesPerGateway < 1) {
+            throw new IllegalArgumentException("At least 1 device per gateway must be allowed");
+        }
+        maxConcurrentDevicesPerGateway = newMaxConcurrentDevicesPerGateway;
+        return this;
+    }
+
+    /**
+     * @return A factory for virtual threads or null if this JVM does not have them (before Java 21).
+     */
+    public static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        ThreadFactory factory = threadFactory;
+        if (factory == null) {
+            factory = virtualThreadFactory("FleetPoller-");
+            usingVirtualThreads = factory != null;
+            if (factory == null) {
+                factory = platformThreadFactory("FleetPoller-");
+            }
+        }
+
+        running = true;
+        for (DeviceDefinition device : devices) {
+            String gatewayKey = device.getGatewayKey();
+            ModbusGateway gateway = gateways.computeIfAbsent(gatewayKey,
+                key -> new ModbusGateway(new ModbusTCPMaster(device.getHost(), device.getPort())));
+            Semaphore limit = gatewayLimits.computeIfAbsent(gatewayKey,
+                key -> new Semaphore(maxConcurrentDevicesPerGateway, true));
+            Thread thread = factory.newThread(() -> poll(device, gateway, limit));
+            threads.add(thread);
+        }
+        threads.forEach(Thread::start);
+        LOG.info("Started polling {} devices via {} gateways", devices.size(), gateways.size());
+    }
+
+    /**
+     * @return True if the devices are polled using virtual threads.
+     */
+    public synchronized boolean isUsingVirtualThreads() {
+        return usingVirtualThreads;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void poll(DeviceDefinition device, ModbusGateway gateway, Semaphore limit) {
+        PolledDevice polledDevice = new PolledDevice(device, gateway);
+        TickScheduler.Tick tick = null;
+        while (running) {
+            final long timestamp;
+            try {
+                tick = TickScheduler.getDefault().awaitNextTick(device.getModuloMs(), tick);
+                if (tick.getSkipped() > 0 ||
+                    tick.getLatenessNanos() > TimeUnit.MILLISECONDS.toNanos(device.getModuloMs()) / 10) {
+                    LOG.debug("Polling {} started late: {}", device.getName(), tick);
+                }
+                timestamp = tick.getTimestamp();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!running) {
+                break;
+            }
+            try {
+                limit.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                Map<String, Object> values = polledDevice.poll();
+                sink.onSnapshot(device, timestamp, values);
+            } catch (Exception e) {
+                LOG.debug("Polling {} failed: {}", device.getName(), e.getMessage());
+                polledDevice.disconnect();
+                sink.onError(device, e);
+            } finally {
+                limit.release();
+            }
+        }
+        polledDevice.disconnect();
+    }
+
+    // The reader of a single device which is only created once the device could be reached.
+    private static final class PolledDevice {
+        private final DeviceDefinition device;
+        private final ModbusGateway    gateway;
+        private ModBusDataReader       reader         = null;
+        private SunSpecFetcher         sunSpecFetcher = null;
+
+        PolledDevice(DeviceDefinition device, ModbusGateway gateway) {
+            this.device = device;
+            this.gateway = gateway;
+        }
+
+        Map<String, Object> poll() throws Exception {
+            switch (device.getType()) {
+                case SUNSPEC:
+                    if (sunSpecFetcher == null) {
+                        // Needs the device to discover the models it has.
+                        SunSpecModbusDataReader dataReader =
+                            new SunSpecModbusDataReader(gateway, device.getRegisterBase(), device.getUnitId());
+                        reader = dataReader;
+                        SunSpecFetcher fetcher = new SunSpecFetcher(dataReader);
+                        if (device.getModels().isEmpty()) {
+                            fetcher.useAllModels();
+                        } else {
+                            device.getModels().forEach(fetcher::useModel);
+                        }
+                        sunSpecFetcher = fetcher;
+                    }
+                    sunSpecFetcher.refresh();
+                    return sunSpecFetcher.toHashMap();
+
+                case SDM630:
+                default:
+                    if (reader == null) {
+                        reader = new SDM630Reader(gateway, device.getUnitId());
+                    }
+                    SDM630Values values = ((SDM630Reader) reader).read();
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    values.toMap().forEach((key, value) -> result.put(key, value.getValue()));
+                    return result;
+            }
+        }
+
+        void disconnect() {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Stop polling and close all connections.
+     */
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        threads.forEach(Thread::interrupt);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (Thread thread : threads) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            try {
+                thread.join(Math.max(1, remainingMs));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        threads.clear();
+        gateways.values().forEach(ModbusGateway::close);
+        gateways.clear();
+        gatewayLimits.clear();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.fleet;
+
+import java.util.Map;
+
+/**
+ * Receives the results of the {@link FleetPoller}.
+ * It is called from the polling threads of many devices at the same time so it must be thread safe.
+ */
+public interface SnapshotSink {
+
+    /**
+     * @param device The device that was polled
+     * @param timestamp The (aligned) moment the poll was scheduled at (epoch milliseconds)
+     * @param values The values that were read
+     */
+    void onSnapshot(DeviceDefinition device, long timestamp, Map<String, Object> values);
+
+    /**
+     * Polling the device failed; the next poll will try again.
+     * @param device The device that was polled
+     * @param exception What went wrong
+     */
+    default void onError(DeviceDefinition device, Exception exception) {
+        // By default the failures are ignored.
+    }
+}
@@ -18,7 +18,10 @@
 package nl.basjes.energy.sdm630;
 
 import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.facade.AbstractModbusMaster;
+import nl.basjes.energy.TickScheduler;
+import nl.basjes.energy.TickScheduler.Tick;
 import nl.basjes.modbus.ModBusDataReader;
 
 import java.nio.ByteBuffer;
@@ -29,8 +32,6 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import static nl.basjes.energy.Utils.waitTillNextTimeModulo;
-
 public class SDM630Reader extends ModBusDataReader {
 
     public static class Field {
@@ -159,16 +160,72 @@ public class SDM630Reader extends ModBusDataReader {
         fields.add(new Field(30381,  191, "L3 total kVArh",                     "",          "kVArh",        0x01, 0x7c));
     }
 
+    private volatile Tick lastTick = null;
+
+    /**
+     * Wait until the clock is the next multiple of the modulo and then read the values.
+     * The timestamp of the values is that aligned moment.
+     * @param moduloMs The modulo in milliseconds
+     * @return The values
+     * @throws ModbusException In case of problems or when interrupted while waiting.
+     */
     public SDM630Values read(long moduloMs) throws ModbusException {
-        long refreshAt = waitTillNextTimeModulo(moduloMs);
+        final Tick tick;
+        try {
+            tick = TickScheduler.getDefault().awaitNextTick(moduloMs, lastTick);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Interrupted while waiting for the next read");
+        }
+        lastTick = tick;
         SDM630Values values = read();
-        values.setTimestamp(refreshAt);
+        values.setTimestamp(tick.getTimestamp());
         return values;
     }
 
+    /**
+     * @return The tick of the last read(moduloMs) (which includes how late it was) or null if there was none.
+     */
+    public Tick getLastTick() {
+        return lastTick;
+    }
+
+    private static final int REGISTER_COUNT = 382;
+
+    private boolean              reuseBuffers = false;
+    private final SDM630Values[] reusableValues = new SDM630Values[2];
+    private int                  nextReusableValues = 0;
+
+    /**
+     * When enabled every read alternates between two preallocated SDM630Values (double buffering)
+     * instead of allocating new ones. The values returned by a read remain unchanged until the
+     * second read after it; so the previous values can still be compared with the latest values.
+     * A failed read never changes the values that were returned before.
+     * @param reuseBuffers Enable or disable the reuse
+     */
+    public void setReuseBuffers(boolean reuseBuffers) {
+        this.reuseBuffers = reuseBuffers;
+    }
+
+    public boolean isReuseBuffers() {
+        return reuseBuffers;
+    }
+
     public SDM630Values read() throws ModbusException {
-        final byte[] rawRegisterBytes = getRawRegisterBytes(0, 382);
-        return new SDM630Values(rawRegisterBytes);
+        if (!reuseBuffers) {
+            final byte[] rawRegisterBytes = getRawRegisterBytes(0, REGISTER_COUNT);
+            return new SDM630Values(rawRegisterBytes);
+        }
+
+        SDM630Values values = reusableValues[nextReusableValues];
+        if (values == null) {
+            values = new SDM630Values(new byte[REGISTER_COUNT * 2]);
+            reusableValues[nextReusableValues] = values;
+        }
+        getRawRegisterBytes(0, REGISTER_COUNT, values.rawRegisterBytes, 0);
+        values.timestamp = System.currentTimeMillis();
+        nextReusableValues = 1 - nextReusableValues;
+        return values;
     }
 
     public static class SDM630Values {
@@ -204,6 +261,18 @@ public class SDM630Reader extends ModBusDataReader {
                 this.value = value;
             }
 
+            public String getName() {
+                return name;
+            }
+
+            public String getUnit() {
+                return unit;
+            }
+
+            public Float getValue() {
+                return value;
+            }
+
             @Override
             public String toString() {
                 return "Value: " + "'" + name + "\' = " + value + " " + unit;
@@ -0,0 +1,93 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import java.util.BitSet;
+
+/**
+ * The registers that are different between two versions of the raw data of a model.
+ */
+public class ChangedRegisters {
+    private final BitSet changed = new BitSet();
+    private boolean      all     = false;
+
+    /**
+     * Determine the changed registers between the previous and the current data.
+     * @param previous The raw bytes of the previous data (null means everything changed)
+     * @param current The raw bytes of the current data
+     * @return this
+     */
+    public ChangedRegisters compare(byte[] previous, byte[] current) {
+        changed.clear();
+        all = previous == null || previous.length != current.length;
+        if (all) {
+            return this;
+        }
+        int length = current.length & ~1;
+        int i = 0;
+        while (i < length) {
+            // Skip the unchanged part as fast as possible
+            while (i < length && previous[i] == current[i] && previous[i + 1] == current[i + 1]) {
+                i += 2;
+            }
+            int start = i;
+            while (i < length && (previous[i] != current[i] || previous[i + 1] != current[i + 1])) {
+                i += 2;
+            }
+            if (i > start) {
+                changed.set(start / 2, i / 2);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Mark all registers as changed.
+     * @return this
+     */
+    public ChangedRegisters all() {
+        changed.clear();
+        all = true;
+        return this;
+    }
+
+    /**
+     * @param register The first register (relative to the start of the model)
+     * @param len The number of registers
+     * @return true if any of these registers changed
+     */
+    public boolean isChanged(int register, int len) {
+        if (all) {
+            return true;
+        }
+        int next = changed.nextSetBit(register);
+        return next >= 0 && next < register + len;
+    }
+
+    public boolean isEmpty() {
+        return !all && changed.isEmpty();
+    }
+
+    /**
+     * @return The number of changed registers (-1 if everything changed)
+     */
+    public int count() {
+        return all ? -1 : changed.cardinality();
+    }
+}
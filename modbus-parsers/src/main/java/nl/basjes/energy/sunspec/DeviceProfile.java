@@ -0,0 +1,116 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import nl.basjes.energy.sunspec.SunSpecModbusDataReader.ModelLocation;
+import nl.basjes.modbus.RegisterReadPlan;
+import nl.basjes.modbus.RegisterReadPlan.RegisterRange;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Everything that is the same for all devices of the same type (manufacturer, model, options and firmware version):
+ * the locations of the models and the plans to read them.
+ * A profile is shared by all matching devices (see {@link DeviceProfiles}) and must never be modified.
+ */
+public final class DeviceProfile {
+    private final String                      identity;
+    private final int                         startBase;
+    private final Map<Integer, ModelLocation> modelLocations;
+    private final int                         modelListEnd;
+
+    // The read plans (which only depend on the requested ranges and the request size) for all devices of this type.
+    private final ConcurrentMap<String, RegisterReadPlan> readPlans = new ConcurrentHashMap<>();
+
+    DeviceProfile(String identity, int startBase, Map<Integer, ModelLocation> modelLocations) {
+        this.identity       = identity;
+        this.startBase      = startBase;
+        this.modelLocations = Collections.unmodifiableMap(new TreeMap<>(modelLocations));
+
+        int end = startBase + 2;
+        for (ModelLocation location : modelLocations.values()) {
+            end = Math.max(end, location.registerBase + location.len);
+        }
+        this.modelListEnd = end;
+    }
+
+    /**
+     * @return The manufacturer, model, options and version of the device (from model 1).
+     */
+    public String getIdentity() {
+        return identity;
+    }
+
+    public int getStartBase() {
+        return startBase;
+    }
+
+    public Map<Integer, ModelLocation> getModelLocations() {
+        return modelLocations;
+    }
+
+    /**
+     * @return The register directly after the last model (where the end of the model list must be).
+     */
+    public int getModelListEnd() {
+        return modelListEnd;
+    }
+
+    boolean hasSameLayout(DeviceProfile other) {
+        if (startBase != other.startBase || modelListEnd != other.modelListEnd ||
+            modelLocations.size() != other.modelLocations.size()) {
+            return false;
+        }
+        for (ModelLocation location : modelLocations.values()) {
+            ModelLocation otherLocation = other.modelLocations.get(location.id);
+            if (otherLocation == null ||
+                otherLocation.registerBase != location.registerBase ||
+                otherLocation.len != location.len) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The plan to read a set of register ranges; all devices of this type share the same plan.
+     * @param ranges The register ranges that must be retrieved.
+     * @param maxRegistersPerRequest The maximum number of registers in a single request.
+     * @return The plan
+     */
+    public RegisterReadPlan getReadPlan(List<RegisterRange> ranges, int maxRegistersPerRequest) {
+        StringBuilder key = new StringBuilder(16 + ranges.size() * 12);
+        key.append(maxRegistersPerRequest);
+        for (RegisterRange range : ranges) {
+            key.append(';').append(range.start).append('+').append(range.len);
+        }
+        return readPlans.computeIfAbsent(key.toString(),
+            k -> RegisterReadPlan.create(ranges, maxRegistersPerRequest, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceProfile{" + identity + " @ " + startBase + " : " + modelLocations.keySet() + '}';
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The known device profiles. Readers that share this find the models of a device of a known type
+ * by only reading model 1 and checking the end of the model list instead of discovering all models.
+ * <p>
+ * The same type of device can have a different set of models (for example when an optional meter is connected),
+ * so an identity can have several profiles.
+ */
+public class DeviceProfiles {
+    private final ConcurrentMap<String, List<DeviceProfile>> profiles = new ConcurrentHashMap<>();
+
+    private static String key(int startBase, String identity) {
+        return String.valueOf(startBase) + '|' + identity;
+    }
+
+    /**
+     * @return All known profiles for this type of device (possibly empty).
+     */
+    public List<DeviceProfile> getProfiles(int startBase, String identity) {
+        List<DeviceProfile> result = profiles.get(key(startBase, identity));
+        return result == null ? Collections.emptyList() : result;
+    }
+
+    /**
+     * @return The known profile with the same layout (which is then shared) or else the provided profile (which is added).
+     */
+    public DeviceProfile intern(DeviceProfile profile) {
+        List<DeviceProfile> candidates = profiles.computeIfAbsent(
+            key(profile.getStartBase(), profile.getIdentity()), k -> new CopyOnWriteArrayList<>());
+        synchronized (candidates) {
+            for (DeviceProfile candidate : candidates) {
+                if (candidate.hasSameLayout(profile)) {
+                    return candidate;
+                }
+            }
+            candidates.add(profile);
+            return profile;
+        }
+    }
+
+    /**
+     * @return The number of different profiles.
+     */
+    public int size() {
+        int size = 0;
+        for (List<DeviceProfile> candidates : profiles.values()) {
+            size += candidates.size();
+        }
+        return size;
+    }
+}
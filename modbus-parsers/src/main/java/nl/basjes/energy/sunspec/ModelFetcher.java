@@ -21,7 +21,11 @@ import com.ghgande.j2mod.modbus.ModbusException;
 import nl.basjes.energy.sunspec.SunSpecModbusDataReader.ModelLocation;
 
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public abstract class ModelFetcher extends ModelParser {
 
@@ -40,6 +44,8 @@ public abstract class ModelFetcher extends ModelParser {
 
     private long   currentDataTimestamp = 0;
     private byte[] currentData = null;
+    // The data is double buffered: a refresh fills this one and only then swaps it with the current data.
+    private byte[] nextData    = null;
 
     public void refresh() throws ModbusException {
         if (dataReader == null) {
@@ -47,13 +53,46 @@ public abstract class ModelFetcher extends ModelParser {
         }
         try {
             dataReader.connect();
-            currentData = dataReader.getRawModel(modelLocation);
-            currentDataTimestamp = System.currentTimeMillis();
+            dataReader.getRawRegisterBytes(modelLocation.registerBase, modelLocation.len, getNextDataBuffer(), 0);
+            swapDataBuffers(System.currentTimeMillis());
         } catch (Exception e) {
             throw new ModbusException("Unable to refresh the data", e);
         }
     }
 
+    ModelLocation getModelLocation() {
+        return modelLocation;
+    }
+
+    /**
+     * The buffer into which the next version of the data must be retrieved.
+     * Used when the data of this model is retrieved together with other models.
+     */
+    byte[] getNextDataBuffer() {
+        if (nextData == null || nextData.length != modelLocation.len * 2) {
+            nextData = new byte[modelLocation.len * 2];
+        }
+        return nextData;
+    }
+
+    /**
+     * @return The current data without retrieving it if there is none yet (may be null).
+     */
+    byte[] getCachedData() {
+        return currentData;
+    }
+
+    /**
+     * Make the completely retrieved next buffer the current data.
+     * The previous current data is reused as the buffer for the next refresh.
+     */
+    void swapDataBuffers(long timestamp) {
+        byte[] previousData = currentData;
+        currentData = nextData;
+        nextData = previousData;
+        currentDataTimestamp = timestamp;
+    }
+
     public long getCurrentDataTimestamp() throws ModbusException {
         if (dataReader == null) {
             throw new ModbusException("No Modbus connection available");
@@ -83,12 +122,86 @@ public abstract class ModelFetcher extends ModelParser {
         }
     }
 
+    // The values decoded from the data in decodedData.
+    // Only the values of which the registers changed are decoded again.
+    private byte[]              decodedData      = null;
+    private Map<String, Object> decodedValues    = null;
+    private ChangedRegisters    changedRegisters = null;
+    private Set<PointKey>       changedPoints    = null;
+
+    /**
+     * Decode the values of which the registers changed since the previous time the values were decoded.
+     * Every call that decodes the values (also toHashMap) starts a new set of changes.
+     * @return The keys of the values that were changed, added or removed (the first time this is all values).
+     * @throws ModbusException In case of problems retrieving the data
+     */
+    public Set<PointKey> updateDecodedValues() throws ModbusException {
+        byte[] data = getCurrentData();
+        if (changedRegisters == null) {
+            changedRegisters = new ChangedRegisters();
+            changedPoints    = new LinkedHashSet<>();
+        }
+        changedPoints.clear();
+
+        if (decodedValues == null || decodedData.length != data.length) {
+            decodedValues = new LinkedHashMap<>();
+            decodedData   = new byte[data.length];
+            changedRegisters.all();
+        } else if (changedRegisters.compare(decodedData, data).isEmpty()) {
+            return Collections.unmodifiableSet(changedPoints);
+        }
+
+        try {
+            updateHashMap(data, changedRegisters, decodedValues, changedPoints);
+        } catch (Exception e) {
+            // Start from scratch next time
+            decodedValues = null;
+            throw new ModbusException("Unable to decode the data", e);
+        }
+        System.arraycopy(data, 0, decodedData, 0, data.length);
+        return Collections.unmodifiableSet(changedPoints);
+    }
+
+    /**
+     * @return The keys of the values that were changed, added or removed by the last update of the decoded values.
+     */
+    public Set<PointKey> getChangedPoints() {
+        return changedPoints == null ? Collections.emptySet() : Collections.unmodifiableSet(changedPoints);
+    }
+
+    /**
+     * @return The decoded values of the current data (only the changed values are decoded again).
+     *         This map is updated by the next refresh so it must not be retained.
+     * @throws ModbusException In case of problems
+     */
+    public Map<String, Object> getDecodedValues() throws ModbusException {
+        updateDecodedValues();
+        return Collections.unmodifiableMap(decodedValues);
+    }
+
+    // The decoded values as they were left by the last updateDecodedValues (no new decoding is done).
+    Map<String, Object> getLastDecodedValues() {
+        return decodedValues == null ? Collections.emptyMap() : Collections.unmodifiableMap(decodedValues);
+    }
+
     public Map<String, Object> toHashMap() {
         try {
-            return toHashMap(getCurrentData());
+            return new LinkedHashMap<>(getDecodedValues());
         } catch (Exception e) {
             return Collections.emptyMap();
         }
     }
 
+    /**
+     * @return The keys of all values that toHashMap can produce for the current data (in the same order).
+     * @throws ModbusException In case of problems retrieving the data
+     */
+    public List<PointKey> getPointKeys() throws ModbusException {
+        return getPointKeys(getCurrentData());
+    }
+
+    public void decodeAll(PointSink sink) throws ModbusException {
+        decodeAll(getCurrentData(), sink);
+    }
+
 }
@@ -0,0 +1,58 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+/**
+ * The descriptive information of a SunSpec model.
+ * This is available without loading the (large) class of the parser of the model.
+ */
+public final class ModelMetadata {
+    private final int    id;
+    private final String label;
+    private final String description;
+    private final String notes;
+
+    public ModelMetadata(int id, String label, String description, String notes) {
+        this.id          = id;
+        this.label       = label;
+        this.description = description;
+        this.notes       = notes;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getNotes() {
+        return notes;
+    }
+
+    @Override
+    public String toString() {
+        return "Model " + id + " : " + label;
+    }
+}
@@ -17,14 +17,16 @@
 
 package nl.basjes.energy.sunspec;
 
-import org.apache.commons.lang3.NotImplementedException;
 
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
 
@@ -37,8 +39,118 @@ public abstract class ModelParser {
     public String getNotes()       { return ""; };
 
     public abstract Map<String, Object> toHashMap(byte[] dataBlock) throws Exception;
+
+    /**
+     * Update a map that was made by toHashMap with only the values of which the registers
+     * (or the associated scale factor) changed.
+     * @param dataBlock The current raw data
+     * @param changed The registers that changed since the data from which the map was made
+     * @param result The map that is updated
+     * @param changedPoints Receives the keys of all values that were changed, added or removed
+     * @throws Exception In case of problems
+     */
+    public abstract void updateHashMap(byte[] dataBlock, ChangedRegisters changed,
+                                       Map<String, Object> result, Set<PointKey> changedPoints) throws Exception;
+
+    protected static void updateValue(Map<String, Object> result, Set<PointKey> changedPoints, PointKey key, Object value) {
+        if (value == null) {
+            if (result.remove(key.getName()) != null) {
+                changedPoints.add(key);
+            }
+            return;
+        }
+        Object previous = result.put(key.getName(), value);
+        if (!value.equals(previous)) {
+            changedPoints.add(key);
+        }
+    }
+
+    /**
+     * @return The keys of the points in the fixed block (in the same order as toHashMap).
+     */
+    public abstract List<PointKey> getFixedPointKeys();
+
+    /**
+     * @return The keys of the points in the repeating block (in the same order as toHashMap).
+     */
+    public abstract List<PointKey.Repeating> getRepeatingPointKeys();
+
+    /**
+     * @param dataBlock The registers of the model
+     * @return The number of repeating blocks in the data.
+     */
+    public abstract int getRepeatCount(byte[] dataBlock);
+
+    /**
+     * @param dataBlock The registers of the model
+     * @return The keys of all values that toHashMap can produce for this data (in the same order).
+     */
+    public List<PointKey> getPointKeys(byte[] dataBlock) {
+        List<PointKey>           fixedKeys     = getFixedPointKeys();
+        List<PointKey.Repeating> repeatingKeys = getRepeatingPointKeys();
+        int                      repeatCount   = getRepeatCount(dataBlock);
+
+        List<PointKey> result = new ArrayList<>(fixedKeys.size() + repeatCount * repeatingKeys.size());
+        result.addAll(fixedKeys);
+        for (int index = 0; index < repeatCount; index++) {
+            for (PointKey.Repeating repeatingKey : repeatingKeys) {
+                result.add(repeatingKey.get(index));
+            }
+        }
+        return result;
+    }
+
     public abstract String toString(byte[] dataBlock) throws Exception;
 
+    /**
+     * Decode all numerical points in a single pass (every scale factor is decoded only once)
+     * and pass them to the sink without creating any objects.
+     * @param dataBlock The registers of the model
+     * @param sink Receives all values
+     */
+    public abstract void decodeAll(byte[] dataBlock, PointSink sink);
+
+    /**
+     * @return The columnar layout of the numerical points of this model (see {@link ModelSnapshot}).
+     */
+    public abstract ModelSchema getSchema();
+
+    protected static void emitLong(PointSink sink, int slot, long value) {
+        if (value == NOT_IMPLEMENTED) {
+            sink.onMissing(slot);
+        } else {
+            sink.onLong(slot, value);
+        }
+    }
+
+    protected static void emitDouble(PointSink sink, int slot, double value) {
+        if (Double.isNaN(value)) {
+            sink.onMissing(slot);
+        } else {
+            sink.onDouble(slot, value);
+        }
+    }
+
+    // ===================================================================================================
+    // All decoders exist in two forms:
+    // - The boxed form (like int16) which returns null if the value is not implemented.
+    // - The primitive form (like int16AsLong) which does not allocate anything and returns
+    //   NOT_IMPLEMENTED (for a long) or NaN (for a double) if the value is not implemented.
+
+    /**
+     * The value returned by the primitive (AsLong) decoders if the value is not implemented.
+     * This is the same value as the 'Not Implemented' of an int64 and no other type can produce it.
+     */
+    public static final long NOT_IMPLEMENTED = Long.MIN_VALUE;
+
+    public static boolean isImplemented(long value) {
+        return value != NOT_IMPLEMENTED;
+    }
+
+    public static boolean isImplemented(double value) {
+        return !Double.isNaN(value);
+    }
+
     // All format specs are from SunSpec-Information-Models-12041.pdf from https://sunspec.org/download/
 
     // ===================================================================================================
@@ -48,12 +160,26 @@ public abstract class ModelParser {
     // All signed values are represented using two’s-compliment format.
     // -----
 
+    // The decode kernels: big-endian loads of the raw register bytes.
+    // These are small enough to be inlined into every decoder and contain no allocations or loops.
+
+    static int getShort(byte[] block, int byteNo) {
+        return ((block[byteNo] & 255) << 8) | (block[byteNo + 1] & 255);
+    }
+
+    static int getInt(byte[] block, int byteNo) {
+        return ((block[byteNo]     & 255) << 24) |
+               ((block[byteNo + 1] & 255) << 16) |
+               ((block[byteNo + 2] & 255) << 8)  |
+                (block[byteNo + 3] & 255);
+    }
+
+    static long getLong(byte[] block, int byteNo) {
+        return ((long) getInt(block, byteNo) << 32) | (getInt(block, byteNo + 4) & 0xFFFFFFFFL);
+    }
+
     private int get16bits(byte[] block, int registerAddress) {
-        int byteNo = registerAddress * 2;
-        int value = 0;
-        value |= (block[byteNo] & 255) << 8;
-        value |= (block[byteNo + 1] & 255);
-        return value;
+        return getShort(block, registerAddress * 2);
     }
 
     // int16 Range: -32767 ... 32767 Not Implemented: 0x8000
@@ -67,6 +193,14 @@ public abstract class ModelParser {
         return (short) value;
     }
 
+    public long int16AsLong(byte[] block, int registerAddress) {
+        int value = get16bits(block, registerAddress);
+        if (value == 0x8000) {
+            return NOT_IMPLEMENTED;
+        }
+        return (short) value;
+    }
+
     // uint16 Range: 0 ... 65534 Not Implemented: 0xFFFF
     public Integer uint16(byte[] block, int registerAddress) {
         int value = get16bits(block, registerAddress);
@@ -84,22 +218,42 @@ public abstract class ModelParser {
         return value;
     }
 
+    public long uint16AsLong(byte[] block, int registerAddress) {
+        int value = get16bits(block, registerAddress);
+        if (value == 0xFFFF || value == 0x8000) {
+            return NOT_IMPLEMENTED;
+        }
+        return value;
+    }
+
     // acc16 Range: 0 ... 65535 Not Accumulated: 0x0000
     // NOTE: it is up to the master to detect rollover of accumulated values.
     public Integer acc16(byte[] block, int registerAddress) {
         return uint16(block, registerAddress);
     }
 
+    public long acc16AsLong(byte[] block, int registerAddress) {
+        return uint16AsLong(block, registerAddress);
+    }
+
     // count is NOT documented. From the actual use we assume it is 1 register accumulator
     public Integer count(byte[] block, int registerAddress) {
         return uint16(block, registerAddress);
     }
 
+    public long countAsLong(byte[] block, int registerAddress) {
+        return uint16AsLong(block, registerAddress);
+    }
+
     // enum16 Range: 0 ... 65534 Not Implemented: 0xFFFF
     public Integer enum16(byte[] block, int registerAddress) {
         return uint16(block, registerAddress);
     }
 
+    public long enum16AsLong(byte[] block, int registerAddress) {
+        return uint16AsLong(block, registerAddress);
+    }
+
     // bitfield16 Range: 0 ... 0x7FFF Not Implemented: 0xFFFF
     // NOTE: if the most significant bit in a bitfield is set, all other bits shall be ignored.
     public Integer bitfield16(byte[] block, int registerAddress) {
@@ -111,6 +265,14 @@ public abstract class ModelParser {
         return value;
     }
 
+    public long bitfield16AsLong(byte[] block, int registerAddress) {
+        int value = get16bits(block, registerAddress);
+        if ((value & 0xA000) == 0xA000) {
+            return NOT_IMPLEMENTED;
+        }
+        return value;
+    }
+
     // pad Range: 0x8000 Always returns 0x8000
     public Integer pad(byte[] block, int registerAddress) {
         int value = get16bits(block, registerAddress);
@@ -126,61 +288,88 @@ public abstract class ModelParser {
     // 32-bit integers are stored using two registers in big-endian order
     // -----
 
+    // The unsigned 32 bit value (so 0 ... 0xFFFFFFFF)
     private long get32bits(byte[] block, int registerAddress) {
-        int byteNo = registerAddress * 2;
-        long value = 0;
-        value |= (block[byteNo] & 255) << 24;
-        value |= (block[byteNo + 1] & 255) << 16;
-        value |= (block[byteNo + 2] & 255) << 8;
-        value |= (block[byteNo + 3] & 255);
-        return value;
+        return getInt(block, registerAddress * 2) & 0xFFFFFFFFL;
     }
 
     // int32 Range: -2147483647 ... 2147483647 Not Implemented: 0x80000000
     public Integer int32(byte[] block, int registerAddress) {
-        long value = get32bits(block, registerAddress);
+        int value = getInt(block, registerAddress * 2);
 
         if (value == 0x80000000) {
             return null;
         }
 
-        return (int) value;
+        return value;
+    }
+
+    public long int32AsLong(byte[] block, int registerAddress) {
+        int value = getInt(block, registerAddress * 2);
+        if (value == 0x80000000) {
+            return NOT_IMPLEMENTED;
+        }
+        return value;
     }
 
     // uint32 Range: 0 ... 4294967294 Not Implemented: 0xFFFFFFFF
     public Long uint32(byte[] block, int registerAddress) {
         long value = get32bits(block, registerAddress);
 
-        if (value == 0xFFFFFFFF) {
+        if (value == 0xFFFFFFFFL) {
             return null;
         }
 
         return value;
     }
 
+    public long uint32AsLong(byte[] block, int registerAddress) {
+        long value = get32bits(block, registerAddress);
+        if (value == 0xFFFFFFFFL) {
+            return NOT_IMPLEMENTED;
+        }
+        return value;
+    }
+
     // acc32 Range: 0 ... 4294967295 Not Accumulated: 0x00000000
     // NOTE: it is up to the master to detect rollover of accumulated values.
     public Long acc32(byte[] block, int registerAddress) {
         return uint32(block, registerAddress);
     }
 
+    public long acc32AsLong(byte[] block, int registerAddress) {
+        return uint32AsLong(block, registerAddress);
+    }
+
     // enum32 Range: 0 ... 4294967294 Not Implemented: 0xFFFFFFFF
     public Long enum32(byte[] block, int registerAddress) {
         return uint32(block, registerAddress);
     }
 
+    public long enum32AsLong(byte[] block, int registerAddress) {
+        return uint32AsLong(block, registerAddress);
+    }
+
     // bitfield32 Range: 0 ... 0x7FFFFFFF Not Implemented: 0xFFFFFFFF
     // NOTE: if the most significant bit in a bitfield is set, all other bits shall be ignored.
     public Long bitfield32(byte[] block, int registerAddress) {
         long value = get32bits(block, registerAddress);
 
-        if ((value & 0x80000000) == 0x80000000) {
+        if ((value & 0x80000000L) == 0x80000000L) {
             return null;
         }
 
         return value;
     }
 
+    public long bitfield32AsLong(byte[] block, int registerAddress) {
+        long value = get32bits(block, registerAddress);
+        if ((value & 0x80000000L) == 0x80000000L) {
+            return NOT_IMPLEMENTED;
+        }
+        return value;
+    }
+
     private static final byte[] NOT_CONFIGURES_IPV4 = {0, 0, 0, 0};
 
     // ipaddr 32 bit IPv4 address Not Configured: 0x00000000
@@ -206,13 +395,7 @@ public abstract class ModelParser {
     // -----
 
     private long get64bits(byte[] block, int registerAddress) {
-        int byteNo = registerAddress * 2;
-        long value = 0;
-        for (int i = 0; i < 8; i++) {
-            value |= (block[byteNo++] & 255);
-            value <<= 8;
-        }
-        return value;
+        return getLong(block, registerAddress * 2);
     }
 
     // int64 Range: -9223372036854775807 ... 9223372036854775807 Not Implemented: 0x8000000000000000
@@ -226,6 +409,11 @@ public abstract class ModelParser {
         return value;
     }
 
+    public long int64AsLong(byte[] block, int registerAddress) {
+        // The 'Not Implemented' value of an int64 is the same as NOT_IMPLEMENTED
+        return get64bits(block, registerAddress);
+    }
+
     // uint64: Present in specification. Undocumented,  Not used.
 //    public Long uint64(byte[] block, int registerAddress) {
 //        return int64(block, registerAddress);
@@ -246,6 +434,14 @@ public abstract class ModelParser {
         return value;
     }
 
+    public long acc64AsLong(byte[] block, int registerAddress) {
+        long value = get64bits(block, registerAddress);
+        if (value < 0) {
+            return NOT_IMPLEMENTED;
+        }
+        return value;
+    }
+
 
     // ===================================================================================================
 
@@ -343,8 +539,33 @@ public abstract class ModelParser {
     // Floating point values are 32 bits and encoded according to the IEEE 754 floating point standard.
     // float32 Range: see IEEE 754 Not Implemented: 0x7FC00000 (NaN)
 
+    // The not implemented value is a NaN, any other NaN is treated the same way.
+    // The primitive forms return the NaN which is what isImplemented(double) checks.
+
     public Float float32(byte[] block, int registerAddress) {
-        throw new NotImplementedException("FIXME: Implement float32"); // FIXME: Implement float32
+        float value = Float.intBitsToFloat(getInt(block, registerAddress * 2));
+        if (Float.isNaN(value)) {
+            return null;
+        }
+        return value;
+    }
+
+    public double float32AsDouble(byte[] block, int registerAddress) {
+        return Float.intBitsToFloat(getInt(block, registerAddress * 2));
+    }
+
+    // float64 Range: see IEEE 754 Not Implemented: 0x7FF8000000000000 (NaN)
+
+    public Double float64(byte[] block, int registerAddress) {
+        double value = Double.longBitsToDouble(getLong(block, registerAddress * 2));
+        if (Double.isNaN(value)) {
+            return null;
+        }
+        return value;
+    }
+
+    public double float64AsDouble(byte[] block, int registerAddress) {
+        return Double.longBitsToDouble(getLong(block, registerAddress * 2));
     }
 
     // Scale Factors
@@ -368,6 +589,14 @@ public abstract class ModelParser {
         return value;
     }
 
+    public long sunssfAsLong(byte[] block, int registerAddress) {
+        long value = int16AsLong(block, registerAddress);
+        if (value == NOT_IMPLEMENTED || -10 > value || value > 10) {
+            return NOT_IMPLEMENTED; // Too far away
+        }
+        return value;
+    }
+
     private Double scale(double value, Short scale) {
         if (scale == null) {
             // If no scale is available we simply return the unmodified base value
@@ -407,6 +636,35 @@ public abstract class ModelParser {
         return scale((double)value, scale);
     }
 
+    /**
+     * @param value The raw value (or NOT_IMPLEMENTED)
+     * @param scale The scale factor (or NOT_IMPLEMENTED)
+     * @return The scaled value, the unmodified value if there is no scale factor or NaN if the value is not implemented.
+     */
+    public double scaledValue(long value, long scale) {
+        if (value == NOT_IMPLEMENTED) {
+            return Double.NaN;
+        }
+        if (scale == NOT_IMPLEMENTED) {
+            // If no scale is available we simply return the unmodified base value
+            return value;
+        }
+        if (scale >= -MAX_SCALE && scale <= MAX_SCALE) {
+            return ((double) value) * POWERS_OF_TEN[(int) scale + MAX_SCALE];
+        }
+        return ((double) value) * (Math.pow(10, scale));
+    }
+
+    // The valid range of a sunssf
+    private static final int      MAX_SCALE     = 10;
+    // Filled with Math.pow so the results are exactly the same as those of calculateScaledValue.
+    private static final double[] POWERS_OF_TEN = new double[2 * MAX_SCALE + 1];
+    static {
+        for (int scale = -MAX_SCALE; scale <= MAX_SCALE; scale++) {
+            POWERS_OF_TEN[scale + MAX_SCALE] = Math.pow(10, scale);
+        }
+    }
+
     private static boolean strictMode = false;
 
     /**
@@ -0,0 +1,125 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The columnar layout of a SunSpec model: every numerical point has a fixed slot.
+ * The slots are in the same order as the points are passed by {@link ModelParser#decodeAll(byte[], PointSink)}.
+ */
+public final class ModelSchema {
+    private final int       modelId;
+    private final String[]  fixedPoints;
+    private final boolean[] fixedIsDouble;
+    private final String[]  repeatingPoints;
+    private final boolean[] repeatingIsDouble;
+
+    private final Map<String, Integer> fixedSlots     = new HashMap<>();
+    private final Map<String, Integer> repeatingSlots = new HashMap<>();
+
+    public ModelSchema(int modelId,
+                       String[] fixedPoints,     boolean[] fixedIsDouble,
+                       String[] repeatingPoints, boolean[] repeatingIsDouble) {
+        this.modelId           = modelId;
+        this.fixedPoints       = fixedPoints;
+        this.fixedIsDouble     = fixedIsDouble;
+        this.repeatingPoints   = repeatingPoints;
+        this.repeatingIsDouble = repeatingIsDouble;
+        for (int slot = 0; slot < fixedPoints.length; slot++) {
+            fixedSlots.put(fixedPoints[slot], slot);
+        }
+        for (int slot = 0; slot < repeatingPoints.length; slot++) {
+            repeatingSlots.put(repeatingPoints[slot], slot);
+        }
+    }
+
+    public int getModelId() {
+        return modelId;
+    }
+
+    public int getFixedSlotCount() {
+        return fixedPoints.length;
+    }
+
+    public int getRepeatingSlotCount() {
+        return repeatingPoints.length;
+    }
+
+    public List<String> getFixedPoints() {
+        return Collections.unmodifiableList(Arrays.asList(fixedPoints));
+    }
+
+    public List<String> getRepeatingPoints() {
+        return Collections.unmodifiableList(Arrays.asList(repeatingPoints));
+    }
+
+    /**
+     * @return The SunSpec id of the point in this slot of the fixed block (like "W").
+     */
+    public String getFixedPoint(int slot) {
+        return fixedPoints[slot];
+    }
+
+    public String getRepeatingPoint(int slot) {
+        return repeatingPoints[slot];
+    }
+
+    /**
+     * @param pointId The SunSpec id of a point in the fixed block (like "W")
+     * @return The slot of this point or -1 if it is not part of the schema.
+     */
+    public int getFixedSlot(String pointId) {
+        Integer slot = fixedSlots.get(pointId);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * @param pointId The SunSpec id of a point in the repeating block
+     * @return The slot of this point or -1 if it is not part of the schema.
+     */
+    public int getRepeatingSlot(String pointId) {
+        Integer slot = repeatingSlots.get(pointId);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * @return true if the value of the slot is a (scaled or floating point) double, false if it is an integer.
+     */
+    public boolean isFixedDouble(int slot) {
+        return fixedIsDouble[slot];
+    }
+
+    public boolean isRepeatingDouble(int slot) {
+        return repeatingIsDouble[slot];
+    }
+
+    @Override
+    public String toString() {
+        return "ModelSchema{" +
+            "modelId=" + modelId +
+            ", fixedPoints=" + Arrays.toString(fixedPoints) +
+            ", repeatingPoints=" + Arrays.toString(repeatingPoints) +
+            '}';
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A columnar snapshot of the numerical values of a single model of a single device.
+ * The values are stored in arrays indexed by the slot from the {@link ModelSchema}
+ * and the values of the repeating blocks are stored as structure of arrays (an array per slot
+ * indexed by the repeat index). A snapshot can be reused for every poll without allocating.
+ * <p>
+ * Usage: {@code modelFetcher.decodeAll(snapshot)} or {@code parser.decodeAll(data, snapshot)}.
+ */
+public class ModelSnapshot implements PointSink {
+    private final ModelSchema schema;
+
+    private long timestamp = 0;
+
+    private final long[]   longs;
+    private final double[] doubles;
+    private final BitSet   present;
+
+    private int        repeatCount = 0;
+    private long[][]   repeatingLongs;
+    private double[][] repeatingDoubles;
+    private BitSet[]   repeatingPresent;
+
+    // The repeat index of the block that is being decoded (-1 = the fixed block)
+    private int currentIndex = -1;
+
+    public ModelSnapshot(ModelSchema schema) {
+        this.schema = schema;
+        longs   = new long[schema.getFixedSlotCount()];
+        doubles = new double[schema.getFixedSlotCount()];
+        present = new BitSet(schema.getFixedSlotCount());
+
+        int repeatingSlots = schema.getRepeatingSlotCount();
+        repeatingLongs   = new long[repeatingSlots][0];
+        repeatingDoubles = new double[repeatingSlots][0];
+        repeatingPresent = new BitSet[repeatingSlots];
+        for (int slot = 0; slot < repeatingSlots; slot++) {
+            repeatingPresent[slot] = new BitSet();
+        }
+    }
+
+    public ModelSchema getSchema() {
+        return schema;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public ModelSnapshot setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    // ------------------------------------------
+    // PointSink
+
+    @Override
+    public void beginBlock(ModelSchema blockSchema, int index) {
+        if (blockSchema.getModelId() != schema.getModelId()) {
+            throw new IllegalArgumentException("This snapshot is for model " + schema.getModelId() + " and not " + blockSchema.getModelId());
+        }
+        currentIndex = index;
+        if (index == -1) {
+            present.clear();
+        }
+        if (index <= 0) {
+            // The fixed block (or the first repeating block of a model without a fixed block) starts a new snapshot.
+            repeatCount = 0;
+            for (BitSet bits : repeatingPresent) {
+                bits.clear();
+            }
+        }
+        if (index >= 0) {
+            ensureRepeatCapacity(index + 1);
+            repeatCount = Math.max(repeatCount, index + 1);
+        }
+    }
+
+    private void ensureRepeatCapacity(int capacity) {
+        for (int slot = 0; slot < repeatingLongs.length; slot++) {
+            if (repeatingLongs[slot].length < capacity) {
+                int newCapacity = Math.max(capacity, repeatingLongs[slot].length * 2);
+                repeatingLongs[slot]   = Arrays.copyOf(repeatingLongs[slot],   newCapacity);
+                repeatingDoubles[slot] = Arrays.copyOf(repeatingDoubles[slot], newCapacity);
+            }
+        }
+    }
+
+    @Override
+    public void onLong(int slot, long value) {
+        if (currentIndex == -1) {
+            longs[slot]   = value;
+            doubles[slot] = value;
+            present.set(slot);
+        } else {
+            repeatingLongs[slot][currentIndex]   = value;
+            repeatingDoubles[slot][currentIndex] = value;
+            repeatingPresent[slot].set(currentIndex);
+        }
+    }
+
+    @Override
+    public void onDouble(int slot, double value) {
+        if (currentIndex == -1) {
+            longs[slot]   = (long) value;
+            doubles[slot] = value;
+            present.set(slot);
+        } else {
+            repeatingLongs[slot][currentIndex]   = (long) value;
+            repeatingDoubles[slot][currentIndex] = value;
+            repeatingPresent[slot].set(currentIndex);
+        }
+    }
+
+    @Override
+    public void onMissing(int slot) {
+        if (currentIndex == -1) {
+            present.clear(slot);
+        } else {
+            repeatingPresent[slot].clear(currentIndex);
+        }
+    }
+
+    // ------------------------------------------
+    // The fixed block
+
+    public boolean isPresent(int slot) {
+        return present.get(slot);
+    }
+
+    public long getLong(int slot) {
+        return longs[slot];
+    }
+
+    public double getDouble(int slot) {
+        return doubles[slot];
+    }
+
+    /**
+     * @return The presence of all slots (live view, do not modify).
+     */
+    public BitSet getPresent() {
+        return present;
+    }
+
+    /**
+     * @return The values of all slots (live view, only valid where present).
+     */
+    public double[] getDoubles() {
+        return doubles;
+    }
+
+    public long[] getLongs() {
+        return longs;
+    }
+
+    // ------------------------------------------
+    // The repeating blocks
+
+    public int getRepeatCount() {
+        return repeatCount;
+    }
+
+    public boolean isPresent(int slot, int index) {
+        return index < repeatCount && repeatingPresent[slot].get(index);
+    }
+
+    public long getLong(int slot, int index) {
+        return repeatingLongs[slot][index];
+    }
+
+    public double getDouble(int slot, int index) {
+        return repeatingDoubles[slot][index];
+    }
+
+    /**
+     * @return All values of a single point of the repeating blocks (the first getRepeatCount() are valid).
+     */
+    public double[] getRepeatingDoubles(int slot) {
+        return repeatingDoubles[slot];
+    }
+
+    public long[] getRepeatingLongs(int slot) {
+        return repeatingLongs[slot];
+    }
+
+    public BitSet getRepeatingPresent(int slot) {
+        return repeatingPresent[slot];
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import java.util.BitSet;
+
+/**
+ * The values of the fixed block of the same model for a batch of devices as a (devices x points) matrix.
+ * The matrix is stored column major (an array per slot indexed by the row) so a single point can be
+ * aggregated over all devices in a tight loop or handed to a columnar writer directly.
+ * The batch is reused by calling {@link #clear()}; the values of the repeating blocks are not stored.
+ */
+public class ModelSnapshotBatch {
+    private final ModelSchema schema;
+    private final int         capacity;
+
+    private final long[][]   longColumns;
+    private final double[][] doubleColumns;
+    private final BitSet[]   presentColumns;
+    private final long[]     timestamps;
+    private final RowSink[]  rowSinks;
+    private int              rowCount = 0;
+
+    public ModelSnapshotBatch(ModelSchema schema, int capacity) {
+        this.schema   = schema;
+        this.capacity = capacity;
+        int slots = schema.getFixedSlotCount();
+        longColumns    = new long[slots][capacity];
+        doubleColumns  = new double[slots][capacity];
+        presentColumns = new BitSet[slots];
+        for (int slot = 0; slot < slots; slot++) {
+            presentColumns[slot] = new BitSet(capacity);
+        }
+        timestamps = new long[capacity];
+        rowSinks   = new RowSink[capacity];
+        for (int row = 0; row < capacity; row++) {
+            rowSinks[row] = new RowSink(row);
+        }
+    }
+
+    public ModelSchema getSchema() {
+        return schema;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public void clear() {
+        rowCount = 0;
+        for (BitSet present : presentColumns) {
+            present.clear();
+        }
+    }
+
+    /**
+     * @param row The row (device) in which the values must be stored.
+     * @param timestamp The moment the data was retrieved.
+     * @return The sink to pass to decodeAll to fill this row.
+     */
+    public PointSink row(int row, long timestamp) {
+        if (row < 0 || row >= capacity) {
+            throw new IndexOutOfBoundsException("Row " + row + " is outside the capacity " + capacity);
+        }
+        rowCount = Math.max(rowCount, row + 1);
+        timestamps[row] = timestamp;
+        return rowSinks[row];
+    }
+
+    public long getTimestamp(int row) {
+        return timestamps[row];
+    }
+
+    public boolean isPresent(int slot, int row) {
+        return presentColumns[slot].get(row);
+    }
+
+    public double getDouble(int slot, int row) {
+        return doubleColumns[slot][row];
+    }
+
+    public long getLong(int slot, int row) {
+        return longColumns[slot][row];
+    }
+
+    /**
+     * @return The values of a single point for all rows (the first getRowCount() are valid; live view).
+     */
+    public double[] getDoubleColumn(int slot) {
+        return doubleColumns[slot];
+    }
+
+    public long[] getLongColumn(int slot) {
+        return longColumns[slot];
+    }
+
+    public BitSet getPresentColumn(int slot) {
+        return presentColumns[slot];
+    }
+
+    private final class RowSink implements PointSink {
+        private final int row;
+        private boolean   inFixedBlock = false;
+
+        RowSink(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public void beginBlock(ModelSchema blockSchema, int index) {
+            if (blockSchema.getModelId() != schema.getModelId()) {
+                throw new IllegalArgumentException("This batch is for model " + schema.getModelId() + " and not " + blockSchema.getModelId());
+            }
+            inFixedBlock = index == -1;
+        }
+
+        @Override
+        public void onLong(int slot, long value) {
+            if (inFixedBlock) {
+                longColumns[slot][row]   = value;
+                doubleColumns[slot][row] = value;
+                presentColumns[slot].set(row);
+            }
+        }
+
+        @Override
+        public void onDouble(int slot, double value) {
+            if (inFixedBlock) {
+                longColumns[slot][row]   = (long) value;
+                doubleColumns[slot][row] = value;
+                presentColumns[slot].set(row);
+            }
+        }
+
+        @Override
+        public void onMissing(int slot) {
+            if (inFixedBlock) {
+                presentColumns[slot].clear(row);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The immutable key of a single point of a SunSpec model (for a repeating block also the repeat index).
+ * All keys are created once (by the generated parsers) with their names already rendered so
+ * producing the keys of a map of values does not need any string building or regex matching.
+ * <p>
+ * The id is stable for a given set of SunSpec models: it identifies the point in the model definition,
+ * all repeat indexes of a repeating point share the same id.
+ */
+public final class PointKey {
+    /**
+     * The prefix of the cleaned names.
+     */
+    public static final String PREFIX = "SunSpec|";
+
+    private static final Map<String, PointKey> BY_NAME = new ConcurrentHashMap<>();
+
+    private final int    id;
+    private final int    modelId;
+    private final int    index;
+    private final String pointId;
+    private final String label;
+    private final String units;
+    private final Class<?> valueType;
+    private final String name;
+    private final String cleanedName;
+
+    private PointKey(int id, int modelId, int index, String pointId, String label, String units, Class<?> valueType) {
+        this.id          = id;
+        this.modelId     = modelId;
+        this.index       = index;
+        this.pointId     = pointId;
+        this.label       = label;
+        this.units       = units;
+        this.valueType   = valueType;
+        this.name        = modelId + "|" + (index < 0 ? "-" : String.valueOf(index)) + '|' + label + '|' + units;
+        this.cleanedName = clean(PREFIX + name);
+    }
+
+    private static PointKey register(PointKey pointKey) {
+        PointKey existing = BY_NAME.putIfAbsent(pointKey.name, pointKey);
+        return existing == null ? pointKey : existing;
+    }
+
+    /**
+     * The key of a point in the fixed block of a model.
+     */
+    public static PointKey fixed(int id, int modelId, String pointId, String label, String units, Class<?> valueType) {
+        return register(new PointKey(id, modelId, -1, pointId, label, units, valueType));
+    }
+
+    /**
+     * The keys of a point in the repeating block of a model.
+     */
+    public static Repeating repeating(int id, int modelId, String pointId, String label, String units, Class<?> valueType) {
+        return new Repeating(id, modelId, pointId, label, units, valueType);
+    }
+
+    /**
+     * @param name The name of a key as used in the maps produced by toHashMap (like "101|-|Watts|W").
+     * @return The key or null if there is no such key (yet).
+     */
+    public static PointKey forName(String name) {
+        return BY_NAME.get(name);
+    }
+
+    /**
+     * Make a name usable as an attribute/field name: only letters, digits and underscores remain.
+     * @param key The name to clean
+     * @return The cleaned name
+     */
+    public static String clean(String key) {
+        return key
+            .replace("%", "Pct")
+            .replace("()", "")
+            .replace("/", "_")
+            .replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getModelId() {
+        return modelId;
+    }
+
+    /**
+     * @return The index of the repeating block or -1 for a point in the fixed block.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return The id of the point in the SunSpec model (like "W").
+     */
+    public String getPointId() {
+        return pointId;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getUnits() {
+        return units;
+    }
+
+    /**
+     * @return The class of the value in the maps produced by toHashMap: Short, Integer, Long, Float, Double, String,
+     *         InetAddress, a custom enum or EnumSet (of a custom enum).
+     */
+    public Class<?> getValueType() {
+        return valueType;
+    }
+
+    /**
+     * @return The name as used in the maps produced by toHashMap (like "101|-|Watts|W").
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The prefixed and cleaned name (like "SunSpec_101___Watts_W").
+     */
+    public String getCleanedName() {
+        return cleanedName;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * All keys of a single point in a repeating block. The key of a repeat index is created only once.
+     */
+    public static final class Repeating {
+        private final int    id;
+        private final int    modelId;
+        private final String pointId;
+        private final String label;
+        private final String units;
+        private final Class<?> valueType;
+
+        private volatile PointKey[] keys = new PointKey[0];
+
+        private Repeating(int id, int modelId, String pointId, String label, String units, Class<?> valueType) {
+            this.id        = id;
+            this.modelId   = modelId;
+            this.pointId   = pointId;
+            this.label     = label;
+            this.units     = units;
+            this.valueType = valueType;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Class<?> getValueType() {
+            return valueType;
+        }
+
+        public PointKey get(int index) {
+            PointKey[] current = keys;
+            if (index < current.length) {
+                return current[index];
+            }
+            return grow(index);
+        }
+
+        private synchronized PointKey grow(int index) {
+            PointKey[] current = keys;
+            if (index < current.length) {
+                return current[index];
+            }
+            PointKey[] grown = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+            for (int i = current.length; i < grown.length; i++) {
+                grown[i] = register(new PointKey(id, modelId, i, pointId, label, units, valueType));
+            }
+            keys = grown;
+            return grown[index];
+        }
+    }
+}
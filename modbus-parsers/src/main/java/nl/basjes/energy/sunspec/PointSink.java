@@ -0,0 +1,51 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+/**
+ * Receives all numerical points of a model from {@link ModelParser#decodeAll(byte[], PointSink)}.
+ * The values are passed as primitives so decoding a model does not create any objects.
+ * A point is identified by its slot in the {@link ModelSchema} of the block (fixed or repeating)
+ * so a sink can store it by indexing an array; the schema has the SunSpec id of every slot (like "W").
+ */
+public interface PointSink {
+
+    /**
+     * Called before the points of a block are passed.
+     * @param schema The schema of the SunSpec model
+     * @param index The index of the repeating block or -1 for the fixed block.
+     */
+    default void beginBlock(ModelSchema schema, int index) {
+    }
+
+    /**
+     * An integer value (or the raw value of an enum or bitfield).
+     */
+    void onLong(int slot, long value);
+
+    /**
+     * A value that has been scaled using its scale factor or a floating point value.
+     */
+    void onDouble(int slot, double value);
+
+    /**
+     * The point is not implemented by the device.
+     */
+    void onMissing(int slot);
+}
@@ -18,48 +18,388 @@
 package nl.basjes.energy.sunspec;
 
 import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import nl.basjes.energy.DeltaFilter;
+import nl.basjes.energy.TickScheduler;
+import nl.basjes.energy.TickScheduler.Tick;
 import nl.basjes.energy.sunspec.ParseSunSpec.ModelParserHolder;
+import nl.basjes.energy.sunspec.SunSpecModbusDataReader.ModelLocation;
+import nl.basjes.modbus.RegisterReadPlan;
+import nl.basjes.modbus.RegisterReadPlan.RegisterRange;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-
-import static nl.basjes.energy.Utils.waitTillNextTimeModulo;
+import java.util.Set;
 
 public class SunSpecFetcher extends ModelParserHolder {
-    private SunSpecModbusDataReader    dataReader;
-    private Map<Integer, ModelFetcher> modelFetchers;
+    private static final int[]            NO_MODEL_IDS      = new int[0];
+    private static final ModelFetcher[]   NO_MODEL_FETCHERS = new ModelFetcher[0];
+
+    private SunSpecModbusDataReader dataReader;
+
+    // The used models (in the order in which they were added).
+    // With a handful of models per device a scan of these small arrays is cheaper (in time and memory) than a Map.
+    private int[]          modelIds      = NO_MODEL_IDS;
+    private ModelFetcher[] modelFetchers = NO_MODEL_FETCHERS;
 
     public SunSpecFetcher(SunSpecModbusDataReader dataReader) {
         this.dataReader = dataReader;
-        modelFetchers = new LinkedHashMap<>();
     }
 
     private long   currentDataTimestamp = 0;
+    private Tick   lastTick             = null;
+
+    // The refresh intervals (0 = on every refresh) of the models and of register ranges within a model.
+    // Most devices do not have any so these are only created when needed.
+    private Map<Integer, Long>                modelRefreshIntervals = null;
+    private Map<Integer, List<RangeInterval>> rangeRefreshIntervals = null;
+
+    // All used registers split into ranges that each have a single refresh interval.
+    private List<RefreshRange> refreshRanges = null;
+
+    // The combined Modbus requests needed to retrieve a set of due refresh ranges.
+    // The arrays of the previous refresh are reused as long as the same set of ranges is due.
+    private final Map<BitSet, PlannedRead> plannedReads = new HashMap<>();
+    private RegisterReadPlan lastReadPlan = null;
+
+    private static final class RangeInterval {
+        final int  offset;
+        final int  len;
+        final long intervalMs;
+
+        RangeInterval(int offset, int len, long intervalMs) {
+            this.offset = offset;
+            this.len = len;
+            this.intervalMs = intervalMs;
+        }
+    }
+
+    private static final class RefreshRange {
+        final ModelFetcher  modelFetcher;
+        final RegisterRange range;
+        final long          intervalMs;
+        long                lastRefresh   = 0;
+        long                dataTimestamp = 0;
+
+        RefreshRange(ModelFetcher modelFetcher, RegisterRange range, long intervalMs) {
+            this.modelFetcher = modelFetcher;
+            this.range = range;
+            this.intervalMs = intervalMs;
+        }
+
+        boolean isDue(long timestamp) {
+            return lastRefresh == 0 || timestamp - lastRefresh >= intervalMs;
+        }
+    }
+
+    private static final class PlannedRead {
+        final RegisterReadPlan  plan;
+        RegisterReadPlan.Result result = null;
+
+        PlannedRead(RegisterReadPlan plan) {
+            this.plan = plan;
+        }
+    }
+
+    private int indexOf(int modelId) {
+        for (int i = 0; i < modelIds.length; i++) {
+            if (modelIds[i] == modelId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void addModelFetcher(int modelId) {
+        ModelFetcher modelFetcher = getModelFetcher(dataReader, modelId);
+        int index = indexOf(modelId);
+        if (index < 0) {
+            index = modelIds.length;
+            modelIds      = Arrays.copyOf(modelIds,      index + 1);
+            modelFetchers = Arrays.copyOf(modelFetchers, index + 1);
+            modelIds[index] = modelId;
+        }
+        modelFetchers[index] = modelFetcher;
+    }
+
+    private ModelFetcher getUsedModelFetcher(int modelId) {
+        int index = indexOf(modelId);
+        return index < 0 ? null : modelFetchers[index];
+    }
 
     public SunSpecFetcher useModel(int modelId) {
-        modelFetchers.put(modelId, getModelFetcher(dataReader, modelId));
+        addModelFetcher(modelId);
+        resetReadPlans();
         return this;
     }
 
+    /**
+     * Use a model that only needs to be retrieved once every refreshIntervalMs.
+     * @param modelId The SunSpec model
+     * @param refreshIntervalMs The minimal time between two retrievals of this model (0 = on every refresh).
+     * @return this
+     */
+    public SunSpecFetcher useModel(int modelId, long refreshIntervalMs) {
+        withRefreshInterval(modelId, refreshIntervalMs);
+        return useModel(modelId);
+    }
+
     public SunSpecFetcher useAllModels() {
-        dataReader.getModelLocations().forEach((modelId, blockParser) -> modelFetchers.put(modelId, getModelFetcher(dataReader, modelId)));
+        dataReader.getModelLocations().forEach((modelId, blockParser) -> addModelFetcher(modelId));
+        resetReadPlans();
+        return this;
+    }
+
+    /**
+     * Only retrieve a model once every refreshIntervalMs; in between the previously retrieved data
+     * (with its original timestamp) is used. Models that (almost) never change like model 1 (Common)
+     * or the nameplate and settings models can so be left out of most of the Modbus requests.
+     * @param modelId The SunSpec model
+     * @param refreshIntervalMs The minimal time between two retrievals of this model (0 = on every refresh).
+     * @return this
+     */
+    public SunSpecFetcher withRefreshInterval(int modelId, long refreshIntervalMs) {
+        if (refreshIntervalMs < 0) {
+            throw new IllegalArgumentException("The refresh interval cannot be negative");
+        }
+        if (modelRefreshIntervals == null) {
+            modelRefreshIntervals = new HashMap<>();
+        }
+        modelRefreshIntervals.put(modelId, refreshIntervalMs);
+        resetReadPlans();
         return this;
     }
 
+    /**
+     * Use a different refresh interval for a range of registers within a model (overrides the interval of the model).
+     * NOTE: Values that have a scale factor must be in the same range as that scale factor
+     * or else a new value may be combined with an outdated scale factor.
+     * @param modelId The SunSpec model
+     * @param offset The first register of the range (relative to the start of the model)
+     * @param len The number of registers in the range
+     * @param refreshIntervalMs The minimal time between two retrievals of this range (0 = on every refresh).
+     * @return this
+     */
+    public SunSpecFetcher withRefreshInterval(int modelId, int offset, int len, long refreshIntervalMs) {
+        if (refreshIntervalMs < 0) {
+            throw new IllegalArgumentException("The refresh interval cannot be negative");
+        }
+        if (offset < 0 || len < 1) {
+            throw new IllegalArgumentException("Invalid register range " + offset + "+" + len);
+        }
+        if (rangeRefreshIntervals == null) {
+            rangeRefreshIntervals = new HashMap<>();
+        }
+        rangeRefreshIntervals
+            .computeIfAbsent(modelId, id -> new ArrayList<>())
+            .add(new RangeInterval(offset, len, refreshIntervalMs));
+        resetReadPlans();
+        return this;
+    }
+
+    private void resetReadPlans() {
+        refreshRanges = null;
+        plannedReads.clear();
+    }
+
+    /**
+     * Split the registers of all used models into consecutive ranges with the same refresh interval.
+     */
+    private List<RefreshRange> getRefreshRanges() {
+        if (refreshRanges == null) {
+            List<RefreshRange> ranges = new ArrayList<>();
+            for (int i = 0; i < modelIds.length; i++) {
+                int           modelId       = modelIds[i];
+                ModelFetcher  modelFetcher  = modelFetchers[i];
+                ModelLocation modelLocation = modelFetcher.getModelLocation();
+
+                long[] intervals = new long[modelLocation.len];
+                if (modelRefreshIntervals != null) {
+                    Arrays.fill(intervals, modelRefreshIntervals.getOrDefault(modelId, 0L));
+                }
+                List<RangeInterval> rangeIntervals = rangeRefreshIntervals == null ? null : rangeRefreshIntervals.get(modelId);
+                for (RangeInterval rangeInterval : rangeIntervals == null ? Collections.<RangeInterval>emptyList() : rangeIntervals) {
+                    int end = Math.min(rangeInterval.offset + rangeInterval.len, intervals.length);
+                    for (int register = rangeInterval.offset; register < end; register++) {
+                        intervals[register] = rangeInterval.intervalMs;
+                    }
+                }
+
+                int start = 0;
+                for (int register = 1; register <= intervals.length; register++) {
+                    if (register == intervals.length || intervals[register] != intervals[start]) {
+                        ranges.add(new RefreshRange(
+                            modelFetcher,
+                            new RegisterRange(modelLocation.registerBase + start, register - start),
+                            intervals[start]));
+                        start = register;
+                    }
+                }
+            }
+            refreshRanges = ranges;
+        }
+        return refreshRanges;
+    }
+
+    /**
+     * All models are part of the same contiguous SunSpec register range so
+     * reading the registers of unused models in between is harmless.
+     * @param due The refresh ranges that must be retrieved.
+     * @return The plan to retrieve these ranges with the fewest Modbus requests.
+     */
+    private PlannedRead getPlannedRead(BitSet due) {
+        return plannedReads.computeIfAbsent(due, d -> {
+            List<RefreshRange> allRanges = getRefreshRanges();
+            List<RegisterRange> ranges = new ArrayList<>();
+            for (int i = d.nextSetBit(0); i >= 0; i = d.nextSetBit(i + 1)) {
+                ranges.add(allRanges.get(i).range);
+            }
+            DeviceProfile deviceProfile = dataReader.getDeviceProfile();
+            if (deviceProfile != null) {
+                // All devices of the same type share the plan.
+                return new PlannedRead(deviceProfile.getReadPlan(ranges, dataReader.getMaxRegistersPerModbusRequest()));
+            }
+            return new PlannedRead(RegisterReadPlan.create(ranges, dataReader.getMaxRegistersPerModbusRequest(), Integer.MAX_VALUE));
+        });
+    }
+
+    /**
+     * @return The plan to retrieve all the used models with the fewest Modbus requests.
+     */
+    RegisterReadPlan getReadPlan() {
+        BitSet all = new BitSet();
+        all.set(0, getRefreshRanges().size());
+        return getPlannedRead(all).plan;
+    }
+
+    /**
+     * @return The plan that was used by the last refresh (null if nothing was due).
+     */
+    RegisterReadPlan getLastReadPlan() {
+        return lastReadPlan;
+    }
+
     public void refresh() throws ModbusException {
         currentDataTimestamp = System.currentTimeMillis();
-        for (Map.Entry<Integer, ModelFetcher> entry : modelFetchers.entrySet()) {
-            entry.getValue().refresh();
-        }
+        refreshModels();
     }
 
+    /**
+     * Wait until the clock is the next multiple of the modulo and then refresh the data.
+     * The timestamp of the data is that aligned moment.
+     * @param moduloMs The modulo in milliseconds
+     * @throws ModbusException In case of problems or when interrupted while waiting.
+     */
     public void refresh(long moduloMs) throws ModbusException {
-        currentDataTimestamp = waitTillNextTimeModulo(moduloMs);
-        for (Map.Entry<Integer, ModelFetcher> entry : modelFetchers.entrySet()) {
-            entry.getValue().refresh();
+        try {
+            lastTick = TickScheduler.getDefault().awaitNextTick(moduloMs, lastTick);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Interrupted while waiting for the next refresh");
+        }
+        currentDataTimestamp = lastTick.getTimestamp();
+        refreshModels();
+    }
+
+    /**
+     * @return The tick of the last refresh(moduloMs) (which includes how late it was) or null if there was none.
+     */
+    public Tick getLastTick() {
+        return lastTick;
+    }
+
+    // Only for testing: refresh as if it is this moment.
+    void refreshAt(long timestamp) throws ModbusException {
+        currentDataTimestamp = timestamp;
+        refreshModels();
+    }
+
+    /**
+     * Retrieve only the registers that are due at this timestamp; all other data is kept as it is.
+     */
+    private void refreshModels() throws ModbusException {
+        if (dataReader == null) {
+            throw new ModbusException("No Modbus connection available");
+        }
+        if (modelFetchers.length == 0) {
+            return;
+        }
+
+        List<RefreshRange> ranges = getRefreshRanges();
+        BitSet due = new BitSet(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            if (ranges.get(i).isDue(currentDataTimestamp)) {
+                due.set(i);
+            }
+        }
+        if (due.isEmpty()) {
+            lastReadPlan = null;
+            return;
+        }
+
+        try {
+            dataReader.connect();
+            PlannedRead plannedRead = getPlannedRead(due);
+            plannedRead.result = plannedRead.plan.execute(dataReader, plannedRead.result);
+            lastReadPlan = plannedRead.plan;
+            long now = System.currentTimeMillis();
+
+            // The ranges of a model are consecutive in the list.
+            ModelFetcher modelFetcher = null;
+            byte[]       nextData     = null;
+            for (int i = due.nextSetBit(0); i >= 0; i = due.nextSetBit(i + 1)) {
+                RefreshRange refreshRange = ranges.get(i);
+                if (refreshRange.modelFetcher != modelFetcher) {
+                    if (modelFetcher != null) {
+                        modelFetcher.swapDataBuffers(now);
+                    }
+                    modelFetcher = refreshRange.modelFetcher;
+                    nextData = modelFetcher.getNextDataBuffer();
+                    // The parts of the model that are not due retain the previously retrieved values.
+                    byte[] cachedData = modelFetcher.getCachedData();
+                    if (cachedData != null) {
+                        System.arraycopy(cachedData, 0, nextData, 0, nextData.length);
+                    }
+                }
+                RegisterRange range = refreshRange.range;
+                int offset = (range.start - modelFetcher.getModelLocation().registerBase) * 2;
+                plannedRead.result.copyRegisterBytes(range.start, range.len, nextData, offset);
+                refreshRange.lastRefresh   = currentDataTimestamp;
+                refreshRange.dataTimestamp = now;
+            }
+            modelFetcher.swapDataBuffers(now);
+        } catch (Exception e) {
+            throw new ModbusException("Unable to refresh the data", e);
         }
     }
 
+    /**
+     * @param modelId The SunSpec model
+     * @param offset A register within the model (relative to the start of the model)
+     * @return The moment the data of this register was retrieved (0 if it was never retrieved).
+     */
+    public long getDataTimestamp(int modelId, int offset) {
+        ModelFetcher modelFetcher = getUsedModelFetcher(modelId);
+        if (modelFetcher == null) {
+            return 0;
+        }
+        int register = modelFetcher.getModelLocation().registerBase + offset;
+        for (RefreshRange refreshRange : getRefreshRanges()) {
+            if (refreshRange.modelFetcher == modelFetcher &&
+                register >= refreshRange.range.start && register < refreshRange.range.end()) {
+                return refreshRange.dataTimestamp;
+            }
+        }
+        return 0;
+    }
+
     public long getCurrentDataTimestamp() throws ModbusException {
         if (dataReader == null) {
             throw new ModbusException("No Modbus connection available");
@@ -74,18 +414,84 @@ public class SunSpecFetcher extends ModelParserHolder {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(10000);
-        for (Map.Entry<Integer, ModelFetcher> entry : modelFetchers.entrySet()) {
-            sb.append(entry.getValue().toString());
+        for (ModelFetcher modelFetcher : modelFetchers) {
+            sb.append(modelFetcher.toString());
         }
         return sb.toString();
     }
 
     public Map<String, Object> toHashMap() {
         Map<String, Object> result = new LinkedHashMap<>();
-        for (Map.Entry<Integer, ModelFetcher> entry : modelFetchers.entrySet()) {
-            result.putAll(entry.getValue().toHashMap());
+        for (ModelFetcher modelFetcher : modelFetchers) {
+            try {
+                result.putAll(modelFetcher.getDecodedValues());
+            } catch (ModbusException e) {
+                // Same as ModelFetcher.toHashMap(): a model that cannot be decoded has no values.
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The keys of all values that toHashMap can produce for the current data of all used models (in the same order).
+     * @throws ModbusException In case of problems
+     */
+    public List<PointKey> getPointKeys() throws ModbusException {
+        List<PointKey> result = new ArrayList<>();
+        for (ModelFetcher modelFetcher : modelFetchers) {
+            result.addAll(modelFetcher.getPointKeys());
+        }
+        return result;
+    }
+
+    /**
+     * Decode the values of which the registers changed since the previous time the values were decoded.
+     * Every call that decodes the values (also toHashMap) starts a new set of changes so to find the
+     * changes since an earlier moment use a {@link DeltaFilter} instead.
+     * @return The keys of the values (of all used models) that were changed, added or removed.
+     * @throws ModbusException In case of problems
+     */
+    public Set<PointKey> updateDecodedValues() throws ModbusException {
+        Set<PointKey> result = new LinkedHashSet<>();
+        for (ModelFetcher modelFetcher : modelFetchers) {
+            result.addAll(modelFetcher.updateDecodedValues());
         }
         return result;
     }
 
+    /**
+     * Decode the values of which the registers changed and only return the values that changed more
+     * than their deadband since they were last emitted by this filter.
+     * If the filter decides it is time for a keyframe all values are returned.
+     * Values of which the registers did not change are not decoded again; the filter gets the same
+     * object as before which it recognizes without comparing the values.
+     * The filter keeps its own record of what it emitted so other calls that decode the values
+     * (or other filters on the same fetcher) do not influence the result.
+     * @param deltaFilter The filter that determines which values must be emitted.
+     * @return The values that must be emitted.
+     * @throws ModbusException In case of problems
+     */
+    public Map<String, Object> toDeltaHashMap(DeltaFilter deltaFilter) throws ModbusException {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (ModelFetcher modelFetcher : modelFetchers) {
+            try {
+                values.putAll(modelFetcher.getDecodedValues());
+            } catch (ModbusException e) {
+                // Same as toHashMap(): a model that cannot be decoded has no values.
+            }
+        }
+        return deltaFilter.filter(getCurrentDataTimestamp(), values, null);
+    }
+
+    /**
+     * Pass all numerical values of all used models to the sink without creating any objects.
+     * @param sink Receives all values
+     * @throws ModbusException In case of problems
+     */
+    public void decodeAll(PointSink sink) throws ModbusException {
+        for (ModelFetcher modelFetcher : modelFetchers) {
+            modelFetcher.decodeAll(sink);
+        }
+    }
+
 }
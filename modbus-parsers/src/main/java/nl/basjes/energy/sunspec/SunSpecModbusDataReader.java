@@ -18,7 +18,9 @@
 package nl.basjes.energy.sunspec;
 
 import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
 import com.ghgande.j2mod.modbus.facade.AbstractModbusMaster;
+import nl.basjes.modbus.DeviceSettingsStore;
 import nl.basjes.modbus.ModBusDataReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,7 +32,7 @@ import java.util.TreeMap;
 public class SunSpecModbusDataReader extends ModBusDataReader {
     private static final Logger LOG = LoggerFactory.getLogger(SunSpecModbusDataReader.class);
 
-    private Map<Integer, ModelLocation> modelLocations;
+    private volatile Map<Integer, ModelLocation> modelLocations;
 
     public static final int SUNSPEC_STANDARD_STARTBASE  = 40000;
     public static final int SUNSPEC_STANDARD_UNITID     = 126;
@@ -44,6 +46,53 @@ public class SunSpecModbusDataReader extends ModBusDataReader {
     }
 
     public SunSpecModbusDataReader(AbstractModbusMaster master, int startBase, int deviceId) throws ModbusException {
+        this(master, startBase, deviceId, null, null);
+    }
+
+    /**
+     * A reader that retrieves the locations of the models from a cache (if available and still valid).
+     * Validating the cached layout only needs to read model 1 and the end of the model list, which avoids
+     * a full discovery of all models every time a connection to the device is made.
+     * @param master The Modbus connection to the device
+     * @param startBase The register where the SunSpec header ('SunS') is located.
+     * @param deviceId The Modbus unit id of the device
+     * @param layoutCache Where the model locations of known devices are kept (may be null).
+     * @param endpoint Identifies where the device can be reached (like host:port).
+     * @throws ModbusException In case of problems
+     */
+    public SunSpecModbusDataReader(AbstractModbusMaster master, int startBase, int deviceId,
+                                   DeviceSettingsStore layoutCache, String endpoint) throws ModbusException {
+        this(master, startBase, deviceId, layoutCache, endpoint, null);
+    }
+
+    /**
+     * A reader that shares the profile (model locations and read plans) with all other devices of the same type.
+     * For a device of a known type only model 1 and the end of the model list are read.
+     * @param master The Modbus connection to the device
+     * @param startBase The register where the SunSpec header ('SunS') is located.
+     * @param deviceId The Modbus unit id of the device
+     * @param deviceProfiles The known device profiles (may be null).
+     * @throws ModbusException In case of problems
+     */
+    public SunSpecModbusDataReader(AbstractModbusMaster master, int startBase, int deviceId,
+                                   DeviceProfiles deviceProfiles) throws ModbusException {
+        this(master, startBase, deviceId, null, null, deviceProfiles);
+    }
+
+    /**
+     * A reader that first tries the profiles of the known types of devices,
+     * then the layout cache and only then discovers the models.
+     * @param master The Modbus connection to the device
+     * @param startBase The register where the SunSpec header ('SunS') is located.
+     * @param deviceId The Modbus unit id of the device
+     * @param layoutCache Where the model locations of known devices are kept (may be null).
+     * @param endpoint Identifies where the device can be reached (like host:port).
+     * @param deviceProfiles The known device profiles (may be null).
+     * @throws ModbusException In case of problems
+     */
+    public SunSpecModbusDataReader(AbstractModbusMaster master, int startBase, int deviceId,
+                                   DeviceSettingsStore layoutCache, String endpoint,
+                                   DeviceProfiles deviceProfiles) throws ModbusException {
         super(master, deviceId);
         try {
             connect();
@@ -51,7 +100,241 @@ public class SunSpecModbusDataReader extends ModBusDataReader {
             throw new ModbusException("Unable to connect to slave.", e);
         }
 
-        modelLocations = getModelLocations(startBase);
+        if (deviceProfiles == null) {
+            modelLocations = getModelLocations(startBase, layoutCache, endpoint, deviceId);
+            return;
+        }
+
+        WindowedHeaderReader headerReader = new WindowedHeaderReader();
+        String profileIdentity = getProfileIdentity(headerReader, startBase);
+        if (profileIdentity != null) {
+            deviceProfile = findDeviceProfile(deviceProfiles, headerReader, startBase, profileIdentity);
+            if (deviceProfile != null) {
+                deviceProfileShared = true;
+                modelLocations = deviceProfile.getModelLocations();
+                return;
+            }
+        }
+
+        modelLocations = getModelLocations(startBase, layoutCache, endpoint, deviceId);
+        if (profileIdentity != null) {
+            deviceProfile = deviceProfiles.intern(new DeviceProfile(profileIdentity, startBase, modelLocations));
+            LOG.info("Using SunSpec device profile {}", deviceProfile);
+            modelLocations = deviceProfile.getModelLocations();
+        }
+    }
+
+    private Map<Integer, ModelLocation> getModelLocations(int startBase, DeviceSettingsStore layoutCache,
+                                                          String endpoint, int deviceId) throws ModbusException {
+        if (layoutCache == null) {
+            return getModelLocations(startBase);
+        }
+
+        String cacheKey = endpoint + '|' + deviceId;
+        Map<Integer, ModelLocation> locations = getCachedModelLocations(layoutCache, cacheKey, startBase);
+        if (locations != null) {
+            layoutFromCache = true;
+            return locations;
+        }
+
+        locations = getModelLocations(startBase);
+        String identity = getLayoutIdentity(locations, startBase);
+        if (identity != null) {
+            layoutCache.put(cacheKey, SETTING_SUNSPEC_LAYOUT_IDENTITY, identity);
+            layoutCache.put(cacheKey, SETTING_SUNSPEC_LAYOUT, serializeLayout(startBase, locations));
+        }
+        return locations;
+    }
+
+    private DeviceProfile deviceProfile       = null;
+    private boolean       deviceProfileShared = false;
+
+    /**
+     * @return The profile of this device (null if no device profiles were used).
+     */
+    public DeviceProfile getDeviceProfile() {
+        return deviceProfile;
+    }
+
+    /**
+     * @return true if the profile of an earlier device of the same type was used instead of discovering the models.
+     */
+    public boolean isDeviceProfileShared() {
+        return deviceProfileShared;
+    }
+
+    /**
+     * @return The known profile of which the models are located where the models of this device are (or null).
+     */
+    private DeviceProfile findDeviceProfile(DeviceProfiles deviceProfiles, WindowedHeaderReader reader,
+                                            int startBase, String identity) {
+        for (DeviceProfile candidate : deviceProfiles.getProfiles(startBase, identity)) {
+            try {
+                if (matchesModelList(reader, candidate)) {
+                    return candidate;
+                }
+                LOG.debug("The device does not match profile {}", candidate);
+            } catch (ModbusException e) {
+                LOG.debug("The device does not match profile {}: {}", candidate, e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Devices of the same type can still have a different model list (i.e. a different number of MPPT modules in
+     * model 160) so the end of the model list alone is not enough.
+     * The headers (id and length) that were already retrieved and the header of the last model are checked as well.
+     * @return true if the model headers and the end of the model list of the device are where the profile has them.
+     */
+    private boolean matchesModelList(WindowedHeaderReader reader, DeviceProfile profile) throws ModbusException {
+        ModelLocation last = null;
+        for (ModelLocation location : profile.getModelLocations().values()) {
+            if (last == null || location.registerBase > last.registerBase) {
+                last = location;
+            }
+            if (reader.isInWindow(location.registerBase - 2, 2) && !hasModelHeader(reader, location)) {
+                return false;
+            }
+        }
+        if (last == null || !hasModelHeader(reader, last)) {
+            return false;
+        }
+        Integer terminator = reader.readU16(profile.getModelListEnd());
+        return terminator == null || terminator == 0;
+    }
+
+    private static boolean hasModelHeader(HeaderReader reader, ModelLocation location) throws ModbusException {
+        Integer id  = reader.readU16(location.registerBase - 2);
+        Integer len = reader.readU16(location.registerBase - 1);
+        return id != null && id == location.id && len != null && len == location.len;
+    }
+
+    /**
+     * Reads the SunSpec header and model 1 (which must be the first model) in a single request (if possible).
+     * @return The manufacturer, model, options and version of the device or null if this is not available.
+     */
+    private String getProfileIdentity(WindowedHeaderReader reader, int startBase) {
+        try {
+            if (!"SunS".equals(reader.readASCII(startBase, 2))) {
+                return null;
+            }
+            Integer commonId = reader.readU16(startBase + 2);
+            if (commonId == null || commonId != 1) {
+                return null;
+            }
+            // Model 1: Mn (offset 0, len 16), Md (offset 16, len 16), Opt (offset 32, len 8), Vr (offset 40, len 8)
+            int common = startBase + 4;
+            return reader.readASCII(common,      16).trim() + '|' +
+                   reader.readASCII(common + 16, 16).trim() + '|' +
+                   reader.readASCII(common + 32,  8).trim() + '|' +
+                   reader.readASCII(common + 40,  8).trim();
+        } catch (ModbusException e) {
+            LOG.info("Unable to read the type of the device ({}), discovering the SunSpec models.", e.getMessage());
+            return null;
+        }
+    }
+
+    public static final String SETTING_SUNSPEC_LAYOUT          = "SunSpecLayout";
+    public static final String SETTING_SUNSPEC_LAYOUT_IDENTITY = "SunSpecLayoutIdentity";
+
+    private boolean layoutFromCache = false;
+
+    /**
+     * @return true if the model locations were taken from the layout cache instead of discovering them.
+     */
+    public boolean isLayoutFromCache() {
+        return layoutFromCache;
+    }
+
+    // Format: startBase;id,registerBase,len;id,registerBase,len;...
+    private static String serializeLayout(int startBase, Map<Integer, ModelLocation> locations) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(startBase);
+        for (ModelLocation location : locations.values()) {
+            sb.append(';').append(location.id).append(',').append(location.registerBase).append(',').append(location.len);
+        }
+        return sb.toString();
+    }
+
+    private static Map<Integer, ModelLocation> deserializeLayout(int startBase, String layout) {
+        String[] parts = layout.split(";");
+        if (parts.length < 2 || !String.valueOf(startBase).equals(parts[0].trim())) {
+            return null;
+        }
+        Map<Integer, ModelLocation> locations = new TreeMap<>();
+        for (int i = 1; i < parts.length; i++) {
+            String[] fields = parts[i].split(",");
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                int id = Integer.parseInt(fields[0].trim());
+                locations.put(id, new ModelLocation(id, Integer.parseInt(fields[1].trim()), Integer.parseInt(fields[2].trim())));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return locations;
+    }
+
+    private Map<Integer, ModelLocation> getCachedModelLocations(DeviceSettingsStore layoutCache, String cacheKey, int startBase) {
+        String layout   = layoutCache.get(cacheKey, SETTING_SUNSPEC_LAYOUT);
+        String identity = layoutCache.get(cacheKey, SETTING_SUNSPEC_LAYOUT_IDENTITY);
+        if (layout == null || identity == null) {
+            return null;
+        }
+        Map<Integer, ModelLocation> locations = deserializeLayout(startBase, layout);
+        if (locations == null) {
+            LOG.warn("Ignoring the invalid cached SunSpec layout of {}: {}", cacheKey, layout);
+            return null;
+        }
+        try {
+            if (!identity.equals(getLayoutIdentity(locations, startBase))) {
+                LOG.info("The device at {} changed, rediscovering the SunSpec models.", cacheKey);
+                return null;
+            }
+            // The model list must still end directly after the last model.
+            int end = startBase + 2;
+            for (ModelLocation location : locations.values()) {
+                end = Math.max(end, location.registerBase + location.len);
+            }
+            Integer terminator = readU16(end);
+            if (terminator != null && terminator != 0) {
+                LOG.info("The SunSpec models of the device at {} changed, rediscovering the SunSpec models.", cacheKey);
+                return null;
+            }
+        } catch (ModbusException e) {
+            LOG.info("Unable to validate the cached SunSpec layout of {} ({}), rediscovering the SunSpec models.", cacheKey, e.getMessage());
+            return null;
+        }
+        return locations;
+    }
+
+    /**
+     * Reads the SunSpec header and model 1 in a single request (if possible).
+     * @return The manufacturer, model, version and serial number of the device if the layout matches
+     *         the SunSpec header and model 1 of the device, else null.
+     */
+    private String getLayoutIdentity(Map<Integer, ModelLocation> locations, int startBase) throws ModbusException {
+        ModelLocation common = locations.get(1);
+        if (common == null) {
+            return null;
+        }
+        WindowedHeaderReader reader = new WindowedHeaderReader();
+        if (!"SunS".equals(reader.readASCII(startBase, 2))) {
+            return null;
+        }
+        Integer commonId  = reader.readU16(common.registerBase - 2);
+        Integer commonLen = reader.readU16(common.registerBase - 1);
+        if (commonId == null || commonId != 1 || commonLen == null || commonLen != common.len) {
+            return null;
+        }
+        // Model 1: Mn (offset 0, len 16), Md (offset 16, len 16), Vr (offset 40, len 8), SN (offset 48, len 16)
+        return reader.readASCII(common.registerBase,      16).trim() + '|' +
+               reader.readASCII(common.registerBase + 16, 16).trim() + '|' +
+               reader.readASCII(common.registerBase + 40,  8).trim() + '|' +
+               reader.readASCII(common.registerBase + 48, 16).trim();
     }
 
     public Map<Integer, ModelLocation> getModelLocations() {
@@ -62,10 +345,36 @@ public class SunSpecModbusDataReader extends ModBusDataReader {
         return modelLocations.get(model);
     }
 
+    /**
+     * @return A String that identifies this specific device (using manufacturer, model and serial number from model 1)
+     *         or null if this is not available.
+     * @throws ModbusException In case of problems
+     */
+    public String getDeviceIdentity() throws ModbusException {
+        ModelLocation common = getModelLocation(1);
+        if (common == null) {
+            return null;
+        }
+        // Model 1: Mn (offset 0, len 16), Md (offset 16, len 16), SN (offset 48, len 16)
+        return "SunSpec|" +
+            readASCII(common.registerBase,      16).trim() + '|' +
+            readASCII(common.registerBase + 16, 16).trim() + '|' +
+            readASCII(common.registerBase + 48, 16).trim();
+    }
+
+    /**
+     * Learn the maximum number of registers per request for this device (identified by model 1).
+     * @param settingsStore Where the learned value is kept (may be null).
+     * @throws ModbusException In case of problems
+     */
+    public void enableAdaptiveMaxRegistersPerModbusRequest(DeviceSettingsStore settingsStore) throws ModbusException {
+        enableAdaptiveMaxRegistersPerModbusRequest(settingsStore, getDeviceIdentity());
+    }
+
     public static class ModelLocation {
-        public int id;
-        public int registerBase;
-        public int len;
+        public final int id;
+        public final int registerBase;
+        public final int len;
 
         public ModelLocation(int id, int registerBase, int len) {
             this.id = id;
@@ -87,10 +396,123 @@ public class SunSpecModbusDataReader extends ModBusDataReader {
         return getRawRegisterBytes(modelLocation.registerBase, modelLocation.len);
     }
 
+    /**
+     * Find all models by reading the model headers in large windows of registers.
+     * If that fails the model headers are read one by one.
+     * @param startBase The register where the SunSpec header ('SunS') is located.
+     * @return All models that were found.
+     * @throws ModbusException In case of problems
+     */
     public Map<Integer, ModelLocation> getModelLocations(int startBase) throws ModbusException {
+        try {
+            return getModelLocations(startBase, new WindowedHeaderReader());
+        } catch (ModbusException e) {
+            LOG.warn("Unable to read the model headers in bulk ({}), falling back to reading them one by one.", e.getMessage());
+            return walkModelLocations(startBase);
+        }
+    }
+
+    /**
+     * Find all models by reading every model header with separate requests (2 per model).
+     * @param startBase The register where the SunSpec header ('SunS') is located.
+     * @return All models that were found.
+     * @throws ModbusException In case of problems
+     */
+    public Map<Integer, ModelLocation> walkModelLocations(int startBase) throws ModbusException {
+        return getModelLocations(startBase, new HeaderReader() {
+            @Override
+            public Integer readU16(int registerAddress) throws ModbusException {
+                return SunSpecModbusDataReader.this.readU16(registerAddress);
+            }
+
+            @Override
+            public String readASCII(int registerAddress, int len) throws ModbusException {
+                return SunSpecModbusDataReader.this.readASCII(registerAddress, len);
+            }
+        });
+    }
+
+    private interface HeaderReader {
+        Integer readU16(int registerAddress) throws ModbusException;
+        String readASCII(int registerAddress, int len) throws ModbusException;
+    }
+
+    /**
+     * Retrieves a speculative window of registers (as large as a single request allows) and answers
+     * all reads that fall inside it. Only a model that jumps past the window causes a new request.
+     * A window that is rejected (it usually runs past the end of the registers of the device)
+     * is retried with only a model header (or only the requested registers) and all later windows
+     * stay below the end of the rejected window.
+     */
+    private class WindowedHeaderReader implements HeaderReader {
+        private int    windowStart = 0;
+        private byte[] window      = new byte[0];
+        // The end of the smallest window that was rejected.
+        private int    rejectedEnd = Integer.MAX_VALUE;
+
+        private boolean isInWindow(int registerAddress, int len) {
+            return registerAddress >= windowStart && registerAddress + len <= windowStart + window.length / 2;
+        }
+
+        private void ensureInWindow(int registerAddress, int len) throws ModbusException {
+            if (isInWindow(registerAddress, len)) {
+                return;
+            }
+            int size = Math.max(len, (int) Math.min(getMaxRegistersPerModbusRequest(), (long) rejectedEnd - 1 - registerAddress));
+            while (true) {
+                try {
+                    window = getRawRegisterBytes(registerAddress, size);
+                    windowStart = registerAddress;
+                    return;
+                } catch (ModbusSlaveException e) {
+                    rejectedEnd = Math.min(rejectedEnd, registerAddress + size);
+                    if (size <= len) {
+                        throw e;
+                    }
+                    size = size > 2 ? Math.max(len, 2) : len;
+                    LOG.debug("Model discovery window rejected ({}), retrying with {} registers", e.getMessage(), size);
+                }
+            }
+        }
+
+        private int getValue(int registerAddress) {
+            int byteNo = (registerAddress - windowStart) * 2;
+            return ((window[byteNo] & 0xff) << 8) | (window[byteNo + 1] & 0xff);
+        }
+
+        @Override
+        public Integer readU16(int registerAddress) throws ModbusException {
+            ensureInWindow(registerAddress, 1);
+            int value = getValue(registerAddress);
+            if (value == 0xFFFF) {
+                return null;
+            }
+            return value;
+        }
+
+        @Override
+        public String readASCII(int registerAddress, int len) throws ModbusException {
+            ensureInWindow(registerAddress, len);
+            // Same decoding as ModBusDataReader.readASCII
+            char[] chars = new char[len * 2];
+            int offset = 0;
+            for (int register = registerAddress; register < registerAddress + len; register++) {
+                int value = getValue(register);
+                chars[offset] = (char)((value & 0x7f00) >> 8);
+                if (chars[offset]==0x00) break;
+                offset++;
+                chars[offset] = (char)(value & 0x7f);
+                if (chars[offset]==0x00) break;
+                offset++;
+            }
+            return new String(chars, 0, offset);
+        }
+    }
+
+    private Map<Integer, ModelLocation> getModelLocations(int startBase, HeaderReader reader) throws ModbusException {
         // SunSpec header
         int base     = startBase;
-        String sunsMarker = readASCII(base, 2);
+        String sunsMarker = reader.readASCII(base, 2);
 
         if (!"SunS".equals(sunsMarker)) {
             LOG.error("The SunSpec header was missing at register address {}", startBase);
@@ -104,12 +526,12 @@ public class SunSpecModbusDataReader extends ModBusDataReader {
         Integer blockLen;
         while (true) {
             // Read the header of the block
-            blockId = readU16(base);
+            blockId = reader.readU16(base);
             if (blockId == null ||
                 blockId == 0) { // Apparently some devices do this incorrectly https://github.com/sunspec/models/issues/44
                 break;
             }
-            blockLen = readU16(base + 1);
+            blockLen = reader.readU16(base + 1);
             base = base + 2;
             blocks.put(blockId, new ModelLocation(blockId, base, blockLen));
 
@@ -0,0 +1,153 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.modbus;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines the timeout of a device from the round trip times that were actually observed.
+ * The last windowSize round trip times are kept; the timeout is the chosen percentile of those
+ * multiplied by a factor and clamped between a minimum and a maximum.
+ * A timeout is recorded as a round trip of (at least) the timeout that was used, so a device that
+ * becomes slower quickly gets a longer timeout. A late response (arriving after the timeout) is
+ * recorded with its real round trip time.
+ */
+public class AdaptiveTimeout {
+
+    private final long[] samples;
+    private int          sampleCount = 0;
+    private int          nextSample  = 0;
+
+    private double percentile   = 0.99;
+    private double factor       = 3.0;
+    private int    minTimeoutMs = 20;
+    private int    maxTimeoutMs = 10000;
+    private int    minSamples   = 10;
+
+    // Reused when calculating the percentile
+    private final long[] sorted;
+
+    public AdaptiveTimeout() {
+        this(100);
+    }
+
+    /**
+     * @param windowSize The number of most recent round trip times that are used.
+     */
+    public AdaptiveTimeout(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("The window size must be at least 1");
+        }
+        samples = new long[windowSize];
+        sorted = new long[windowSize];
+    }
+
+    /**
+     * @param newPercentile The percentile (0.0 - 1.0) of the round trip times that is used (i.e. 0.99).
+     * @param newFactor The percentile is multiplied by this factor to get the timeout.
+     */
+    public synchronized AdaptiveTimeout withPercentile(double newPercentile, double newFactor) {
+        if (newPercentile <= 0.0 || newPercentile > 1.0 || newFactor < 1.0) {
+            throw new IllegalArgumentException("Invalid percentile " + newPercentile + " or factor " + newFactor);
+        }
+        percentile = newPercentile;
+        factor = newFactor;
+        return this;
+    }
+
+    /**
+     * @param newMinTimeoutMs The timeout is never shorter than this.
+     * @param newMaxTimeoutMs The timeout is never longer than this.
+     */
+    public synchronized AdaptiveTimeout withBounds(int newMinTimeoutMs, int newMaxTimeoutMs) {
+        if (newMinTimeoutMs < 1 || newMaxTimeoutMs < newMinTimeoutMs) {
+            throw new IllegalArgumentException("Invalid timeout bounds " + newMinTimeoutMs + " - " + newMaxTimeoutMs);
+        }
+        minTimeoutMs = newMinTimeoutMs;
+        maxTimeoutMs = newMaxTimeoutMs;
+        return this;
+    }
+
+    /**
+     * @param newMinSamples Until this many round trip times have been recorded the default timeout is used.
+     */
+    public synchronized AdaptiveTimeout withMinSamples(int newMinSamples) {
+        if (newMinSamples < 1 || newMinSamples > samples.length) {
+            throw new IllegalArgumentException("The minimum number of samples must be between 1 and " + samples.length);
+        }
+        minSamples = newMinSamples;
+        return this;
+    }
+
+    public synchronized void recordRoundTrip(long roundTripNanos) {
+        samples[nextSample] = roundTripNanos;
+        nextSample = (nextSample + 1) % samples.length;
+        sampleCount = Math.min(sampleCount + 1, samples.length);
+    }
+
+    /**
+     * No response was received within the timeout.
+     * @param timeoutMs The timeout that was used.
+     */
+    public void recordTimeout(int timeoutMs) {
+        recordRoundTrip(TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+    }
+
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @param p The percentile (0.0 - 1.0)
+     * @return The percentile of the recorded round trip times in milliseconds (NaN if nothing was recorded).
+     */
+    public synchronized double getRoundTripPercentileMs(double p) {
+        if (sampleCount == 0) {
+            return Double.NaN;
+        }
+        System.arraycopy(samples, 0, sorted, 0, sampleCount);
+        Arrays.sort(sorted, 0, sampleCount);
+        int index = (int) Math.ceil(p * sampleCount) - 1;
+        index = Math.max(0, Math.min(sampleCount - 1, index));
+        return sorted[index] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @param defaultTimeoutMs The timeout to use as long as too few round trips have been recorded.
+     * @return The timeout in milliseconds to use for the next request.
+     */
+    public synchronized int getTimeoutMs(int defaultTimeoutMs) {
+        if (sampleCount < minSamples) {
+            return defaultTimeoutMs;
+        }
+        double timeout = Math.ceil(getRoundTripPercentileMs(percentile) * factor);
+        return (int) Math.max(minTimeoutMs, Math.min(maxTimeoutMs, timeout));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveTimeout{" +
+            "samples=" + sampleCount +
+            ", p" + Math.round(percentile * 100) + "=" + getRoundTripPercentileMs(percentile) + "ms" +
+            ", factor=" + factor +
+            ", bounds=" + minTimeoutMs + "-" + maxTimeoutMs + "ms" +
+            '}';
+    }
+}
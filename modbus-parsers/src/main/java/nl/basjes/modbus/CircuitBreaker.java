@@ -0,0 +1,156 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.modbus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops talking to a device that is unreachable (i.e. an inverter that switched off at dusk).
+ * <ul>
+ *     <li>CLOSED: All requests are done. After failureThreshold consecutive failures the circuit opens.</li>
+ *     <li>OPEN: All requests fail immediately (without waiting for any timeout) during the open duration.</li>
+ *     <li>HALF_OPEN: After the open duration a single trial request is allowed; if it succeeds the
+ *         circuit closes, if it fails the circuit opens again.</li>
+ * </ul>
+ * Only failures to reach the device count; a device that answers with an error is reachable.
+ */
+public class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int          failureThreshold;
+    private final long         openDurationNanos;
+    private final LongSupplier nanoClock;
+
+    private State   state               = State.CLOSED;
+    private int     consecutiveFailures = 0;
+    private long    openedAt            = 0;
+    private boolean trialInProgress     = false;
+
+    /**
+     * A circuit breaker that opens after 3 consecutive failures for 30 seconds.
+     */
+    public CircuitBreaker() {
+        this(3, TimeUnit.SECONDS.toMillis(30));
+    }
+
+    /**
+     * @param failureThreshold The number of consecutive failures after which the circuit opens.
+     * @param openDurationMs How long the circuit stays open before a trial request is allowed.
+     */
+    public CircuitBreaker(int failureThreshold, long openDurationMs) {
+        this(failureThreshold, openDurationMs, System::nanoTime);
+    }
+
+    CircuitBreaker(int failureThreshold, long openDurationMs, LongSupplier nanoClock) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("The failure threshold must be at least 1");
+        }
+        if (openDurationMs < 0) {
+            throw new IllegalArgumentException("The open duration cannot be negative");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMs);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @return True if a request may be done now. In the HALF_OPEN state only the first caller gets true
+     * and it MUST report the outcome via {@link #recordSuccess()} or {@link #recordFailure()}.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (nanoClock.getAsLong() - openedAt < openDurationNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInProgress = true;
+                return true;
+            case HALF_OPEN:
+            default:
+                if (trialInProgress) {
+                    return false;
+                }
+                trialInProgress = true;
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            LOG.info("Circuit closed: the device is reachable again.");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInProgress = false;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        trialInProgress = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN) {
+                LOG.warn("Circuit opened after {} consecutive failures; failing fast for {} ms.",
+                    consecutiveFailures, TimeUnit.NANOSECONDS.toMillis(openDurationNanos));
+            }
+            state = State.OPEN;
+            openedAt = nanoClock.getAsLong();
+        }
+    }
+
+    /**
+     * @return The current state. An OPEN circuit of which the open duration has passed is reported as HALF_OPEN.
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && nanoClock.getAsLong() - openedAt >= openDurationNanos) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Forget all failures and close the circuit.
+     */
+    public synchronized void reset() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInProgress = false;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{state=" + getState() + ", consecutiveFailures=" + consecutiveFailures + '}';
+    }
+}
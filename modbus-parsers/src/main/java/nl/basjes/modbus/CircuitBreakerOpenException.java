@@ -0,0 +1,31 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.modbus;
+
+import com.ghgande.j2mod.modbus.ModbusIOException;
+
+/**
+ * The request was not done because the device was found to be unreachable recently.
+ * @see CircuitBreaker
+ */
+public class CircuitBreakerOpenException extends ModbusIOException {
+    public CircuitBreakerOpenException(String message) {
+        super(message);
+    }
+}
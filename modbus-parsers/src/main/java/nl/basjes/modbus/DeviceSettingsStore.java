@@ -0,0 +1,208 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package nl.basjes.modbus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers things that were learned about a specific device (like the largest request it accepts).
+ * The settings are kept in a properties file (if a file is provided) so they survive a restart.
+ * Changes are written in batches: a while after the first change (see {@link #withFlushDelayMs(long)}),
+ * or right away on {@link #flush()} / {@link #close()}. So a large fleet that starts up writes the file
+ * a few times instead of once per device.
+ */
+public class DeviceSettingsStore implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceSettingsStore.class);
+
+    private static final class FlusherHolder {
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DeviceSettingsStore");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static final long DEFAULT_FLUSH_DELAY_MS = 5000;
+
+    private final File       file;
+    private final Properties properties = new Properties();
+    private final Object     saveLock   = new Object();
+    private long             flushDelayMs   = DEFAULT_FLUSH_DELAY_MS;
+    private long             changes        = 0; // Incremented on every change
+    private long             savedChanges   = 0; // The changes that are in the file
+    private boolean          flushScheduled = false;
+
+    /**
+     * A store that only keeps the settings in memory.
+     */
+    public DeviceSettingsStore() {
+        this.file = null;
+    }
+
+    /**
+     * A store that persists the settings in the provided file.
+     * @param file The properties file (is created if it does not exist).
+     */
+    public DeviceSettingsStore(File file) {
+        this.file = file;
+        if (file.exists()) {
+            try (InputStream input = Files.newInputStream(file.toPath())) {
+                properties.load(input);
+            } catch (IOException e) {
+                LOG.warn("Unable to load the device settings from {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param newFlushDelayMs How long after a change the file is written (0 = immediately on every change).
+     * @return this
+     */
+    public synchronized DeviceSettingsStore withFlushDelayMs(long newFlushDelayMs) {
+        if (newFlushDelayMs < 0) {
+            throw new IllegalArgumentException("The flush delay cannot be negative");
+        }
+        this.flushDelayMs = newFlushDelayMs;
+        return this;
+    }
+
+    private static String key(String deviceIdentity, String setting) {
+        return deviceIdentity + '|' + setting;
+    }
+
+    public synchronized String get(String deviceIdentity, String setting) {
+        return properties.getProperty(key(deviceIdentity, setting));
+    }
+
+    public synchronized Integer getInt(String deviceIdentity, String setting) {
+        String value = get(deviceIdentity, setting);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring invalid value \"{}\" for {} of {}", value, setting, deviceIdentity);
+            return null;
+        }
+    }
+
+    public void put(String deviceIdentity, String setting, String value) {
+        boolean flushNow;
+        synchronized (this) {
+            String key = key(deviceIdentity, setting);
+            if (value == null) {
+                if (properties.remove(key) == null) {
+                    return;
+                }
+            } else {
+                if (value.equals(properties.getProperty(key))) {
+                    return;
+                }
+                properties.setProperty(key, value);
+            }
+            if (file == null) {
+                return;
+            }
+            changes++;
+            flushNow = flushDelayMs == 0;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                FlusherHolder.INSTANCE.schedule(this::flush, flushDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    public void put(String deviceIdentity, String setting, int value) {
+        put(deviceIdentity, setting, Integer.toString(value));
+    }
+
+    /**
+     * @return True if there are changes that have not been written to the file yet.
+     */
+    public synchronized boolean isDirty() {
+        return changes != savedChanges;
+    }
+
+    /**
+     * Write all changes to the file now.
+     */
+    public void flush() {
+        // Only one thread writes the file at a time, without blocking the readers and writers of the settings.
+        synchronized (saveLock) {
+            final Properties snapshot;
+            final long       snapshotChanges;
+            synchronized (this) {
+                flushScheduled = false;
+                if (changes == savedChanges) {
+                    return;
+                }
+                snapshot = new Properties();
+                snapshot.putAll(properties);
+                snapshotChanges = changes;
+            }
+            // If this fails the changes remain unsaved and are written by the next flush.
+            if (save(snapshot)) {
+                synchronized (this) {
+                    savedChanges = snapshotChanges;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    private boolean save(Properties snapshot) {
+        File temp = null;
+        try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            temp = File.createTempFile(file.getName(), ".tmp", directory);
+            try (OutputStream output = Files.newOutputStream(temp.toPath())) {
+                snapshot.store(output, "Learned Modbus device settings");
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Unable to store the device settings in {}: {}", file, e.getMessage());
+            return false;
+        } finally {
+            if (temp != null && !temp.delete()) {
+                LOG.debug("Unable to remove the temporary file {}", temp);
+            }
+        }
+    }
+}
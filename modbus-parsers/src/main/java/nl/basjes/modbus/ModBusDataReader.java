@@ -18,37 +18,294 @@
 package nl.basjes.modbus;
 
 
+import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
 import com.ghgande.j2mod.modbus.facade.AbstractModbusMaster;
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.io.AbstractModbusTransport;
+import com.ghgande.j2mod.modbus.io.ModbusRTUTCPTransport;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransport;
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersResponse;
 import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import nl.basjes.modbus.RegisterReadPlan.RegisterRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Reads the registers of a single Modbus device.
+ * An instance can be used from multiple threads: all requests to the device are serialized
+ * (in arrival order) and concurrent reads of the exact same register range share a single request.
+ */
 public class ModBusDataReader implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ModBusDataReader.class);
+
+    private final AbstractModbusMaster master;
+    private final int unitId;
+    private volatile boolean isConnected = false;
 
-    private AbstractModbusMaster master;
-    private int unitId;
-    private boolean isConnected = false;
+    // Only one thread at a time talks to the device.
+    private final ReentrantLock requestLock = new ReentrantLock(true);
 
     public ModBusDataReader(AbstractModbusMaster master, int unitId) {
         this.master = master;
         this.unitId = unitId;
     }
 
-    InputRegister[] read(int registerAddress, int count) throws ModbusException {
+    private volatile RetryPolicy    retryPolicy    = new RetryPolicy();
+    private volatile CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    /**
+     * @param newRetryPolicy How failed reads are retried.
+     */
+    public void setRetryPolicy(RetryPolicy newRetryPolicy) {
+        if (newRetryPolicy == null) {
+            throw new IllegalArgumentException("The retry policy cannot be null");
+        }
+        retryPolicy = newRetryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param newCircuitBreaker The circuit breaker that stops reading from a device that is unreachable.
+     */
+    public void setCircuitBreaker(CircuitBreaker newCircuitBreaker) {
+        if (newCircuitBreaker == null) {
+            throw new IllegalArgumentException("The circuit breaker cannot be null");
+        }
+        circuitBreaker = newCircuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return If the device is currently considered to be reachable (CLOSED), unreachable (OPEN)
+     * or if a new attempt is about to be made (HALF_OPEN).
+     */
+    public CircuitBreaker.State getCircuitState() {
+        return circuitBreaker.getState();
+    }
+
+    @FunctionalInterface
+    interface ModbusOperation<T> {
+        T execute() throws ModbusException;
+    }
+
+    /**
+     * Run the operation using the retry policy and the circuit breaker.
+     * A device that answered with an exception is reachable so that is never retried.
+     */
+    <T> T withRetries(ModbusOperation<T> operation) throws ModbusException {
+        requestLock.lock();
         try {
-            return readWithoutRetry(registerAddress, count);
+            return withRetriesLocked(operation);
+        } finally {
+            requestLock.unlock();
+        }
+    }
+
+    private <T> T withRetriesLocked(ModbusOperation<T> operation) throws ModbusException {
+        RetryPolicy    retryPolicy    = this.retryPolicy;
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (!circuitBreaker.allowRequest()) {
+            throw new CircuitBreakerOpenException("Not connecting to unit " + unitId + " via " + master +
+                " because it was unreachable recently (" + circuitBreaker + ")");
         }
-        catch (Exception e) {
-            isConnected = false;
-            return readWithoutRetry(registerAddress, count);
+        int retry = 0;
+        while (true) {
+            try {
+                T result = operation.execute();
+                circuitBreaker.recordSuccess();
+                return result;
+            } catch (ModbusSlaveException e) {
+                circuitBreaker.recordSuccess();
+                throw e;
+            } catch (ModbusException | RuntimeException e) {
+                isConnected = false;
+                if (retry >= retryPolicy.getMaxRetries()) {
+                    circuitBreaker.recordFailure();
+                    throw e;
+                }
+                long backoffMs = retryPolicy.getBackoffMs(retry);
+                LOG.debug("Retry {} of {} in {} ms after: {}", retry + 1, retryPolicy.getMaxRetries(), backoffMs, e.getMessage());
+                if (backoffMs > 0) {
+                    try {
+                        Thread.sleep(backoffMs);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        circuitBreaker.recordFailure();
+                        throw new ModbusIOException("Interrupted while waiting to retry", ie);
+                    }
+                }
+                retry++;
+            }
         }
     }
 
+    InputRegister[] read(int registerAddress, int count) throws ModbusException {
+        return withRetries(() -> readWithoutRetry(registerAddress, count));
+    }
+
     private InputRegister[] readWithoutRetry(int registerAddress, int count) throws ModbusException {
+        ensureConnected();
+        return readRegisters(registerAddress, count);
+    }
+
+    // A single request of which the round trip time is recorded when the timeout is adaptive.
+    private InputRegister[] readRegisters(int registerAddress, int count) throws ModbusException {
+        AdaptiveTimeout timeouts = adaptiveTimeout;
+        if (timeouts == null) {
+            return master.readMultipleRegisters(unitId, registerAddress, count);
+        }
+        int timeoutMs = applyAdaptiveTimeout();
+        if (master instanceof NioModbusTCPMaster) {
+            // The master reports the round trip times itself (including those of late responses).
+            return master.readMultipleRegisters(unitId, registerAddress, count);
+        }
+        long start = System.nanoTime();
+        try {
+            InputRegister[] registers = master.readMultipleRegisters(unitId, registerAddress, count);
+            timeouts.recordRoundTrip(System.nanoTime() - start);
+            return registers;
+        } catch (ModbusSlaveException e) {
+            timeouts.recordRoundTrip(System.nanoTime() - start);
+            throw e;
+        } catch (ModbusIOException e) {
+            if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= timeoutMs) {
+                timeouts.recordTimeout(timeoutMs);
+            }
+            throw e;
+        }
+    }
+
+    // Adaptive request timeouts
+    private volatile AdaptiveTimeout adaptiveTimeout = null;
+    private RoundTripListener roundTripListener   = null;
+    private int               configuredTimeoutMs = Modbus.DEFAULT_TIMEOUT;
+
+    /**
+     * Use a timeout derived from the round trip times of this device instead of a fixed timeout.
+     * A device that answers quickly is then found to be unreachable quickly; a slow device gets more time.
+     * The timeout of the master at this moment is used until enough round trips have been recorded.
+     * @param newAdaptiveTimeout Determines the timeout from the recorded round trip times.
+     */
+    public void enableAdaptiveTimeout(AdaptiveTimeout newAdaptiveTimeout) {
+        requestLock.lock();
+        try {
+            enableAdaptiveTimeoutLocked(newAdaptiveTimeout);
+        } finally {
+            requestLock.unlock();
+        }
+    }
+
+    private void enableAdaptiveTimeoutLocked(AdaptiveTimeout newAdaptiveTimeout) {
+        disableAdaptiveTimeout();
+        configuredTimeoutMs = master.getTimeout();
+        if (master instanceof NioModbusTCPMaster) {
+            roundTripListener = new RoundTripListener() {
+                @Override
+                public void onResponse(int responseUnitId, long roundTripNanos) {
+                    if (responseUnitId == unitId) {
+                        newAdaptiveTimeout.recordRoundTrip(roundTripNanos);
+                    }
+                }
+
+                @Override
+                public void onTimeout(int responseUnitId, int timeoutMs) {
+                    if (responseUnitId == unitId) {
+                        newAdaptiveTimeout.recordTimeout(timeoutMs);
+                    }
+                }
+            };
+            ((NioModbusTCPMaster) master).addRoundTripListener(roundTripListener);
+        }
+        adaptiveTimeout = newAdaptiveTimeout;
+    }
+
+    /**
+     * Go back to the timeout that was configured when the adaptive timeout was enabled.
+     */
+    public void disableAdaptiveTimeout() {
+        requestLock.lock();
+        try {
+            disableAdaptiveTimeoutLocked();
+        } finally {
+            requestLock.unlock();
+        }
+    }
+
+    private void disableAdaptiveTimeoutLocked() {
+        if (adaptiveTimeout == null) {
+            return;
+        }
+        if (roundTripListener != null) {
+            ((NioModbusTCPMaster) master).removeRoundTripListener(roundTripListener);
+            roundTripListener = null;
+        }
+        adaptiveTimeout = null;
+        if (master instanceof ModbusGateway) {
+            ((ModbusGateway) master).setUnitTimeout(unitId, null);
+        } else {
+            master.setTimeout(configuredTimeoutMs);
+        }
+    }
+
+    public AdaptiveTimeout getAdaptiveTimeout() {
+        return adaptiveTimeout;
+    }
+
+    /**
+     * @return The timeout (in milliseconds) that is used for the next request.
+     */
+    public int getCurrentTimeoutMs() {
+        AdaptiveTimeout timeouts = adaptiveTimeout;
+        if (timeouts == null) {
+            return master.getTimeout();
+        }
+        return timeouts.getTimeoutMs(configuredTimeoutMs);
+    }
+
+    private int applyAdaptiveTimeout() {
+        int timeoutMs = getCurrentTimeoutMs();
+        if (master instanceof ModbusGateway) {
+            // The connection is shared with other devices that have their own timeout.
+            ((ModbusGateway) master).setUnitTimeout(unitId, timeoutMs);
+            return timeoutMs;
+        }
+        if (master.getTimeout() != timeoutMs) {
+            LOG.debug("Changing the timeout for unit {} to {} ms", unitId, timeoutMs);
+            master.setTimeout(timeoutMs);
+        }
+        return timeoutMs;
+    }
+
+    private void ensureConnected() throws ModbusException {
         if (!isConnected) {
             try {
                 connect();
@@ -59,8 +316,6 @@ public class ModBusDataReader implements AutoCloseable {
                 throw new ModbusIOException("Not connected");
             }
         }
-
-        return master.readMultipleRegisters(unitId, registerAddress, count);
     }
 
 //    http://files.sma.de/dl/2585/WEBBOX-MODBUS-TB-en-19.pdf
@@ -95,10 +350,7 @@ public class ModBusDataReader implements AutoCloseable {
     }
 
     public long readU32(int registerAddress) throws ModbusException {
-        if (!isConnected) {
-            throw new ModbusIOException("Not connected");
-        }
-        final InputRegister[] registers = master.readMultipleRegisters(unitId, registerAddress, 2);
+        final InputRegister[] registers = read(registerAddress, 2);
         long                  result    = registers[0].getValue() & 0xffff;
         result = result << 16;
         result += registers[1].getValue() & 0xffff;
@@ -111,10 +363,7 @@ public class ModBusDataReader implements AutoCloseable {
     private static final byte[] NOT_CONFIGURED_FLOAT32 = {(byte)0x7F, (byte)0xC0, (byte)0x00, (byte)0x00};
 
     public Float readFloat32(int registerAddress) throws ModbusException {
-        if (!isConnected) {
-            throw new ModbusIOException("Not connected");
-        }
-        final InputRegister[] registers = master.readMultipleRegisters(unitId, registerAddress, 2);
+        final InputRegister[] registers = read(registerAddress, 2);
 
         int r0 = registers[0].getValue();
         int r1 = registers[1].getValue();
@@ -133,10 +382,7 @@ public class ModBusDataReader implements AutoCloseable {
     }
 
     public int readS32(int registerAddress) throws ModbusException {
-        if (!isConnected) {
-            throw new ModbusIOException("Not connected");
-        }
-        final InputRegister[] registers = master.readMultipleRegisters(unitId, registerAddress, 2);
+        final InputRegister[] registers = read(registerAddress, 2);
         long                  result    = registers[0].getValue();// & 0xffff;
         result = result << 16;
         result += registers[1].getValue() & 0xffff;
@@ -144,10 +390,7 @@ public class ModBusDataReader implements AutoCloseable {
     }
 
     public String readASCII(int registerAddress, int len) throws ModbusException {
-        if (!isConnected) {
-            throw new ModbusIOException("Not connected");
-        }
-        final InputRegister[] registers = master.readMultipleRegisters(unitId, registerAddress, len);
+        final InputRegister[] registers = read(registerAddress, len);
 
         char[] chars = new char[len * 2];
         int offset = 0;
@@ -163,51 +406,742 @@ public class ModBusDataReader implements AutoCloseable {
     }
 
     private static final int MAX_REGISTERS_PER_MODBUS_REQUEST = 125;
-    private int              maxRegistersPerModbusRequest     = MAX_REGISTERS_PER_MODBUS_REQUEST;
+    private volatile int     maxRegistersPerModbusRequest     = MAX_REGISTERS_PER_MODBUS_REQUEST;
 
     public void setMaxRegistersPerModbusRequest(int newMaxRegistersPerModbusRequest) {
-        if (newMaxRegistersPerModbusRequest <= 1 || newMaxRegistersPerModbusRequest >= MAX_REGISTERS_PER_MODBUS_REQUEST ) {
+        if (newMaxRegistersPerModbusRequest < 1 || newMaxRegistersPerModbusRequest > MAX_REGISTERS_PER_MODBUS_REQUEST ) {
             throw new IllegalArgumentException("The value for MaxRegistersPerModbusRequest MUST be between 1 and " + MAX_REGISTERS_PER_MODBUS_REQUEST);
         }
         this.maxRegistersPerModbusRequest = newMaxRegistersPerModbusRequest;
     }
 
+    public int getMaxRegistersPerModbusRequest() {
+        return maxRegistersPerModbusRequest;
+    }
+
+    public static final String SETTING_MAX_REGISTERS_PER_MODBUS_REQUEST = "MaxRegistersPerModbusRequest";
+
+    // Self tuning of the maxRegistersPerModbusRequest
+    private DeviceSettingsStore adaptiveSettingsStore   = null;
+    private String              adaptiveDeviceIdentity  = null;
+    private volatile boolean    adaptiveLearning        = false;
+    private int                 largestSuccessfulRequest = 0;
+    private int                 smallestFailedRequest    = MAX_REGISTERS_PER_MODBUS_REQUEST + 1;
+
+    /**
+     * Determine the largest number of registers per request this device reliably answers.
+     * Starting at the maximum allowed by Modbus the size is bisected every time a request
+     * is rejected with exception code 2 (Illegal Data Address) or 3 (Illegal Data Value).
+     * Some devices silently drop requests that are too large, so a request that still times out after
+     * all retries is also bisected, but only if the device does answer a request for a single register.
+     * If that fails as well the device is unreachable, which says nothing about the size.
+     * The size is never lowered as long as no request has failed.
+     * Once found the value is stored (per device identity) so later sessions start with it directly.
+     * @param settingsStore Where the learned value is kept (may be null).
+     * @param deviceIdentity What uniquely identifies this device (like manufacturer, model and serial number).
+     */
+    public void enableAdaptiveMaxRegistersPerModbusRequest(DeviceSettingsStore settingsStore, String deviceIdentity) {
+        requestLock.lock();
+        try {
+            enableAdaptiveMaxRegistersPerModbusRequestLocked(settingsStore, deviceIdentity);
+        } finally {
+            requestLock.unlock();
+        }
+    }
+
+    private void enableAdaptiveMaxRegistersPerModbusRequestLocked(DeviceSettingsStore settingsStore, String deviceIdentity) {
+        adaptiveSettingsStore = settingsStore;
+        adaptiveDeviceIdentity = deviceIdentity;
+        Integer learned = null;
+        if (settingsStore != null && deviceIdentity != null) {
+            learned = settingsStore.getInt(deviceIdentity, SETTING_MAX_REGISTERS_PER_MODBUS_REQUEST);
+        }
+        if (learned != null && learned >= 1 && learned <= MAX_REGISTERS_PER_MODBUS_REQUEST) {
+            maxRegistersPerModbusRequest = learned;
+            adaptiveLearning = false;
+            LOG.debug("Using the previously learned maximum of {} registers per request for {}", learned, deviceIdentity);
+        } else {
+            resetAdaptiveLearning();
+        }
+    }
+
+    private void resetAdaptiveLearning() {
+        maxRegistersPerModbusRequest = MAX_REGISTERS_PER_MODBUS_REQUEST;
+        largestSuccessfulRequest = 0;
+        smallestFailedRequest = MAX_REGISTERS_PER_MODBUS_REQUEST + 1;
+        adaptiveLearning = true;
+    }
+
+    /**
+     * @return True if the adaptive mode is still searching for the maximum number of registers per request.
+     */
+    public boolean isLearningMaxRegistersPerModbusRequest() {
+        return adaptiveLearning;
+    }
+
+    private void adaptiveSuccess(int size) {
+        largestSuccessfulRequest = Math.max(largestSuccessfulRequest, size);
+        if (smallestFailedRequest <= largestSuccessfulRequest) {
+            // An earlier failure was apparently not caused by the size.
+            smallestFailedRequest = MAX_REGISTERS_PER_MODBUS_REQUEST + 1;
+        }
+        adaptiveNextSize();
+    }
+
+    private void adaptiveFailure(int size) {
+        smallestFailedRequest = Math.min(smallestFailedRequest, size);
+        largestSuccessfulRequest = Math.min(largestSuccessfulRequest, smallestFailedRequest - 1);
+        adaptiveNextSize();
+    }
+
+    private void adaptiveNextSize() {
+        if (largestSuccessfulRequest > 0 && largestSuccessfulRequest + 1 >= smallestFailedRequest) {
+            maxRegistersPerModbusRequest = largestSuccessfulRequest;
+            adaptiveLearning = false;
+            LOG.info("Learned a maximum of {} registers per request for {}", maxRegistersPerModbusRequest, adaptiveDeviceIdentity);
+            if (adaptiveSettingsStore != null && adaptiveDeviceIdentity != null) {
+                adaptiveSettingsStore.put(adaptiveDeviceIdentity, SETTING_MAX_REGISTERS_PER_MODBUS_REQUEST, maxRegistersPerModbusRequest);
+            }
+            return;
+        }
+        if (smallestFailedRequest > MAX_REGISTERS_PER_MODBUS_REQUEST) {
+            // Nothing was too large yet: a small request that succeeded is no reason to go lower.
+            maxRegistersPerModbusRequest = MAX_REGISTERS_PER_MODBUS_REQUEST;
+            return;
+        }
+        maxRegistersPerModbusRequest = Math.max(1, (largestSuccessfulRequest + smallestFailedRequest) / 2);
+    }
+
+    /**
+     * Do a single request while learning the maximum request size.
+     * @return false if the request failed in a way that indicates it was too large.
+     */
+    private boolean readAdaptive(int base, int len, byte[] target, int offset) throws ModbusException {
+        final InputRegister[] registers;
+        try {
+            registers = withRetriesLocked(() -> readWithoutRetry(base, len));
+        } catch (ModbusSlaveException e) {
+            if (len == 1 ||
+                !(e.isType(Modbus.ILLEGAL_VALUE_EXCEPTION) || e.isType(Modbus.ILLEGAL_ADDRESS_EXCEPTION))) {
+                throw e;
+            }
+            LOG.debug("A request for {} registers was rejected: {}", len, e.getMessage());
+            adaptiveFailure(len);
+            return false;
+        } catch (ModbusIOException e) {
+            if (len == 1 || e instanceof CircuitBreakerOpenException || !answersSingleRegister(base)) {
+                throw e;
+            }
+            LOG.debug("A request for {} registers timed out but a single register was answered: {}", len, e.getMessage());
+            adaptiveFailure(len);
+            return false;
+        }
+        copyRegisters(registers, target, offset);
+        adaptiveSuccess(len);
+        return true;
+    }
+
+    // Distinguishes a device that drops large requests from a device that is not reachable at all.
+    private boolean answersSingleRegister(int base) {
+        try {
+            withRetriesLocked(() -> readWithoutRetry(base, 1));
+            return true;
+        } catch (ModbusSlaveException e) {
+            return true; // It answered
+        } catch (ModbusException e) {
+            return false;
+        }
+    }
+
+    private static void copyRegisters(InputRegister[] registers, byte[] target, int offset) {
+        int i = offset;
+        for (InputRegister register : registers) {
+            int value = register.getValue();
+            target[i++] = (byte) (value >> 8);
+            target[i++] = (byte) value;
+        }
+    }
+
     public byte[] getRawRegisterBytes(int base, int len) throws ModbusException {
         byte[] bytes = new byte[len * 2];
-        int newBase=base;   
-        int i = 0;
-        int remaining = len;
-        while (remaining > 0) {
-            int readSize = Math.min(remaining, maxRegistersPerModbusRequest);
-            remaining -= readSize;
-            final InputRegister[] registers = read(newBase, readSize);
-            newBase=base+readSize;
-            for (InputRegister register : registers) {
-                byte[] registerBytes = register.toBytes();
-                bytes[i++] = registerBytes[0];
-                bytes[i++] = registerBytes[1];
+        getRawRegisterBytes(base, len, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Retrieve a range of registers into an array provided by the caller.
+     * Reusing the same array for every poll avoids allocating a new one each time.
+     * @param base The first register
+     * @param len The number of registers
+     * @param target Where the raw bytes of the registers (2 bytes per register) must be stored.
+     * @param offset The position in the target of the first byte.
+     * @throws ModbusException In case of problems
+     */
+    public void getRawRegisterBytes(int base, int len, byte[] target, int offset) throws ModbusException {
+        checkTarget(target, offset, len);
+        List<Chunk> chunks = new ArrayList<>();
+        addChunks(chunks, base, len, target, offset);
+        readShared(chunks);
+    }
+
+    /**
+     * Every chunk that is identical to a chunk another thread is reading right now is copied from
+     * that read instead of being requested again. The other chunks are read and shared by this thread.
+     * Joining only happens after the own chunks are done so two threads never wait for each other.
+     */
+    private void readShared(List<Chunk> chunks) throws ModbusException {
+        List<Chunk>      ownChunks  = new ArrayList<>(chunks.size());
+        List<SharedRead> ownReads   = new ArrayList<>(chunks.size());
+        List<Chunk>      joinChunks = new ArrayList<>();
+        List<SharedRead> joinReads  = new ArrayList<>();
+        // Claiming all chunks at once: with identical plans one thread reads everything and the others
+        // only join. Otherwise each can own a part and a join that is only done afterwards can miss.
+        synchronized (sharedReads) {
+            for (Chunk chunk : chunks) {
+                SharedRead sharedRead = new SharedRead(chunk.target, chunk.offset, chunk.len * 2);
+                SharedRead inFlight = sharedReads.putIfAbsent(chunk.key, sharedRead);
+                if (inFlight == null) {
+                    ownChunks.add(chunk);
+                    ownReads.add(sharedRead);
+                } else {
+                    joinChunks.add(chunk);
+                    joinReads.add(inFlight);
+                }
             }
         }
-        return bytes;
+
+        ModbusException failure = null;
+        try {
+            if (!ownChunks.isEmpty()) {
+                readChunks(ownChunks);
+            }
+        } catch (ModbusException | RuntimeException e) {
+            failure = e instanceof ModbusException ? (ModbusException) e : new ModbusIOException("Reading failed", e);
+            throw e;
+        } finally {
+            for (int i = 0; i < ownChunks.size(); i++) {
+                sharedReads.remove(ownChunks.get(i).key, ownReads.get(i));
+                ownReads.get(i).complete(failure);
+            }
+        }
+
+        List<Chunk> missed = new ArrayList<>();
+        for (int i = 0; i < joinChunks.size(); i++) {
+            Chunk chunk = joinChunks.get(i);
+            if (joinReads.get(i).copyTo(chunk.target, chunk.offset)) {
+                sharedReadCount.incrementAndGet();
+            } else {
+                // That read completed before we could join it.
+                missed.add(chunk);
+            }
+        }
+        if (!missed.isEmpty()) {
+            readChunks(missed);
+        }
+    }
+
+    // The chunks that are currently being read (keyed by base and length) which other threads may share.
+    private final ConcurrentMap<Long, SharedRead> sharedReads     = new ConcurrentHashMap<>();
+    private final AtomicLong                      sharedReadCount = new AtomicLong();
+
+    /**
+     * @return How often a read was answered by sharing the result of an identical read that was already in flight.
+     */
+    public long getSharedReadCount() {
+        return sharedReadCount.get();
+    }
+
+    // A read in flight that other threads can wait for instead of sending the same request again.
+    // The thread doing the read only returns after all joined threads copied the result, so the
+    // caller can immediately reuse its array.
+    private static final class SharedRead {
+        private final byte[]    data;
+        private final int       offset;
+        private final int       length;
+        private boolean         done    = false;
+        private ModbusException failure = null;
+        private int             joined  = 0;
+
+        SharedRead(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Wait for the read to complete and copy the result.
+         * @return false if the read had already completed (so nothing was copied).
+         */
+        synchronized boolean copyTo(byte[] target, int targetOffset) throws ModbusException {
+            if (done) {
+                return false;
+            }
+            joined++;
+            try {
+                while (!done) {
+                    wait();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                System.arraycopy(data, offset, target, targetOffset, length);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ModbusIOException("Interrupted while waiting for the response");
+            } finally {
+                joined--;
+                notifyAll();
+            }
+        }
+
+        synchronized void complete(ModbusException readFailure) {
+            failure = readFailure;
+            done = true;
+            notifyAll();
+            boolean interrupted = false;
+            while (joined > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Retrieve a range of registers into a buffer provided by the caller.
+     * The bytes are put at the current position of the buffer which is then advanced.
+     * @param base The first register
+     * @param len The number of registers
+     * @param target Where the raw bytes of the registers (2 bytes per register) must be stored.
+     * @throws ModbusException In case of problems
+     */
+    public void getRawRegisterBytes(int base, int len, ByteBuffer target) throws ModbusException {
+        int byteCount = len * 2;
+        if (target.remaining() < byteCount) {
+            throw new IllegalArgumentException("The target buffer has room for " + target.remaining() +
+                " bytes but " + byteCount + " are needed.");
+        }
+        if (target.hasArray()) {
+            getRawRegisterBytes(base, len, target.array(), target.arrayOffset() + target.position());
+            target.position(target.position() + byteCount);
+            return;
+        }
+        // A direct buffer: go via an array that is kept for the next time.
+        // This must not hold the request lock while waiting for a shared read (deadlock).
+        synchronized (scratchLock) {
+            if (scratch == null || scratch.length < byteCount) {
+                scratch = new byte[byteCount];
+            }
+            getRawRegisterBytes(base, len, scratch, 0);
+            target.put(scratch, 0, byteCount);
+        }
+    }
+
+    private final Object scratchLock = new Object();
+    private byte[]       scratch     = null;
+
+    /**
+     * Retrieve several ranges of registers.
+     * @param ranges The ranges to retrieve
+     * @return For each range the raw bytes of the registers (2 bytes per register).
+     * @throws ModbusException In case of problems
+     */
+    public List<byte[]> getRawRegisterBytes(List<RegisterRange> ranges) throws ModbusException {
+        List<byte[]> result = new ArrayList<>(ranges.size());
+        for (RegisterRange range : ranges) {
+            result.add(new byte[range.len * 2]);
+        }
+        getRawRegisterBytes(ranges, result);
+        return result;
+    }
+
+    /**
+     * Retrieve several ranges of registers into arrays provided by the caller.
+     * @param ranges The ranges to retrieve
+     * @param targets For each range the array (at least 2 bytes per register) where the raw bytes must be stored.
+     * @throws ModbusException In case of problems
+     */
+    public void getRawRegisterBytes(List<RegisterRange> ranges, List<byte[]> targets) throws ModbusException {
+        if (ranges.size() != targets.size()) {
+            throw new IllegalArgumentException("Got " + targets.size() + " targets for " + ranges.size() + " ranges.");
+        }
+        List<Chunk> chunks = new ArrayList<>();
+        for (int r = 0; r < ranges.size(); r++) {
+            RegisterRange range = ranges.get(r);
+            byte[] target = targets.get(r);
+            checkTarget(target, 0, range.len);
+            addChunks(chunks, range.start, range.len, target, 0);
+        }
+        readShared(chunks);
+    }
+
+    private static void checkTarget(byte[] target, int offset, int len) {
+        if (offset < 0 || offset + len * 2 > target.length) {
+            throw new IllegalArgumentException("The target array is too small for " + len + " registers at offset " + offset);
+        }
+    }
+
+    private void addChunks(List<Chunk> chunks, int base, int len, byte[] target, int offset) {
+        for (int register = 0; register < len; register += maxRegistersPerModbusRequest) {
+            chunks.add(new Chunk(base + register, Math.min(maxRegistersPerModbusRequest, len - register), target, offset + register * 2));
+        }
+    }
+
+    private void readChunks(List<Chunk> chunks) throws ModbusException {
+        requestLock.lock();
+        try {
+            readChunksLocked(chunks);
+        } finally {
+            requestLock.unlock();
+        }
+    }
+
+    private void readChunksLocked(List<Chunk> chunks) throws ModbusException {
+        if (adaptiveLearning) {
+            for (Chunk chunk : chunks) {
+                int register = 0;
+                while (register < chunk.len) {
+                    int size = Math.min(maxRegistersPerModbusRequest, chunk.len - register);
+                    if (adaptiveLearning) {
+                        if (!readAdaptive(chunk.base + register, size, chunk.target, chunk.offset + register * 2)) {
+                            continue; // Retry with the new (smaller) size
+                        }
+                    } else {
+                        copyRegisters(read(chunk.base + register, size), chunk.target, chunk.offset + register * 2);
+                    }
+                    register += size;
+                }
+            }
+            return;
+        }
+
+        if (master instanceof NioModbusTCPMaster) {
+            withRetries(() -> {
+                readAsync(chunks);
+                return null;
+            });
+            return;
+        }
+
+        if (pipelineWindow > 1 &&
+            chunks.size() > 1 &&
+            master instanceof ModbusTCPMaster) {
+            // Connection problems and timeouts are retried like any other read.
+            boolean pipelined = withRetriesLocked(() -> {
+                ensureConnected();
+                if (!hasTransactionIds(master.getTransport())) {
+                    // RTU over TCP frames have no transaction id to match the responses with.
+                    LOG.info("The connection to {} does not use Modbus TCP framing; not pipelining the requests.", master);
+                    pipelineWindow = 1;
+                    return false;
+                }
+                try {
+                    readPipelined(chunks);
+                    return true;
+                } catch (PipelineProtocolException e) {
+                    // The device is reachable but does not handle multiple requests in flight.
+                    LOG.warn("Pipelined reading failed ({}); falling back to serial requests.", e.getMessage());
+                    pipelineWindow = 1;
+                    return false;
+                }
+            });
+            if (pipelined) {
+                return;
+            }
+        }
+
+        for (Chunk chunk : chunks) {
+            copyRegisters(read(chunk.base, chunk.len), chunk.target, chunk.offset);
+        }
     }
 
+    // A single Modbus request and where in the result the registers must be stored.
+    private static final class Chunk {
+        final int    base;
+        final int    len;
+        final byte[] target;
+        final int    offset;
+        final Long   key;
+
+        Chunk(int base, int len, byte[] target, int offset) {
+            this.base = base;
+            this.len = len;
+            this.target = target;
+            this.offset = offset;
+            this.key = ((long) base << 32) | len;
+        }
+    }
+
+    /**
+     * Retrieve a range of registers without blocking the calling thread.
+     * Only a {@link NioModbusTCPMaster} really does this asynchronously; with any other
+     * master the registers are retrieved before this method returns.
+     * Failures are handled by the retry policy and circuit breaker like those of the blocking reads.
+     * @param base The first register
+     * @param len The number of registers
+     * @return A future with the raw bytes of the registers (2 bytes per register).
+     */
+    public CompletableFuture<byte[]> getRawRegisterBytesAsync(int base, int len) {
+        if (!(master instanceof NioModbusTCPMaster) || !isConnected) {
+            CompletableFuture<byte[]> result = new CompletableFuture<>();
+            try {
+                result.complete(getRawRegisterBytes(base, len));
+            } catch (ModbusException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (!circuitBreaker.allowRequest()) {
+            result.completeExceptionally(new CircuitBreakerOpenException("Not connecting to unit " + unitId + " via " + master +
+                " because it was unreachable recently (" + circuitBreaker + ")"));
+            return result;
+        }
+        readAsyncAttempt(base, len, 0, retryPolicy, circuitBreaker, result);
+        return result;
+    }
+
+    private static final class RetrySchedulerHolder {
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ModBusDataReader-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // The asynchronous version of withRetries: the backoff is waited for without blocking a thread.
+    private void readAsyncAttempt(int base, int len, int retry,
+                                  RetryPolicy retryPolicy, CircuitBreaker circuitBreaker,
+                                  CompletableFuture<byte[]> result) {
+        byte[] bytes = new byte[len * 2];
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        // Sending is serialized with all other requests of this reader; waiting for the responses is not.
+        requestLock.lock();
+        try {
+            ensureConnected();
+            NioModbusTCPMaster nioMaster = (NioModbusTCPMaster) master;
+            int timeoutMs = getCurrentTimeoutMs();
+            for (int offset = 0; offset < len; offset += maxRegistersPerModbusRequest) {
+                futures.add(nioMaster.readMultipleRegistersInto(
+                    unitId, base + offset, Math.min(maxRegistersPerModbusRequest, len - offset), bytes, offset * 2, timeoutMs));
+            }
+        } catch (ModbusException | RuntimeException e) {
+            asyncAttemptFailed(e, base, len, retry, retryPolicy, circuitBreaker, result);
+            return;
+        } finally {
+            requestLock.unlock();
+        }
+
+        CompletableFuture
+            .allOf(futures.toArray(new CompletableFuture<?>[0]))
+            .whenComplete((v, t) -> {
+                if (t == null) {
+                    circuitBreaker.recordSuccess();
+                    result.complete(bytes);
+                    return;
+                }
+                for (CompletableFuture<byte[]> future : futures) {
+                    future.cancel(false);
+                }
+                asyncAttemptFailed(t instanceof CompletionException ? t.getCause() : t,
+                    base, len, retry, retryPolicy, circuitBreaker, result);
+            });
+    }
+
+    private void asyncAttemptFailed(Throwable failure, int base, int len, int retry,
+                                    RetryPolicy retryPolicy, CircuitBreaker circuitBreaker,
+                                    CompletableFuture<byte[]> result) {
+        if (failure instanceof ModbusSlaveException) {
+            circuitBreaker.recordSuccess();
+            result.completeExceptionally(failure);
+            return;
+        }
+        isConnected = false;
+        if (retry >= retryPolicy.getMaxRetries()) {
+            circuitBreaker.recordFailure();
+            result.completeExceptionally(failure);
+            return;
+        }
+        long backoffMs = retryPolicy.getBackoffMs(retry);
+        LOG.debug("Retry {} of {} in {} ms after: {}", retry + 1, retryPolicy.getMaxRetries(), backoffMs, failure.getMessage());
+        RetrySchedulerHolder.INSTANCE.schedule(
+            () -> readAsyncAttempt(base, len, retry + 1, retryPolicy, circuitBreaker, result),
+            backoffMs, TimeUnit.MILLISECONDS);
+    }
+
+    // All chunks are handed to the event loop at once, the master limits how many are really in flight.
+    private void readAsync(List<Chunk> chunks) throws ModbusException {
+        ensureConnected();
+        NioModbusTCPMaster nioMaster = (NioModbusTCPMaster) master;
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>(chunks.size());
+        int timeoutMs = getCurrentTimeoutMs();
+        for (Chunk chunk : chunks) {
+            futures.add(nioMaster.readMultipleRegistersInto(unitId, chunk.base, chunk.len, chunk.target, chunk.offset, timeoutMs));
+        }
+        try {
+            for (CompletableFuture<byte[]> future : futures) {
+                NioModbusTCPMaster.await(future);
+            }
+        } catch (ModbusException e) {
+            // The requests still in flight must not write into the targets after we have failed.
+            for (CompletableFuture<byte[]> future : futures) {
+                future.cancel(false);
+            }
+            throw e;
+        }
+    }
+
+    // The maximum number of requests that are sent before the first response is received.
+    private volatile int pipelineWindow = 1;
+    private int lastTransactionId = 0;
+
+    /**
+     * Modbus TCP requests carry a transaction id which allows sending multiple requests
+     * before the responses come back. When enabled the requests of getRawRegisterBytes are
+     * sent back to back and the responses are matched using this transaction id.
+     * If the device answers with unknown transaction ids or the wrong number of registers this
+     * reader falls back to sending the requests one at a time. Timeouts and connection problems
+     * are handled by the retry policy and circuit breaker and do not disable pipelining.
+     * Only applies when the master is a ModbusTCPMaster; with RTU over TCP the requests are always
+     * sent one at a time because that framing has no transaction ids.
+     * @param newPipelineWindow The maximum number of requests in flight (1 = no pipelining).
+     */
+    public void setPipelineWindow(int newPipelineWindow) {
+        if (newPipelineWindow < 1) {
+            throw new IllegalArgumentException("The pipeline window MUST be at least 1");
+        }
+        this.pipelineWindow = newPipelineWindow;
+    }
+
+    public int getPipelineWindow() {
+        return pipelineWindow;
+    }
+
+    private int nextTransactionId() {
+        lastTransactionId = (lastTransactionId % 0xFFFF) + 1; // Always in the range 1-65535
+        return lastTransactionId;
+    }
+
+    // The device answered, but not in a way that is compatible with pipelining.
+    private static final class PipelineProtocolException extends ModbusIOException {
+        PipelineProtocolException(String message) {
+            super(message);
+        }
+    }
+
+    static boolean hasTransactionIds(AbstractModbusTransport transport) {
+        return transport instanceof ModbusTCPTransport && !(transport instanceof ModbusRTUTCPTransport);
+    }
+
+    private void readPipelined(List<Chunk> chunks) throws ModbusException {
+        // The transaction id of each request in flight mapped to the chunk it retrieves.
+        Map<Integer, Chunk> inFlight = new HashMap<>();
+        Map<Integer, Long>  sentAt   = new HashMap<>();
+        AdaptiveTimeout     timeouts = adaptiveTimeout;
+        int                 timeoutMs = timeouts == null ? master.getTimeout() : applyAdaptiveTimeout();
+
+        // The facade synchronizes all its calls on the master; we need exclusive use of the transport.
+        synchronized (master) {
+            try {
+                AbstractModbusTransport transport = master.getTransport();
+                int nextChunk = 0;
+                int received = 0;
+                while (received < chunks.size()) {
+                    while (nextChunk < chunks.size() && inFlight.size() < pipelineWindow) {
+                        Chunk chunk = chunks.get(nextChunk++);
+                        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(chunk.base, chunk.len);
+                        request.setUnitID(unitId);
+                        request.setTransactionID(nextTransactionId());
+                        transport.writeRequest(request);
+                        inFlight.put(request.getTransactionID(), chunk);
+                        sentAt.put(request.getTransactionID(), System.nanoTime());
+                    }
+
+                    final ModbusResponse response;
+                    long waitStart = System.nanoTime();
+                    try {
+                        response = transport.readResponse();
+                    } catch (ModbusIOException e) {
+                        if (timeouts != null && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart) >= timeoutMs) {
+                            timeouts.recordTimeout(timeoutMs);
+                        }
+                        throw e;
+                    }
+                    Chunk chunk = inFlight.remove(response.getTransactionID());
+                    if (chunk == null) {
+                        throw new PipelineProtocolException("Received a response with unexpected transaction id " + response.getTransactionID());
+                    }
+                    if (timeouts != null) {
+                        timeouts.recordRoundTrip(System.nanoTime() - sentAt.remove(response.getTransactionID()));
+                    }
+                    if (response instanceof ExceptionResponse) {
+                        throw new ModbusSlaveException(((ExceptionResponse) response).getExceptionCode());
+                    }
+                    if (!(response instanceof ReadMultipleRegistersResponse)) {
+                        throw new PipelineProtocolException("Received an unexpected response " + response.getClass().getSimpleName());
+                    }
+
+                    ReadMultipleRegistersResponse registersResponse = (ReadMultipleRegistersResponse) response;
+                    if (registersResponse.getWordCount() != chunk.len) {
+                        throw new PipelineProtocolException("Received " + registersResponse.getWordCount() +
+                            " registers instead of the requested " + chunk.len);
+                    }
+                    int i = chunk.offset;
+                    for (int r = 0; r < chunk.len; r++) {
+                        int value = registersResponse.getRegisterValue(r);
+                        chunk.target[i++] = (byte) (value >> 8);
+                        chunk.target[i++] = (byte) value;
+                    }
+                    received++;
+                }
+            } catch (ModbusException | RuntimeException e) {
+                if (!inFlight.isEmpty()) {
+                    // Responses may still arrive for requests in flight: drop the connection to discard them.
+                    disconnect();
+                }
+                throw e;
+            }
+        }
+    }
 
     public void connect() throws Exception {
-        if (!isConnected) {
-            master.connect();
-            isConnected = true;
+        requestLock.lock();
+        try {
+            if (!isConnected) {
+                master.connect();
+                isConnected = true;
+            }
+        } finally {
+            requestLock.unlock();
         }
     }
 
     public void disconnect() {
-        if (isConnected) {
-            master.disconnect();
-            isConnected = false;
+        requestLock.lock();
+        try {
+            if (isConnected) {
+                master.disconnect();
+                isConnected = false;
+            }
+        } finally {
+            requestLock.unlock();
         }
     }
 
     @Override
     public void close() {
         disconnect();
+        DeviceSettingsStore settingsStore = adaptiveSettingsStore;
+        if (settingsStore != null) {
+            settingsStore.flush();
+        }
     }
 }
@@ -0,0 +1,359 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package nl.basjes.modbus;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.facade.AbstractModbusMaster;
+import com.ghgande.j2mod.modbus.io.AbstractModbusTransport;
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.util.BitVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single connection to a Modbus TCP gateway (i.e. an RS485 to TCP bridge) that is shared
+ * by the readers of all the devices (unit ids) behind it.
+ * Use the same instance as the master of all these readers.
+ * <ul>
+ *     <li>The requests of all readers are handled one at a time in the order they arrived (fair queue).</li>
+ *     <li>A disconnect by one of the readers does not close the shared connection; only {@link #close()} does.</li>
+ *     <li>If the connection fails (or a request times out) the next request reconnects; all others reuse that new connection.</li>
+ *     <li>The latency of the requests is recorded per unit id.</li>
+ * </ul>
+ */
+public class ModbusGateway extends AbstractModbusMaster implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ModbusGateway.class);
+
+    private final AbstractModbusMaster master;
+    private final ReentrantLock        requestLock = new ReentrantLock(true);
+    private final Object               connectLock = new Object();
+
+    // Incremented every time a new connection is made.
+    private volatile long    connectionGeneration = 0;
+    private volatile boolean connectionBroken     = false;
+    private long             connects             = 0;
+
+    private final ConcurrentMap<Integer, UnitStatistics> unitStatistics = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Integer>        unitTimeouts   = new ConcurrentHashMap<>();
+
+    public ModbusGateway(AbstractModbusMaster master) {
+        this.master = master;
+    }
+
+    public static class UnitStatistics {
+        private long requests       = 0;
+        private long failures       = 0;
+        private long totalWaitNanos = 0;
+        private long totalNanos     = 0;
+        private long maxNanos       = 0;
+        private long lastNanos      = 0;
+
+        synchronized void record(long waitNanos, long requestNanos, boolean failed) {
+            requests++;
+            if (failed) {
+                failures++;
+            }
+            totalWaitNanos += waitNanos;
+            totalNanos += requestNanos;
+            maxNanos = Math.max(maxNanos, requestNanos);
+            lastNanos = requestNanos;
+        }
+
+        public synchronized long getRequests() {
+            return requests;
+        }
+
+        public synchronized long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return The average time a request had to wait for the requests of other units (in milliseconds).
+         */
+        public synchronized double getAverageQueueWaitMs() {
+            return requests == 0 ? 0 : (totalWaitNanos / (double) requests) / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        /**
+         * @return The average time between sending the request and receiving the response (in milliseconds).
+         */
+        public synchronized double getAverageLatencyMs() {
+            return requests == 0 ? 0 : (totalNanos / (double) requests) / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public synchronized double getMaxLatencyMs() {
+            return maxNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public synchronized double getLastLatencyMs() {
+            return lastNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("UnitStatistics{requests=%d, failures=%d, avgQueueWait=%.2fms, avgLatency=%.2fms, maxLatency=%.2fms}",
+                requests, failures, getAverageQueueWaitMs(), getAverageLatencyMs(), getMaxLatencyMs());
+        }
+    }
+
+    /**
+     * Connects the shared connection if needed.
+     * If the current connection was found to be broken it is replaced, but only once no matter
+     * how many readers call this.
+     */
+    @Override
+    public void connect() throws Exception {
+        // Never replace the connection while another reader is using it.
+        requestLock.lock();
+        try {
+            synchronized (connectLock) {
+                if (connectionBroken) {
+                    LOG.info("Reconnecting to the gateway {}", master);
+                    master.disconnect();
+                } else if (master.isConnected()) {
+                    return;
+                }
+                master.connect();
+                connectionBroken = false;
+                connectionGeneration++;
+                connects++;
+            }
+        } finally {
+            requestLock.unlock();
+        }
+    }
+
+    /**
+     * The connection is shared so an individual reader does not close it.
+     * Use {@link #close()} to really close the connection.
+     */
+    @Override
+    public void disconnect() {
+        // Intentionally empty.
+    }
+
+    @Override
+    public void close() {
+        synchronized (connectLock) {
+            master.disconnect();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !connectionBroken && master.isConnected();
+    }
+
+    @Override
+    public AbstractModbusTransport getTransport() {
+        return master.getTransport();
+    }
+
+    @Override
+    public int getTimeout() {
+        return master.getTimeout();
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        master.setTimeout(timeout);
+    }
+
+    /**
+     * Use a different timeout for the requests to one specific unit id.
+     * @param unitId The unit id of the device
+     * @param timeoutMs The timeout (in milliseconds) or null to use the timeout of the gateway.
+     */
+    public void setUnitTimeout(int unitId, Integer timeoutMs) {
+        if (timeoutMs == null) {
+            unitTimeouts.remove(unitId);
+        } else {
+            unitTimeouts.put(unitId, timeoutMs);
+        }
+    }
+
+    @Override
+    public BitVector readCoils(int unitId, int ref, int count) throws ModbusException {
+        return transaction(unitId, () -> master.readCoils(unitId, ref, count));
+    }
+
+    @Override
+    public boolean writeCoil(int unitId, int ref, boolean state) throws ModbusException {
+        return transaction(unitId, () -> master.writeCoil(unitId, ref, state));
+    }
+
+    @Override
+    public void writeMultipleCoils(int unitId, int ref, BitVector coils) throws ModbusException {
+        transaction(unitId, () -> {
+            master.writeMultipleCoils(unitId, ref, coils);
+            return null;
+        });
+    }
+
+    @Override
+    public BitVector readInputDiscretes(int unitId, int ref, int count) throws ModbusException {
+        return transaction(unitId, () -> master.readInputDiscretes(unitId, ref, count));
+    }
+
+    @Override
+    public InputRegister[] readInputRegisters(int unitId, int ref, int count) throws ModbusException {
+        return transaction(unitId, () -> master.readInputRegisters(unitId, ref, count));
+    }
+
+    @Override
+    public Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+        return transaction(unitId, () -> master.readMultipleRegisters(unitId, ref, count));
+    }
+
+    @Override
+    public int writeSingleRegister(int unitId, int ref, Register register) throws ModbusException {
+        return transaction(unitId, () -> master.writeSingleRegister(unitId, ref, register));
+    }
+
+    @Override
+    public int writeMultipleRegisters(int unitId, int ref, Register[] registers) throws ModbusException {
+        return transaction(unitId, () -> master.writeMultipleRegisters(unitId, ref, registers));
+    }
+
+    @Override
+    public boolean maskWriteRegister(int unitId, int ref, int andMask, int orMask) throws ModbusException {
+        return transaction(unitId, () -> master.maskWriteRegister(unitId, ref, andMask, orMask));
+    }
+
+    @Override
+    public void setRetries(int retries) {
+        master.setRetries(retries);
+    }
+
+    @Override
+    public void setCheckingValidity(boolean b) {
+        master.setCheckingValidity(b);
+    }
+
+    /**
+     * Every request (of any function code) on the shared connection goes through here so they are
+     * all handled one at a time in the order they arrived.
+     */
+    private <T> T transaction(int unitId, ModBusDataReader.ModbusOperation<T> operation) throws ModbusException {
+        long queued = System.nanoTime();
+        requestLock.lock();
+        int gatewayTimeout = master.getTimeout();
+        try {
+            if (connectionBroken) {
+                // Nobody reconnected yet; do it now instead of using the broken connection.
+                try {
+                    connect();
+                } catch (Exception e) {
+                    throw new ModbusIOException("Unable to reconnect to the gateway " + master, e);
+                }
+            }
+            Integer unitTimeout = unitTimeouts.get(unitId);
+            if (unitTimeout != null && unitTimeout != gatewayTimeout) {
+                master.setTimeout(unitTimeout);
+            }
+            long generation = connectionGeneration;
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                T result = operation.execute();
+                failed = false;
+                return result;
+            } catch (ModbusSlaveException e) {
+                // The device answered: the connection itself is fine.
+                throw e;
+            } catch (ModbusException e) {
+                if (isConnectionFailure(e)) {
+                    markBroken(generation);
+                }
+                throw e;
+            } finally {
+                getUnitStatistics(unitId).record(start - queued, System.nanoTime() - start, failed);
+            }
+        } finally {
+            if (master.getTimeout() != gatewayTimeout) {
+                master.setTimeout(gatewayTimeout);
+            }
+            requestLock.unlock();
+        }
+    }
+
+    /**
+     * After a timeout the state of the shared connection is unknown: a late response would be read as
+     * the answer to the next request (possibly of another unit). So a timeout (which j2mod reports as a
+     * ModbusIOException without a cause) replaces the connection just like a failed socket does.
+     * This also makes a gateway that hangs recover.
+     */
+    private boolean isConnectionFailure(ModbusException e) {
+        if (!master.isConnected()) {
+            return true;
+        }
+        if (e instanceof ModbusIOException) {
+            return true;
+        }
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) { // Includes the SocketTimeoutException
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void markBroken(long generation) {
+        // Only when the failure happened on the current connection (and not on one that was already replaced).
+        if (generation == connectionGeneration) {
+            connectionBroken = true;
+        }
+    }
+
+    /**
+     * @return How often a connection to the gateway was made.
+     */
+    public long getConnects() {
+        synchronized (connectLock) {
+            return connects;
+        }
+    }
+
+    public UnitStatistics getUnitStatistics(int unitId) {
+        return unitStatistics.computeIfAbsent(unitId, id -> new UnitStatistics());
+    }
+
+    /**
+     * @return The latency statistics of all unit ids that were used so far.
+     */
+    public Map<Integer, UnitStatistics> getAllUnitStatistics() {
+        return Collections.unmodifiableMap(new TreeMap<>(unitStatistics));
+    }
+
+    @Override
+    public String toString() {
+        return "ModbusGateway{" + master + '}';
+    }
+}
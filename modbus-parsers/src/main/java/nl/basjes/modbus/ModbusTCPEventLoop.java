@@ -0,0 +1,235 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package nl.basjes.modbus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread that does all the network IO for any number of {@link NioModbusTCPMaster}s
+ * using a non-blocking selector.
+ * All state of the connections is only touched from this thread; other threads hand over their work
+ * as tasks.
+ */
+public class ModbusTCPEventLoop implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ModbusTCPEventLoop.class);
+
+    // The largest possible Modbus TCP frame (MBAP header + PDU) is 260 bytes.
+    static final int MAX_FRAME_SIZE = 260;
+
+    private final Selector                  selector;
+    private final Thread                    thread;
+    private final Queue<Runnable>           tasks    = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Deadline>   deadlines =
+        new PriorityQueue<>((a, b) -> Long.compare(a.deadline, b.deadline));
+    private final List<NioModbusTCPMaster>  masters  = new ArrayList<>();
+    private final ArrayDeque<ByteBuffer>    pool     = new ArrayDeque<>();
+    private volatile boolean                running  = true;
+    private volatile boolean                stopped  = false;
+    private int                             pendingDeadlines = 0;
+
+    /**
+     * An entry in the deadline queue. When the request completes the entry is only detached from it
+     * (so the target array is not kept reachable) and it is skipped when its time has come.
+     */
+    static final class Deadline {
+        final long                  deadline;
+        NioModbusTCPMaster.Request  request;
+
+        Deadline(NioModbusTCPMaster.Request request) {
+            this.deadline = request.deadline;
+            this.request = request;
+        }
+    }
+
+    public ModbusTCPEventLoop() throws IOException {
+        this("ModbusTCPEventLoop");
+    }
+
+    public ModbusTCPEventLoop(String threadName) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run the task on the event loop thread.
+     */
+    void execute(Runnable task) {
+        if (!running) {
+            throw new IllegalStateException("The event loop has been closed");
+        }
+        tasks.add(task);
+        // The loop may have done its final run of the tasks between the check above and adding this one.
+        if (stopped && tasks.remove(task)) {
+            throw new IllegalStateException("The event loop has been closed");
+        }
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    void register(NioModbusTCPMaster master) {
+        masters.add(master);
+    }
+
+    void unregister(NioModbusTCPMaster master) {
+        masters.remove(master);
+    }
+
+    void addDeadline(NioModbusTCPMaster.Request request) {
+        Deadline deadline = new Deadline(request);
+        request.deadlineEntry = deadline;
+        deadlines.add(deadline);
+        pendingDeadlines++;
+    }
+
+    // Constant time: the entry stays in the queue until it is polled but no longer refers to the request.
+    void removeDeadline(NioModbusTCPMaster.Request request) {
+        Deadline deadline = request.deadlineEntry;
+        if (deadline != null) {
+            deadline.request = null;
+            request.deadlineEntry = null;
+            pendingDeadlines--;
+        }
+    }
+
+    int getPendingDeadlines() {
+        return pendingDeadlines;
+    }
+
+    // Only used from the event loop thread so no synchronization is needed.
+    ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = pool.pollFirst();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    void returnBuffer(ByteBuffer buffer) {
+        if (buffer != null) {
+            pool.addFirst(buffer);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                expireRequests();
+
+                long timeoutMs = 0;
+                Deadline first = deadlines.peek();
+                if (first != null) {
+                    timeoutMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(first.deadline - System.nanoTime()) + 1);
+                }
+                if (tasks.isEmpty()) {
+                    selector.select(timeoutMs);
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    ((NioModbusTCPMaster) key.attachment()).handle(key);
+                }
+            } catch (Exception e) {
+                // Should never happen: all IO problems are handled per connection.
+                LOG.error("Unexpected exception in the Modbus event loop: {}", e.getMessage(), e);
+            }
+        }
+
+        // Tasks that were handed over while closing still get to run so nobody waits forever.
+        // After this flag is set a task is either still seen here or refused by execute.
+        // Requests these tasks enqueue are failed when the connections are closed below.
+        stopped = true;
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        for (NioModbusTCPMaster master : new ArrayList<>(masters)) {
+            master.closeChannel(new IOException("The event loop has been closed"));
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close the selector: {}", e.getMessage());
+        }
+    }
+
+    private void expireRequests() {
+        long now = System.nanoTime();
+        Deadline first;
+        while ((first = deadlines.peek()) != null && (first.request == null || first.deadline - now <= 0)) {
+            deadlines.poll();
+            NioModbusTCPMaster.Request request = first.request;
+            if (request != null) {
+                removeDeadline(request);
+                if (!request.future.isDone()) {
+                    request.master.expire(request);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        if (!inEventLoop()) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package nl.basjes.modbus;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.facade.AbstractModbusMaster;
+import com.ghgande.j2mod.modbus.io.AbstractModbusTransport;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Modbus TCP master that does not block a thread per connection.
+ * All IO is done by a (shared) {@link ModbusTCPEventLoop}, the reads are available as
+ * {@link CompletableFuture}s and via the normal (blocking) {@link #readMultipleRegisters(int, int, int)}
+ * so it can be used as the master of a {@link ModBusDataReader}.
+ * Only reading holding registers is supported.
+ */
+public class NioModbusTCPMaster extends AbstractModbusMaster {
+    private static final Logger LOG = LoggerFactory.getLogger(NioModbusTCPMaster.class);
+
+    private static final int MBAP_HEADER_SIZE = 7;
+    private static final int FUNCTION_READ_MULTIPLE_REGISTERS = Modbus.READ_MULTIPLE_REGISTERS;
+
+    private final ModbusTCPEventLoop eventLoop;
+    private final InetSocketAddress  address;
+
+    // The maximum number of requests that are sent before their responses have been received.
+    private volatile int maxInFlight = 1;
+    private volatile boolean connected = false;
+
+    // ---------- All fields below are only used by the event loop thread ----------
+    private SocketChannel               channel;
+    private SelectionKey                key;
+    private CompletableFuture<Void>     connecting;
+    private ByteBuffer                  readBuffer;
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private final ArrayDeque<Request>   waiting     = new ArrayDeque<>();
+    private final Map<Integer, Request> inFlight    = new HashMap<>();
+    private int                         lastTransactionId = 0;
+
+    // Requests that timed out after they were sent; used to measure how late their response was.
+    private static final int            MAX_REMEMBERED_EXPIRED = 64;
+    private final Map<Integer, Request> expired = new LinkedHashMap<Integer, Request>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Request> eldest) {
+            return size() > MAX_REMEMBERED_EXPIRED;
+        }
+    };
+    private final List<RoundTripListener> roundTripListeners = new CopyOnWriteArrayList<>();
+
+    static final class Request {
+        final NioModbusTCPMaster        master;
+        final int                       unitId;
+        final int                       reference;
+        final int                       count;
+        final byte[]                    target;
+        final int                       targetOffset;
+        final int                       timeoutMs;
+        final CompletableFuture<byte[]> future = new RequestFuture(this);
+        int                             transactionId;
+        long                            deadline;
+        ModbusTCPEventLoop.Deadline     deadlineEntry;
+        long                            sentAt;
+
+        Request(NioModbusTCPMaster master, int unitId, int reference, int count, byte[] target, int targetOffset, int timeoutMs) {
+            this.master = master;
+            this.unitId = unitId;
+            this.reference = reference;
+            this.count = count;
+            this.target = target;
+            this.targetOffset = targetOffset;
+            this.timeoutMs = timeoutMs;
+        }
+    }
+
+    /**
+     * Cancelling a read guarantees that its target array is not written anymore after cancel returns.
+     */
+    private static final class RequestFuture extends CompletableFuture<byte[]> {
+        private final Request request;
+
+        RequestFuture(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled;
+            // The event loop copies the response into the target while holding this lock.
+            synchronized (this) {
+                cancelled = super.cancel(mayInterruptIfRunning);
+            }
+            if (cancelled) {
+                try {
+                    request.master.eventLoop.execute(() -> request.master.forget(request));
+                } catch (IllegalStateException e) {
+                    // The event loop has been closed so nothing is in flight anymore.
+                }
+            }
+            return cancelled;
+        }
+    }
+
+    public NioModbusTCPMaster(ModbusTCPEventLoop eventLoop, String host, int port) {
+        this.eventLoop = eventLoop;
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    /**
+     * @param newMaxInFlight How many requests may be outstanding on this connection at the same time.
+     */
+    public void setMaxInFlight(int newMaxInFlight) {
+        if (newMaxInFlight < 1) {
+            throw new IllegalArgumentException("The maximum number of requests in flight MUST be at least 1");
+        }
+        maxInFlight = newMaxInFlight;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public void connect() throws Exception {
+        if (connected) {
+            return;
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        eventLoop.execute(() -> openChannel(result));
+        try {
+            result.get(getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            eventLoop.execute(() -> closeChannel(new IOException("Timeout while connecting to " + address)));
+            throw new ModbusIOException("Timeout while connecting to " + address);
+        } catch (ExecutionException e) {
+            throw new ModbusIOException("Unable to connect to " + address, e.getCause());
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        connected = false;
+        if (eventLoop.inEventLoop()) {
+            closeChannel(new IOException("Disconnected"));
+            return;
+        }
+        // Wait for the connection to be really closed so a connect right after this opens a new one.
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        try {
+            eventLoop.execute(() -> {
+                closeChannel(new IOException("Disconnected"));
+                closed.complete(null);
+            });
+            closed.get(getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException | ExecutionException | TimeoutException e) {
+            LOG.debug("Unable to wait for the disconnect from {}: {}", address, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * There is no j2mod transport: only the register reads of this class are supported.
+     */
+    @Override
+    public AbstractModbusTransport getTransport() {
+        return null;
+    }
+
+    /**
+     * Read holding registers without blocking.
+     * @param unitId The unit id of the device
+     * @param reference The first register
+     * @param count The number of registers
+     * @return A future with the raw bytes (2 per register) of the requested registers.
+     */
+    public CompletableFuture<byte[]> readMultipleRegistersAsync(int unitId, int reference, int count) {
+        return readMultipleRegistersInto(unitId, reference, count, null, 0);
+    }
+
+    /**
+     * Read holding registers without blocking directly into the provided array.
+     * The response is decoded straight from the network buffer so no intermediate objects are created.
+     * @param unitId The unit id of the device
+     * @param reference The first register
+     * @param count The number of registers
+     * @param target Where the raw bytes (2 per register) must be stored (null = allocate a new array).
+     * @param offset The position in the target of the first byte.
+     * @return A future with the target array.
+     */
+    public CompletableFuture<byte[]> readMultipleRegistersInto(int unitId, int reference, int count, byte[] target, int offset) {
+        return readMultipleRegistersInto(unitId, reference, count, target, offset, getTimeout());
+    }
+
+    /**
+     * Same as {@link #readMultipleRegistersInto(int, int, int, byte[], int)} with a timeout for only this request.
+     */
+    public CompletableFuture<byte[]> readMultipleRegistersInto(int unitId, int reference, int count, byte[] target, int offset, int timeoutMs) {
+        if (target != null && (offset < 0 || offset + count * 2 > target.length)) {
+            throw new IllegalArgumentException("The target array is too small for " + count + " registers at offset " + offset);
+        }
+        Request request = new Request(this, unitId, reference, count, target, offset, timeoutMs);
+        try {
+            eventLoop.execute(() -> enqueue(request));
+        } catch (IllegalStateException e) {
+            request.future.completeExceptionally(new ModbusIOException(e.getMessage()));
+        }
+        return request.future;
+    }
+
+    @Override
+    public Register[] readMultipleRegisters(int unitId, int reference, int count) throws ModbusException {
+        byte[] bytes = await(readMultipleRegistersAsync(unitId, reference, count));
+        Register[] registers = new Register[count];
+        for (int i = 0; i < count; i++) {
+            registers[i] = new SimpleRegister(bytes[2 * i], bytes[2 * i + 1]);
+        }
+        return registers;
+    }
+
+    /**
+     * Wait for the result and convert any failure into the appropriate ModbusException.
+     */
+    static <T> T await(CompletableFuture<T> future) throws ModbusException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Interrupted while waiting for the response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ModbusException) {
+                throw (ModbusException) cause;
+            }
+            throw new ModbusIOException("Reading failed", cause);
+        }
+    }
+
+    // ---------- Everything below runs on the event loop thread ----------
+
+    private void openChannel(CompletableFuture<Void> result) {
+        if (connected) {
+            result.complete(null);
+            return;
+        }
+        if (connecting != null) {
+            connecting.whenComplete((v, t) -> {
+                if (t == null) {
+                    result.complete(null);
+                } else {
+                    result.completeExceptionally(t);
+                }
+            });
+            return;
+        }
+        connecting = result;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            eventLoop.register(this);
+            if (channel.connect(address)) {
+                key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+                connectionEstablished();
+            } else {
+                key = channel.register(eventLoop.getSelector(), SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            closeChannel(e);
+        }
+    }
+
+    private void connectionEstablished() {
+        readBuffer = eventLoop.borrowBuffer();
+        connected = true;
+        CompletableFuture<Void> result = connecting;
+        connecting = null;
+        result.complete(null);
+        sendWaiting();
+    }
+
+    void closeChannel(IOException reason) {
+        connected = false;
+        eventLoop.unregister(this);
+        if (channel != null) {
+            try {
+                channel.close(); // Also cancels the key
+            } catch (IOException e) {
+                LOG.debug("Unable to close the connection to {}: {}", address, e.getMessage());
+            }
+        }
+        channel = null;
+        key = null;
+
+        eventLoop.returnBuffer(readBuffer);
+        readBuffer = null;
+        expired.clear();
+        while (!writeQueue.isEmpty()) {
+            eventLoop.returnBuffer(writeQueue.poll());
+        }
+
+        if (connecting != null) {
+            connecting.completeExceptionally(reason);
+            connecting = null;
+        }
+        List<Request> failed = new ArrayList<>(inFlight.values());
+        failed.addAll(waiting);
+        inFlight.clear();
+        waiting.clear();
+        for (Request request : failed) {
+            eventLoop.removeDeadline(request);
+            request.future.completeExceptionally(new ModbusIOException("Connection to " + address + " lost: " + reason.getMessage()));
+        }
+    }
+
+    private void enqueue(Request request) {
+        if (!connected && connecting == null) {
+            request.future.completeExceptionally(new ModbusIOException("Not connected"));
+            return;
+        }
+        request.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(request.timeoutMs);
+        eventLoop.addDeadline(request);
+        waiting.add(request);
+        if (connected) {
+            sendWaiting();
+        }
+    }
+
+    void expire(Request request) {
+        // A late response will have an unknown transaction id and is then ignored.
+        if (inFlight.remove(request.transactionId) == request) {
+            expired.put(request.transactionId, request);
+            for (RoundTripListener listener : roundTripListeners) {
+                listener.onTimeout(request.unitId, request.timeoutMs);
+            }
+        }
+        waiting.remove(request);
+        request.future.completeExceptionally(new ModbusIOException("Timeout waiting for the response from " + address));
+        sendWaiting();
+    }
+
+    // The caller cancelled the request: free its slot, a response that still arrives is ignored.
+    private void forget(Request request) {
+        eventLoop.removeDeadline(request);
+        if (inFlight.remove(request.transactionId) == request) {
+            expired.put(request.transactionId, request);
+        }
+        waiting.remove(request);
+        sendWaiting();
+    }
+
+    private void sendWaiting() {
+        if (!connected) {
+            return;
+        }
+        while (!waiting.isEmpty() && inFlight.size() < maxInFlight) {
+            Request request = waiting.poll();
+            lastTransactionId = (lastTransactionId % 0xFFFF) + 1;
+            request.transactionId = lastTransactionId;
+            request.sentAt = System.nanoTime();
+            expired.remove(request.transactionId);
+            inFlight.put(request.transactionId, request);
+
+            ByteBuffer frame = eventLoop.borrowBuffer();
+            frame.putShort((short) request.transactionId);
+            frame.putShort((short) 0);              // Protocol id
+            frame.putShort((short) 6);              // Remaining length: unit id + PDU
+            frame.put((byte) request.unitId);
+            frame.put((byte) FUNCTION_READ_MULTIPLE_REGISTERS);
+            frame.putShort((short) request.reference);
+            frame.putShort((short) request.count);
+            frame.flip();
+            writeQueue.add(frame);
+        }
+        write();
+    }
+
+    private void write() {
+        try {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer frame = writeQueue.peek();
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                eventLoop.returnBuffer(writeQueue.poll());
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeChannel(e);
+        }
+    }
+
+    void handle(SelectionKey selectionKey) {
+        try {
+            if (!selectionKey.isValid()) {
+                return;
+            }
+            if (selectionKey.isConnectable()) {
+                if (channel.finishConnect()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    connectionEstablished();
+                }
+                return;
+            }
+            if (selectionKey.isWritable()) {
+                write();
+            }
+            if (selectionKey.isValid() && selectionKey.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            closeChannel(e);
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            closeChannel(new IOException("Connection closed by the device"));
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.remaining() >= MBAP_HEADER_SIZE) {
+            int start = readBuffer.position();
+            int length = readBuffer.getShort(start + 4) & 0xFFFF;
+            if (length < 3 || MBAP_HEADER_SIZE - 1 + length > ModbusTCPEventLoop.MAX_FRAME_SIZE) {
+                closeChannel(new IOException("Received an invalid Modbus TCP frame"));
+                return;
+            }
+            int frameSize = 6 + length;
+            if (readBuffer.remaining() < frameSize) {
+                break;
+            }
+            handleFrame(readBuffer, start, length);
+            readBuffer.position(start + frameSize);
+        }
+        readBuffer.compact();
+        sendWaiting();
+    }
+
+    private void handleFrame(ByteBuffer frame, int start, int length) {
+        int transactionId = frame.getShort(start) & 0xFFFF;
+        Request request = inFlight.remove(transactionId);
+        if (request == null) {
+            Request expiredRequest = expired.remove(transactionId);
+            if (expiredRequest != null) {
+                long roundTrip = System.nanoTime() - expiredRequest.sentAt;
+                LOG.debug("Ignoring a late response ({} ms) from {}", TimeUnit.NANOSECONDS.toMillis(roundTrip), address);
+                notifyResponse(expiredRequest.unitId, roundTrip);
+                return;
+            }
+            LOG.debug("Ignoring a response with unknown transaction id {} from {}", transactionId, address);
+            return;
+        }
+        eventLoop.removeDeadline(request);
+        notifyResponse(request.unitId, System.nanoTime() - request.sentAt);
+
+        int functionCode = frame.get(start + 7) & 0xFF;
+        if (functionCode == (FUNCTION_READ_MULTIPLE_REGISTERS | Modbus.EXCEPTION_OFFSET)) {
+            request.future.completeExceptionally(new ModbusSlaveException(frame.get(start + 8) & 0xFF));
+            return;
+        }
+        if (functionCode != FUNCTION_READ_MULTIPLE_REGISTERS) {
+            request.future.completeExceptionally(new ModbusIOException("Unexpected function code " + functionCode + " in response"));
+            return;
+        }
+        int byteCount = frame.get(start + 8) & 0xFF;
+        if (byteCount != request.count * 2 || byteCount > length - 3) {
+            request.future.completeExceptionally(new ModbusIOException("Received " + (byteCount / 2) +
+                " registers instead of the requested " + request.count));
+            return;
+        }
+        byte[] target = request.target;
+        int    offset = request.targetOffset;
+        if (target == null) {
+            target = new byte[byteCount];
+            offset = 0;
+        }
+        synchronized (request.future) {
+            if (request.future.isDone()) {
+                return; // Cancelled: the target belongs to the caller again.
+            }
+            frame.position(start + 9);
+            frame.get(target, offset, byteCount);
+            request.future.complete(target);
+        }
+    }
+
+    private void notifyResponse(int unitId, long roundTripNanos) {
+        for (RoundTripListener listener : roundTripListeners) {
+            listener.onResponse(unitId, roundTripNanos);
+        }
+    }
+
+    /**
+     * The listener is called (from the event loop thread) for every response and every timeout,
+     * including responses that arrive after the request had already timed out.
+     */
+    public void addRoundTripListener(RoundTripListener listener) {
+        roundTripListeners.add(listener);
+    }
+
+    public void removeRoundTripListener(RoundTripListener listener) {
+        roundTripListeners.remove(listener);
+    }
+
+    @Override
+    public String toString() {
+        return "NioModbusTCPMaster{" + address + '}';
+    }
+}
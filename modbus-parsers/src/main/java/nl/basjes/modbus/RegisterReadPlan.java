@@ -0,0 +1,205 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package nl.basjes.modbus;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A plan to retrieve a set of register ranges with as few Modbus requests as possible.
+ * Neighbouring ranges (and the registers between them) are merged into a single request
+ * as long as that request does not exceed the maximum number of registers per request.
+ */
+public class RegisterReadPlan {
+
+    public static class RegisterRange {
+        public int start;
+        public int len;
+
+        public RegisterRange(int start, int len) {
+            this.start = start;
+            this.len = len;
+        }
+
+        public int end() {
+            return start + len;
+        }
+
+        @Override
+        public String toString() {
+            return "RegisterRange{" +
+                "start=" + start +
+                ", len=" + len +
+                '}';
+        }
+    }
+
+    private final List<RegisterRange> requests;
+
+    private RegisterReadPlan(List<RegisterRange> requests) {
+        this.requests = Collections.unmodifiableList(requests);
+    }
+
+    /**
+     * Create a plan that retrieves all of the provided ranges.
+     * @param ranges The register ranges that must be retrieved.
+     * @param maxRegistersPerRequest The maximum number of registers in a single request.
+     * @param maxGap The maximum number of unwanted registers that may be read to be able to merge two ranges.
+     * @return The plan
+     */
+    public static RegisterReadPlan create(Collection<RegisterRange> ranges, int maxRegistersPerRequest, int maxGap) {
+        if (maxRegistersPerRequest < 1) {
+            throw new IllegalArgumentException("The maxRegistersPerRequest must be at least 1");
+        }
+
+        // Sort and combine all overlapping and touching ranges into disjoint intervals.
+        List<RegisterRange> sorted = new ArrayList<>();
+        for (RegisterRange range : ranges) {
+            if (range.len > 0) {
+                sorted.add(new RegisterRange(range.start, range.len));
+            }
+        }
+        sorted.sort(Comparator.comparingInt(r -> r.start));
+
+        List<RegisterRange> intervals = new ArrayList<>();
+        for (RegisterRange range : sorted) {
+            if (!intervals.isEmpty()) {
+                RegisterRange last = intervals.get(intervals.size() - 1);
+                if (range.start <= last.end()) {
+                    last.len = Math.max(last.end(), range.end()) - last.start;
+                    continue;
+                }
+            }
+            intervals.add(range);
+        }
+
+        // Greedy: every request starts at the first register that has not been retrieved yet
+        // and extends as far as allowed. For covering intervals on a line this is optimal.
+        List<RegisterRange> requests = new ArrayList<>();
+        int index = 0;
+        int position = intervals.isEmpty() ? 0 : intervals.get(0).start;
+        while (index < intervals.size()) {
+            int requestStart = Math.max(position, intervals.get(index).start);
+            int requestLimit = requestStart + maxRegistersPerRequest;
+            int requestEnd   = requestStart;
+
+            while (index < intervals.size()) {
+                RegisterRange interval = intervals.get(index);
+                if (interval.start >= requestLimit ||
+                    (requestEnd > requestStart && interval.start - requestEnd > maxGap)) {
+                    break;
+                }
+                if (interval.end() <= requestLimit) {
+                    requestEnd = interval.end();
+                    index++;
+                } else {
+                    requestEnd = requestLimit;
+                    break;
+                }
+            }
+            requests.add(new RegisterRange(requestStart, requestEnd - requestStart));
+            position = requestEnd;
+        }
+        return new RegisterReadPlan(requests);
+    }
+
+    /**
+     * @return The requests that will be done when executing this plan.
+     */
+    public List<RegisterRange> getRequests() {
+        return requests;
+    }
+
+    /**
+     * Do all the requests of this plan.
+     * @param dataReader The connection to the device.
+     * @return The retrieved registers from which the originally requested ranges can be extracted.
+     * @throws ModbusException In case of problems
+     */
+    public Result execute(ModBusDataReader dataReader) throws ModbusException {
+        return new Result(requests, dataReader.getRawRegisterBytes(requests));
+    }
+
+    /**
+     * Do all the requests of this plan and store the registers in the arrays of a previous result.
+     * @param dataReader The connection to the device.
+     * @param reuse A previous result of this plan (if null or from a different plan new arrays are allocated).
+     * @return The retrieved registers from which the originally requested ranges can be extracted.
+     * @throws ModbusException In case of problems
+     */
+    public Result execute(ModBusDataReader dataReader, Result reuse) throws ModbusException {
+        if (reuse == null || reuse.requests != requests) {
+            return execute(dataReader);
+        }
+        dataReader.getRawRegisterBytes(requests, reuse.data);
+        return reuse;
+    }
+
+    public static class Result {
+        private final List<RegisterRange> requests;
+        private final List<byte[]>        data;
+
+        Result(List<RegisterRange> requests, List<byte[]> data) {
+            this.requests = requests;
+            this.data = data;
+        }
+
+        /**
+         * Extract the bytes of a range of registers from the retrieved data.
+         * @param start The first register
+         * @param len The number of registers
+         * @return The raw bytes of the requested registers (2 bytes per register).
+         */
+        public byte[] getRegisterBytes(int start, int len) {
+            byte[] result = new byte[len * 2];
+            copyRegisterBytes(start, len, result, 0);
+            return result;
+        }
+
+        /**
+         * Copy the bytes of a range of registers from the retrieved data into an existing array.
+         * @param start The first register
+         * @param len The number of registers
+         * @param target Where the raw bytes of the requested registers (2 bytes per register) must be stored.
+         * @param offset The position in the target of the first byte.
+         */
+        public void copyRegisterBytes(int start, int len, byte[] target, int offset) {
+            int end = start + len;
+            int copied = 0;
+            for (int i = 0; i < requests.size(); i++) {
+                RegisterRange request = requests.get(i);
+                int from = Math.max(start, request.start);
+                int to   = Math.min(end,   request.end());
+                if (from >= to) {
+                    continue;
+                }
+                System.arraycopy(data.get(i), (from - request.start) * 2, target, offset + (from - start) * 2, (to - from) * 2);
+                copied += to - from;
+            }
+            if (copied != len) {
+                throw new IllegalArgumentException("The registers " + start + "+" + len + " were not part of this read plan.");
+            }
+        }
+    }
+
+}
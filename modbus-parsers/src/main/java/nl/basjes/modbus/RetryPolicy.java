@@ -0,0 +1,116 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.modbus;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often and how fast a failed Modbus read is retried.
+ * The delay before retry n (starting at 0) is initialBackoffMs * multiplier^n (at most maxBackoffMs)
+ * of which a random part (the jitter) is taken off so many readers that failed at the same moment
+ * do not all retry at the same moment.
+ */
+public class RetryPolicy {
+
+    private int    maxRetries       = 1;
+    private long   initialBackoffMs = 50;
+    private long   maxBackoffMs     = 5000;
+    private double multiplier       = 2.0;
+    private double jitter           = 0.5;
+
+    /**
+     * @return A policy that does not retry at all.
+     */
+    public static RetryPolicy noRetries() {
+        return new RetryPolicy().withMaxRetries(0);
+    }
+
+    public RetryPolicy withMaxRetries(int newMaxRetries) {
+        if (newMaxRetries < 0) {
+            throw new IllegalArgumentException("The maximum number of retries cannot be negative");
+        }
+        maxRetries = newMaxRetries;
+        return this;
+    }
+
+    public RetryPolicy withBackoff(long newInitialBackoffMs, long newMaxBackoffMs, double newMultiplier) {
+        if (newInitialBackoffMs < 0 || newMaxBackoffMs < newInitialBackoffMs || newMultiplier < 1.0) {
+            throw new IllegalArgumentException("Invalid backoff: initial=" + newInitialBackoffMs +
+                "ms, max=" + newMaxBackoffMs + "ms, multiplier=" + newMultiplier);
+        }
+        initialBackoffMs = newInitialBackoffMs;
+        maxBackoffMs = newMaxBackoffMs;
+        multiplier = newMultiplier;
+        return this;
+    }
+
+    /**
+     * @param newJitter The fraction (0.0 - 1.0) of the delay that is randomized.
+     */
+    public RetryPolicy withJitter(double newJitter) {
+        if (newJitter < 0.0 || newJitter > 1.0) {
+            throw new IllegalArgumentException("The jitter must be between 0.0 and 1.0");
+        }
+        jitter = newJitter;
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getInitialBackoffMs() {
+        return initialBackoffMs;
+    }
+
+    public long getMaxBackoffMs() {
+        return maxBackoffMs;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @param retry The retry (0 = the first retry) for which the delay is needed.
+     * @return The number of milliseconds to wait before doing this retry.
+     */
+    public long getBackoffMs(int retry) {
+        double delay = Math.min(maxBackoffMs, initialBackoffMs * Math.pow(multiplier, retry));
+        if (jitter > 0) {
+            delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+        }
+        return Math.round(delay);
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+            "maxRetries=" + maxRetries +
+            ", initialBackoffMs=" + initialBackoffMs +
+            ", maxBackoffMs=" + maxBackoffMs +
+            ", multiplier=" + multiplier +
+            ", jitter=" + jitter +
+            '}';
+    }
+}
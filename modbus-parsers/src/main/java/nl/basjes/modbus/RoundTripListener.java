@@ -0,0 +1,38 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.modbus;
+
+/**
+ * Is told how long the requests to the devices behind a master took.
+ */
+public interface RoundTripListener {
+    /**
+     * A response was received (possibly after the request had already timed out).
+     * @param unitId The unit id of the device
+     * @param roundTripNanos The time between sending the request and receiving the response.
+     */
+    void onResponse(int unitId, long roundTripNanos);
+
+    /**
+     * No response was received in time.
+     * @param unitId The unit id of the device
+     * @param timeoutMs The timeout that was used.
+     */
+    void onTimeout(int unitId, int timeoutMs);
+}
@@ -18,6 +18,7 @@ package nl.basjes.energy;
 
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.procimg.Register;
 import nl.basjes.energy.sunspec.ParseSunSpec;
 import nl.basjes.energy.sunspec.SunSpecFetcher;
 import nl.basjes.energy.sunspec.SunSpecModbusDataReader;
@@ -29,6 +30,8 @@ import java.util.Map;
 
 import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
 import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class RunSunSpecProcessImageAsModbusTCPSlave extends RunProcessImageAsModbusTCPSlave {
 
@@ -42,13 +45,44 @@ public class RunSunSpecProcessImageAsModbusTCPSlave extends RunProcessImageAsMod
             new ModbusTCPMaster(getHost(), getTestport()), SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID)) {
             dataReader.connect();
             final Map<Integer, SunSpecModbusDataReader.ModelLocation> modelLocations = dataReader.getModelLocations(SUNSPEC_STANDARD_STARTBASE);
-            modelLocations.forEach((k,m) -> LOG.info("Model {}: {}", m.id, ParseSunSpec.modelParsers().get(m.id).getDescription()));
+            modelLocations.forEach((k,m) -> LOG.info("Model {}: {}", m.id, ParseSunSpec.getModelMetadata(m.id).getDescription()));
         }
         catch (ModbusException me) {
             LOG.error("{}", me.getMessage());
         }
     }
 
+    private static class CountingMaster extends ModbusTCPMaster {
+        private int requests = 0;
+
+        CountingMaster() {
+            super(getHost(), getTestport());
+        }
+
+        @Override
+        public synchronized Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+            requests++;
+            return super.readMultipleRegisters(unitId, ref, count);
+        }
+    }
+
+    @Test
+    public void bulkModelDiscoveryTest() throws Exception {
+        CountingMaster master = new CountingMaster();
+        try(SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(master)) {
+            master.requests = 0;
+            final Map<Integer, SunSpecModbusDataReader.ModelLocation> walked = dataReader.walkModelLocations(SUNSPEC_STANDARD_STARTBASE);
+            int walkRequests = master.requests;
+
+            master.requests = 0;
+            final Map<Integer, SunSpecModbusDataReader.ModelLocation> bulk = dataReader.getModelLocations(SUNSPEC_STANDARD_STARTBASE);
+            int bulkRequests = master.requests;
+
+            assertEquals(walked.toString(), bulk.toString());
+            assertTrue("Bulk: " + bulkRequests + " Walk: " + walkRequests, bulkRequests <= walkRequests);
+        }
+    }
+
     @Test
     public void showAllFields() throws Exception {
         try(SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
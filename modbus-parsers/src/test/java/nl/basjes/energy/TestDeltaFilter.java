@@ -0,0 +1,147 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy;
+
+import nl.basjes.energy.DeltaFilter.Deadband;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestDeltaFilter {
+
+    @Test
+    public void deadband() {
+        assertFalse(Deadband.NONE.isSignificant(1.0, 1.0));
+        assertTrue(Deadband.NONE.isSignificant(1.0, 1.0001));
+        assertTrue(Deadband.NONE.isSignificant("A", "B"));
+        assertTrue(Deadband.NONE.isSignificant(null, 1L));
+        assertTrue(Deadband.NONE.isSignificant(1L, null));
+
+        Deadband absolute = new Deadband(5, 0);
+        assertFalse(absolute.isSignificant(100L, 105L));
+        assertTrue(absolute.isSignificant(100L, 106L));
+        assertTrue(absolute.isSignificant(100L, 94L));
+        assertTrue(absolute.isSignificant("A", "B"));
+
+        Deadband relative = new Deadband(0, 0.1);
+        assertFalse(relative.isSignificant(1000.0, 1100.0));
+        assertTrue(relative.isSignificant(1000.0, 1101.0));
+        assertFalse(relative.isSignificant(-1000.0, -901.0));
+        // Around 0 the relative deadband becomes 0
+        assertTrue(relative.isSignificant(0.0, 0.001));
+
+        // The largest deadband wins
+        Deadband both = new Deadband(5, 0.1);
+        assertFalse(both.isSignificant(10.0, 14.0));
+        assertFalse(both.isSignificant(1000.0, 1090.0));
+        assertTrue(both.isSignificant(1000.0, 1200.0));
+    }
+
+    private static Map<String, Object> values(Object power, Object voltage, Object status) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("Power",   power);
+        values.put("Voltage", voltage);
+        values.put("Status",  status);
+        return values;
+    }
+
+    @Test
+    public void filter() {
+        DeltaFilter filter = new DeltaFilter()
+            .withKeyframeInterval(10000)
+            .withDeadband(0, 0.01)
+            .withDeadband("Voltage", 1, 0);
+
+        // The first one is a keyframe
+        Map<String, Object> result = filter.filter(1000, values(1000.0, 230.0, "ON"), null);
+        assertTrue(filter.isKeyframe());
+        assertEquals(values(1000.0, 230.0, "ON"), result);
+
+        // Small changes are suppressed
+        result = filter.filter(2000, values(1005.0, 230.5, "ON"), null);
+        assertFalse(filter.isKeyframe());
+        assertTrue(result.isEmpty());
+
+        // Compared with the last emitted value (not the last seen value)
+        result = filter.filter(3000, values(1011.0, 231.5, "ON"), null);
+        assertEquals(2, result.size());
+        assertEquals(1011.0, result.get("Power"));
+        assertEquals(231.5, result.get("Voltage"));
+
+        // Only the candidates are considered
+        result = filter.filter(4000, values(2000.0, 240.0, "OFF"), Collections.singleton("Status"));
+        assertEquals(Collections.singletonMap("Status", "OFF"), result);
+
+        // A value that disappears is emitted as null and is emitted again when it comes back
+        result = filter.filter(5000, values(null, 231.5, "OFF"), Collections.singleton("Power"));
+        assertEquals(Collections.singletonMap("Power", null), result);
+        result = filter.filter(6000, values(1011.0, 231.5, "OFF"), Collections.singleton("Power"));
+        assertEquals(Collections.singletonMap("Power", 1011.0), result);
+
+        // After the keyframe interval everything is emitted again
+        result = filter.filter(11000, values(1011.0, 231.5, "OFF"), Collections.emptySet());
+        assertTrue(filter.isKeyframe());
+        assertEquals(values(1011.0, 231.5, "OFF"), result);
+
+        // After a reset the next one is a keyframe
+        filter.reset();
+        filter.filter(12000, values(1011.0, 231.5, "OFF"), Collections.emptySet());
+        assertTrue(filter.isKeyframe());
+    }
+
+    @Test
+    public void removedValues() {
+        DeltaFilter filter = new DeltaFilter().withKeyframeInterval(10000);
+        filter.filter(1000, values(1000.0, 230.0, "ON"), null);
+
+        // A value that is no longer present is emitted as removed once.
+        Map<String, Object> current = values(1000.0, 230.0, "ON");
+        current.remove("Status");
+        Map<String, Object> result = filter.filter(2000, current, null);
+        assertEquals(Collections.singletonMap("Status", null), result);
+        assertTrue(filter.filter(3000, current, null).isEmpty());
+
+        // A keyframe reports the removals since the previous values and starts from the current values.
+        filter.filter(4000, values(1000.0, 230.0, "ON"), null);
+        current.remove("Voltage");
+        result = filter.filter(11000, current, null);
+        assertTrue(filter.isKeyframe());
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("Power", 1000.0);
+        expected.put("Voltage", null);
+        expected.put("Status", null);
+        assertEquals(expected, result);
+        assertEquals(Collections.singletonMap("Voltage", 231.0),
+            filter.filter(12000, values(1000.0, 231.0, null), null));
+    }
+
+    @Test
+    public void onlyFirstKeyframe() {
+        DeltaFilter filter = new DeltaFilter();
+        assertTrue(filter.start(1000));
+        assertFalse(filter.start(1000000000));
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy;
+
+import nl.basjes.energy.TickScheduler.Registration;
+import nl.basjes.energy.TickScheduler.Tick;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTickScheduler {
+
+    @Test
+    public void testNextBoundary() {
+        assertEquals(1000, TickScheduler.nextBoundary(0, 1000));
+        assertEquals(1000, TickScheduler.nextBoundary(999, 1000));
+        assertEquals(2000, TickScheduler.nextBoundary(1000, 1000));
+    }
+
+    @Test
+    public void testAwaitNextTick() throws InterruptedException {
+        TickScheduler scheduler = TickScheduler.getDefault();
+        long previous = 0;
+        for (int i = 0; i < 5; i++) {
+            Tick tick = scheduler.awaitNextTick(50);
+            long now = System.currentTimeMillis();
+            assertEquals(0, tick.getTimestamp() % 50);
+            assertTrue("Too early: " + tick + " at " + now, now >= tick.getTimestamp());
+            assertTrue("Too late: " + tick, tick.getLatenessNanos() < TimeUnit.MILLISECONDS.toNanos(25));
+            if (previous != 0) {
+                // No drift: every boundary is used
+                assertEquals(previous + 50, tick.getTimestamp());
+            }
+            previous = tick.getTimestamp();
+        }
+    }
+
+    @Test
+    public void testAwaitNextTickReportsMissedTicks() throws InterruptedException {
+        TickScheduler scheduler = TickScheduler.getDefault();
+        Tick first = scheduler.awaitNextTick(20, null);
+        // The work after a tick takes longer than several ticks.
+        Thread.sleep(75);
+        Tick tick = scheduler.awaitNextTick(20, first);
+        assertTrue(tick.toString(), tick.getSkipped() >= 2);
+        assertEquals(first.getTimestamp() + 20 * (1 + tick.getSkipped()), tick.getTimestamp());
+        assertTrue(tick.toString(), tick.getLatenessNanos() > 0);
+
+        // Every boundary is either used or counted as skipped.
+        Tick next = scheduler.awaitNextTick(20, tick);
+        assertEquals(tick.getTimestamp() + 20 * (1 + next.getSkipped()), next.getTimestamp());
+    }
+
+    @Test
+    public void testInterrupt() throws InterruptedException {
+        AtomicReference<Throwable> result = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                TickScheduler.getDefault().awaitNextTick(TimeUnit.HOURS.toMillis(1));
+            } catch (Throwable t) {
+                result.set(t);
+            }
+        });
+        thread.start();
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        thread.interrupt();
+        thread.join(1000);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        assertTrue(result.get() instanceof InterruptedException);
+    }
+
+    @Test
+    public void testRegisteredListeners() throws InterruptedException {
+        try (TickScheduler scheduler = new TickScheduler("TestTickScheduler")) {
+            List<Tick> fast = new CopyOnWriteArrayList<>();
+            List<Tick> slow = new CopyOnWriteArrayList<>();
+            CountDownLatch enough = new CountDownLatch(6);
+            Registration fastRegistration = scheduler.schedule(20, tick -> {
+                fast.add(tick);
+                enough.countDown();
+            });
+            scheduler.schedule(60, slow::add);
+
+            assertTrue(enough.await(5, TimeUnit.SECONDS));
+            fastRegistration.cancel();
+            int fastTicks = fast.size();
+            Thread.sleep(100);
+            assertEquals(fastTicks, fast.size());
+            assertTrue(slow.size() >= 1);
+
+            for (Tick tick : fast) {
+                assertEquals(0, tick.getTimestamp() % 20);
+            }
+            for (Tick tick : slow) {
+                assertEquals(0, tick.getTimestamp() % 60);
+            }
+            for (int i = 1; i < fast.size(); i++) {
+                Tick tick = fast.get(i);
+                assertEquals(fast.get(i - 1).getTimestamp() + 20 * (1 + tick.getSkipped()), tick.getTimestamp());
+            }
+        }
+    }
+
+    @Test
+    public void testMissedTicksAreSkipped() throws InterruptedException {
+        try (TickScheduler scheduler = new TickScheduler("TestTickScheduler")) {
+            List<Tick> ticks = new CopyOnWriteArrayList<>();
+            CountDownLatch enough = new CountDownLatch(3);
+            scheduler.schedule(10, tick -> {
+                ticks.add(tick);
+                enough.countDown();
+                try {
+                    // A listener that blocks the scheduler thread
+                    Thread.sleep(35);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(enough.await(5, TimeUnit.SECONDS));
+            Tick tick = ticks.get(2);
+            assertTrue(tick.toString(), tick.getSkipped() >= 2);
+            assertEquals(0, tick.getTimestamp() % 10);
+        }
+    }
+}
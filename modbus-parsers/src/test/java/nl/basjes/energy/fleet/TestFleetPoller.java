@@ -0,0 +1,131 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.fleet;
+
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import nl.basjes.energy.sunspec.SunSpecTestProcessImage;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestFleetPoller extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SunSpecTestProcessImage.class, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID);
+    }
+
+    private static class CollectingSink implements SnapshotSink {
+        final ConcurrentMap<String, List<Long>>                timestamps = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, Map<String, Object>>       lastValues = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, AtomicInteger>             errors     = new ConcurrentHashMap<>();
+
+        @Override
+        public void onSnapshot(DeviceDefinition device, long timestamp, Map<String, Object> values) {
+            timestamps.computeIfAbsent(device.getName(), n -> new CopyOnWriteArrayList<>()).add(timestamp);
+            lastValues.put(device.getName(), values);
+        }
+
+        @Override
+        public void onError(DeviceDefinition device, Exception exception) {
+            errors.computeIfAbsent(device.getName(), n -> new AtomicInteger()).incrementAndGet();
+        }
+
+        int snapshots(String name) {
+            List<Long> list = timestamps.get(name);
+            return list == null ? 0 : list.size();
+        }
+
+        int errors(String name) {
+            AtomicInteger count = errors.get(name);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    @Test
+    public void testPollFleet() throws Exception {
+        int deadPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            deadPort = serverSocket.getLocalPort();
+        }
+
+        List<DeviceDefinition> devices = new ArrayList<>(Arrays.asList(
+            DeviceDefinition.sunSpec("All",    getHost(), getTestport()).withModuloMs(200),
+            DeviceDefinition.sunSpec("Common", getHost(), getTestport()).withModels(1).withModuloMs(200),
+            DeviceDefinition.sunSpec("Both",   getHost(), getTestport()).withModels(1, 101).withModuloMs(100),
+            DeviceDefinition.sunSpec("Dead",   getHost(), deadPort).withModuloMs(200)
+        ));
+
+        CollectingSink sink = new CollectingSink();
+        FleetPoller poller = new FleetPoller(devices, sink).withMaxConcurrentDevicesPerGateway(2);
+        try {
+            poller.start();
+            assertTrue(poller.isRunning());
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (System.nanoTime() < deadline &&
+                (sink.snapshots("All") < 2 || sink.snapshots("Common") < 2 || sink.snapshots("Both") < 2 || sink.errors("Dead") < 2)) {
+                Thread.sleep(50);
+            }
+        } finally {
+            poller.close();
+        }
+        assertFalse(poller.isRunning());
+
+        for (String name : Arrays.asList("All", "Common", "Both")) {
+            assertTrue(name, sink.snapshots(name) >= 2);
+            assertEquals(name, 0, sink.errors(name));
+        }
+        assertEquals(0, sink.snapshots("Dead"));
+        assertTrue(sink.errors("Dead") >= 2);
+
+        // Polling happens at aligned moments
+        for (long timestamp : sink.timestamps.get("All")) {
+            assertEquals(0, timestamp % 200);
+        }
+
+        Map<String, Object> common = sink.lastValues.get("Common");
+        assertTrue(common.keySet().stream().allMatch(key -> key.startsWith("1|")));
+        assertTrue(sink.lastValues.get("Both").keySet().stream().anyMatch(key -> key.startsWith("101|")));
+        assertTrue(sink.lastValues.get("All").size() > sink.lastValues.get("Both").size());
+    }
+
+    @Test
+    public void testThreadFactory() {
+        String javaVersion = System.getProperty("java.specification.version");
+        boolean expectVirtualThreads = !javaVersion.startsWith("1.") && Integer.parseInt(javaVersion) >= 21;
+        assertEquals(expectVirtualThreads, FleetPoller.virtualThreadFactory("Test-") != null);
+    }
+}
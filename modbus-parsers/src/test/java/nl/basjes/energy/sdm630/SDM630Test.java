@@ -25,6 +25,12 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 public class SDM630Test extends RunProcessImageAsModbusTCPSlave {
@@ -177,4 +183,46 @@ public class SDM630Test extends RunProcessImageAsModbusTCPSlave {
             LOG.info("\n{}", reader.read().toString());
         }
     }
+
+    @Test
+    public void testPipelinedRead() throws Exception {
+        try(SDM630Reader reader = new SDM630Reader(new ModbusTCPMaster(getHost(), getTestport()), 1)) {
+            byte[] serial = reader.getRawRegisterBytes(0, 382);
+
+            reader.setPipelineWindow(3);
+            byte[] pipelined = reader.getRawRegisterBytes(0, 382);
+
+            assertArrayEquals(serial, pipelined);
+            // No fallback to serial happened
+            assertEquals(3, reader.getPipelineWindow());
+        }
+    }
+
+    @Test
+    public void testReuseBuffers() throws Exception {
+        try(SDM630Reader reader = new SDM630Reader(new ModbusTCPMaster(getHost(), getTestport()), 1)) {
+            byte[] expected = reader.getRawRegisterBytes(0, 382);
+
+            reader.setReuseBuffers(true);
+            SDM630Reader.SDM630Values first  = reader.read();
+            SDM630Reader.SDM630Values second = reader.read();
+            SDM630Reader.SDM630Values third  = reader.read();
+
+            assertNotSame(first, second);
+            assertSame(first, third);
+            assertSame(first.getRawRegisterBytes(), third.getRawRegisterBytes());
+            assertArrayEquals(expected, second.getRawRegisterBytes());
+            assertArrayEquals(expected, third.getRawRegisterBytes());
+
+            // Reading into a caller supplied (direct) buffer
+            ByteBuffer buffer = ByteBuffer.allocateDirect(10 + 382 * 2);
+            buffer.position(10);
+            reader.getRawRegisterBytes(0, 382, buffer);
+            assertEquals(10 + 382 * 2, buffer.position());
+            byte[] fromBuffer = new byte[382 * 2];
+            buffer.position(10);
+            buffer.get(fromBuffer);
+            assertArrayEquals(expected, fromBuffer);
+        }
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import nl.basjes.modbus.DeviceSettingsStore;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SETTING_SUNSPEC_LAYOUT;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SETTING_SUNSPEC_LAYOUT_IDENTITY;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestDeviceLayoutCache extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SunSpecTestProcessImage.class, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID);
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static class CountingMaster extends ModbusTCPMaster {
+        private int requests = 0;
+
+        CountingMaster() {
+            super(getHost(), getTestport());
+        }
+
+        @Override
+        public synchronized Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+            requests++;
+            return super.readMultipleRegisters(unitId, ref, count);
+        }
+    }
+
+    private static final String ENDPOINT = "testdevice:502";
+    private static final String CACHE_KEY = ENDPOINT + '|' + SUNSPEC_STANDARD_UNITID;
+
+    private SunSpecModbusDataReader createReader(CountingMaster master, DeviceSettingsStore store) throws ModbusException {
+        return new SunSpecModbusDataReader(master, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID,
+            store, ENDPOINT);
+    }
+
+    @Test
+    public void layoutCacheTest() throws Exception {
+        File cacheFile = new File(temporaryFolder.getRoot(), "layouts.properties");
+
+        String expected;
+        DeviceSettingsStore store = new DeviceSettingsStore(cacheFile);
+        try (SunSpecModbusDataReader dataReader = createReader(new CountingMaster(), store)) {
+            assertFalse(dataReader.isLayoutFromCache());
+            expected = dataReader.getModelLocations().toString();
+        }
+        // Both settings of the device are written at once.
+        assertTrue(store.isDirty());
+        assertFalse(cacheFile.exists());
+        store.flush();
+        assertFalse(store.isDirty());
+        store = new DeviceSettingsStore(cacheFile);
+        assertEquals("SunSpecText|TestInverter|1.2.3|sn-123456789", store.get(CACHE_KEY, SETTING_SUNSPEC_LAYOUT_IDENTITY));
+
+        // A reconnect only validates the cached layout: model 1 and the end of the model list.
+        CountingMaster master = new CountingMaster();
+        try (SunSpecModbusDataReader dataReader = createReader(master, new DeviceSettingsStore(cacheFile))) {
+            assertTrue(dataReader.isLayoutFromCache());
+            assertEquals(expected, dataReader.getModelLocations().toString());
+            assertEquals(2, master.requests);
+        }
+
+        // A different device (or firmware) at the same endpoint
+        store.put(CACHE_KEY, SETTING_SUNSPEC_LAYOUT_IDENTITY, "SunSpecText|TestInverter|1.2.2|sn-123456789");
+        try (SunSpecModbusDataReader dataReader = createReader(new CountingMaster(), store)) {
+            assertFalse(dataReader.isLayoutFromCache());
+            assertEquals(expected, dataReader.getModelLocations().toString());
+        }
+        store.flush();
+        store = new DeviceSettingsStore(cacheFile);
+        assertEquals("SunSpecText|TestInverter|1.2.3|sn-123456789", store.get(CACHE_KEY, SETTING_SUNSPEC_LAYOUT_IDENTITY));
+
+        // The list of models changed (the last model is missing)
+        String layout = store.get(CACHE_KEY, SETTING_SUNSPEC_LAYOUT);
+        store.put(CACHE_KEY, SETTING_SUNSPEC_LAYOUT, layout.substring(0, layout.lastIndexOf(';')));
+        try (SunSpecModbusDataReader dataReader = createReader(new CountingMaster(), store)) {
+            assertFalse(dataReader.isLayoutFromCache());
+            assertEquals(expected, dataReader.getModelLocations().toString());
+        }
+
+        // Garbage in the cache
+        store.put(CACHE_KEY, SETTING_SUNSPEC_LAYOUT, "40000;nonsense");
+        try (SunSpecModbusDataReader dataReader = createReader(new CountingMaster(), store)) {
+            assertFalse(dataReader.isLayoutFromCache());
+            assertEquals(expected, dataReader.getModelLocations().toString());
+        }
+    }
+}
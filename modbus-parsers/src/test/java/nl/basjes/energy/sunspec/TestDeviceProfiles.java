@@ -0,0 +1,146 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestDeviceProfiles extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SunSpecTestProcessImage.class, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID);
+    }
+
+    private static class CountingMaster extends ModbusTCPMaster {
+        private int requests = 0;
+
+        CountingMaster() {
+            super(getHost(), getTestport());
+        }
+
+        @Override
+        public synchronized Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+            requests++;
+            return super.readMultipleRegisters(unitId, ref, count);
+        }
+    }
+
+    private SunSpecFetcher createFetcher(SunSpecModbusDataReader dataReader) {
+        return new SunSpecFetcher(dataReader)
+            .useModel(1)
+            .useModel(101)
+            .useModel(132);
+    }
+
+    @Test
+    public void sharedProfiles() throws Exception {
+        DeviceProfiles deviceProfiles = new DeviceProfiles();
+
+        CountingMaster firstMaster = new CountingMaster();
+        try (SunSpecModbusDataReader first = new SunSpecModbusDataReader(
+                 firstMaster, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID, deviceProfiles)) {
+            assertFalse(first.isDeviceProfileShared());
+            DeviceProfile profile = first.getDeviceProfile();
+            assertEquals("SunSpecText|TestInverter|opt_a_b_c|1.2.3", profile.getIdentity());
+            assertEquals(1, deviceProfiles.size());
+            int discoveryRequests = firstMaster.requests;
+
+            SunSpecFetcher firstFetcher = createFetcher(first);
+            firstFetcher.refresh();
+
+            // A second device of the same type only reads model 1, the header of the last model and the end of the model list.
+            CountingMaster secondMaster = new CountingMaster();
+            try (SunSpecModbusDataReader second = new SunSpecModbusDataReader(
+                     secondMaster, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID, deviceProfiles)) {
+                assertTrue(second.isDeviceProfileShared());
+                assertSame(profile, second.getDeviceProfile());
+                assertSame(first.getModelLocations(), second.getModelLocations());
+                assertEquals(4, secondMaster.requests); // The window at the end of the registers is rejected once.
+                assertTrue(secondMaster.requests <= discoveryRequests);
+                assertEquals(1, deviceProfiles.size());
+
+                // Both devices use the same read plan and get the same data.
+                SunSpecFetcher secondFetcher = createFetcher(second);
+                assertSame(firstFetcher.getReadPlan(), secondFetcher.getReadPlan());
+                secondFetcher.refresh();
+                assertEquals(firstFetcher.toHashMap(), secondFetcher.toHashMap());
+            }
+        }
+    }
+
+    @Test
+    public void differentModels() {
+        DeviceProfiles deviceProfiles = new DeviceProfiles();
+        Map<Integer, SunSpecModbusDataReader.ModelLocation> locations = new HashMap<>();
+        locations.put(1, new SunSpecModbusDataReader.ModelLocation(1, 40004, 66));
+        DeviceProfile withoutMeter = deviceProfiles.intern(new DeviceProfile("Mn|Md||1", 40000, locations));
+        assertEquals(40070, withoutMeter.getModelListEnd());
+
+        // The same type of device with an additional model
+        locations.put(203, new SunSpecModbusDataReader.ModelLocation(203, 40072, 105));
+        DeviceProfile withMeter = deviceProfiles.intern(new DeviceProfile("Mn|Md||1", 40000, locations));
+        assertNotSame(withoutMeter, withMeter);
+        assertEquals(2, deviceProfiles.getProfiles(40000, "Mn|Md||1").size());
+
+        // An identical layout is shared.
+        assertSame(withMeter, deviceProfiles.intern(new DeviceProfile("Mn|Md||1", 40000, locations)));
+        assertEquals(2, deviceProfiles.size());
+    }
+
+    @Test
+    public void differentModelList() throws Exception {
+        DeviceProfiles deviceProfiles = new DeviceProfiles();
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(
+                 new ModbusTCPMaster(getHost(), getTestport()), SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID)) {
+            // A device of the same type where model 101 is shorter and also is the last model.
+            // The register where its model list would end is 0 on the test device.
+            Map<Integer, SunSpecModbusDataReader.ModelLocation> locations = new HashMap<>();
+            SunSpecModbusDataReader.ModelLocation common   = dataReader.getModelLocation(1);
+            SunSpecModbusDataReader.ModelLocation inverter = dataReader.getModelLocation(101);
+            locations.put(1,   common);
+            locations.put(101, new SunSpecModbusDataReader.ModelLocation(101, inverter.registerBase, 11));
+            assertEquals(Integer.valueOf(0), dataReader.readU16(inverter.registerBase + 11));
+            deviceProfiles.intern(new DeviceProfile("SunSpecText|TestInverter|opt_a_b_c|1.2.3", SUNSPEC_STANDARD_STARTBASE, locations));
+        }
+
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(
+                 new ModbusTCPMaster(getHost(), getTestport()), SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID, deviceProfiles)) {
+            assertFalse(dataReader.isDeviceProfileShared());
+            assertEquals(226, dataReader.getModelLocation(132).len);
+            assertEquals(50, dataReader.getModelLocation(101).len);
+            assertEquals(2, deviceProfiles.size());
+        }
+    }
+}
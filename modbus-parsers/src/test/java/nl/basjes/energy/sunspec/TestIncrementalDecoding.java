@@ -0,0 +1,208 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+import nl.basjes.energy.DeltaFilter;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import nl.basjes.energy.sunspec.SunSpecModbusDataReader.ModelLocation;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestIncrementalDecoding extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SunSpecTestProcessImage.class, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID);
+    }
+
+    @Test
+    public void changedRegisters() {
+        byte[] previous = new byte[20];
+        byte[] current  = previous.clone();
+        ChangedRegisters changed = new ChangedRegisters();
+        assertTrue(changed.compare(previous, current).isEmpty());
+
+        current[3]  = 1; // Register 1
+        current[8]  = 1; // Register 4
+        current[11] = 1; // Register 5
+        changed.compare(previous, current);
+        assertEquals(3, changed.count());
+        assertFalse(changed.isChanged(0, 1));
+        assertTrue(changed.isChanged(0, 2));
+        assertFalse(changed.isChanged(2, 2));
+        assertTrue(changed.isChanged(2, 3));
+        assertTrue(changed.isChanged(5, 1));
+        assertFalse(changed.isChanged(6, 4));
+
+        assertTrue(changed.compare(null, current).isChanged(9, 1));
+    }
+
+    private static Set<String> differences(Map<String, Object> before, Map<String, Object> after) {
+        Set<String> result = new HashSet<>();
+        Set<String> keys = new LinkedHashSet<>(before.keySet());
+        keys.addAll(after.keySet());
+        for (String key : keys) {
+            if (!Objects.equals(before.get(key), after.get(key))) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void sameAsFullDecoding() throws Exception {
+        Random random = new Random(42);
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            for (ModelLocation modelLocation : dataReader.getModelLocations().values()) {
+                ModelParser parser   = ParseSunSpec.getModelParser(modelLocation.id);
+                byte[]      previous = dataReader.getRawModel(modelLocation);
+                Map<String, Object> incremental = new LinkedHashMap<>(parser.toHashMap(previous));
+                ChangedRegisters    changed     = new ChangedRegisters();
+
+                for (int round = 0; round < 50; round++) {
+                    byte[] current = previous.clone();
+                    // Change a few registers (which sometimes includes a scale factor)
+                    for (int i = 0; i < 3; i++) {
+                        int register = random.nextInt(current.length / 2);
+                        current[register * 2 + 1] = (byte) random.nextInt(4);
+                    }
+
+                    Map<String, Object> full;
+                    try {
+                        full = parser.toHashMap(current);
+                    } catch (MissingMandatoryFieldException e) {
+                        continue; // Not valid data
+                    }
+
+                    Set<PointKey> changedPoints = new HashSet<>();
+                    parser.updateHashMap(current, changed.compare(previous, current), incremental, changedPoints);
+                    String what = "Model " + modelLocation.id + " round " + round;
+                    assertEquals(what, full, incremental);
+
+                    Set<String> changedNames = new HashSet<>();
+                    changedPoints.forEach(key -> changedNames.add(key.getName()));
+                    assertEquals(what, differences(parser.toHashMap(previous), full), changedNames);
+                    previous = current;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fetcher() throws Exception {
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            SunSpecFetcher fetcher = new SunSpecFetcher(dataReader).useModel(1).useModel(101).useModel(132);
+            fetcher.refresh();
+            Set<PointKey> changed = fetcher.updateDecodedValues();
+            Map<String, Object> values = fetcher.toHashMap();
+            assertEquals(values.size(), changed.size());
+
+            // The test device does not change so nothing is decoded again
+            fetcher.refresh();
+            assertTrue(fetcher.updateDecodedValues().isEmpty());
+            assertTrue(fetcher.model_101().getChangedPoints().isEmpty());
+            assertEquals(values, fetcher.toHashMap());
+            assertEquals(values.get("101|-|Watts|W"), fetcher.model_101().getDecodedValues().get("101|-|Watts|W"));
+        }
+    }
+
+    @Test
+    public void delta() throws Exception {
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            SunSpecFetcher fetcher = new SunSpecFetcher(dataReader).useModel(1).useModel(101);
+            DeltaFilter deltaFilter = new DeltaFilter().withKeyframeInterval(60000);
+
+            fetcher.refreshAt(1000);
+            Map<String, Object> keyframe = fetcher.toDeltaHashMap(deltaFilter);
+            assertTrue(deltaFilter.isKeyframe());
+            assertEquals(fetcher.toHashMap(), keyframe);
+
+            // The test device does not change so there is nothing to emit
+            fetcher.refreshAt(2000);
+            assertTrue(fetcher.toDeltaHashMap(deltaFilter).isEmpty());
+            assertFalse(deltaFilter.isKeyframe());
+
+            fetcher.refreshAt(61000);
+            assertEquals(keyframe, fetcher.toDeltaHashMap(deltaFilter));
+            assertTrue(deltaFilter.isKeyframe());
+        }
+    }
+
+    // Adds 1 to a register of the device when asked to.
+    private static class ChangingMaster extends ModbusTCPMaster {
+        private int changedRegister = -1;
+
+        ChangingMaster() {
+            super(getHost(), getTestport());
+        }
+
+        @Override
+        public synchronized Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+            Register[] registers = super.readMultipleRegisters(unitId, ref, count);
+            if (changedRegister >= ref && changedRegister < ref + count) {
+                int index = changedRegister - ref;
+                registers[index] = new SimpleRegister(registers[index].getValue() + 1);
+            }
+            return registers;
+        }
+    }
+
+    @Test
+    public void deltaIsNotUsedUpByOtherDecodes() throws Exception {
+        ChangingMaster master = new ChangingMaster();
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(master)) {
+            SunSpecFetcher fetcher = new SunSpecFetcher(dataReader).useModel(1).useModel(101);
+            DeltaFilter first  = new DeltaFilter().withKeyframeInterval(60000);
+            DeltaFilter second = new DeltaFilter().withKeyframeInterval(60000);
+
+            fetcher.refreshAt(1000);
+            fetcher.toDeltaHashMap(first);
+            fetcher.toDeltaHashMap(second);
+
+            // Model 101: W is at offset 12
+            master.changedRegister = dataReader.getModelLocation(101).registerBase + 12;
+            fetcher.refreshAt(2000);
+            Object watts = fetcher.toHashMap().get("101|-|Watts|W");
+
+            // Both filters get the change even though the values were decoded in between.
+            assertEquals(Collections.singletonMap("101|-|Watts|W", watts), fetcher.toDeltaHashMap(first));
+            assertEquals(Collections.singletonMap("101|-|Watts|W", watts), fetcher.toDeltaHashMap(second));
+            assertTrue(fetcher.toDeltaHashMap(first).isEmpty());
+        }
+    }
+}
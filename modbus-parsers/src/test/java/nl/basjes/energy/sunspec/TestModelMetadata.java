@@ -0,0 +1,76 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestModelMetadata {
+
+    @Test
+    public void metadata() {
+        List<ModelMetadata> allMetadata = ParseSunSpec.modelMetadata();
+        assertTrue(allMetadata.size() > 50);
+        assertEquals(1, allMetadata.get(0).getId());
+
+        ModelMetadata model101 = ParseSunSpec.getModelMetadata(101);
+        ModelParser parser101 = ParseSunSpec.getModelParser(101);
+        assertEquals(parser101.getId(),          model101.getId());
+        assertEquals(parser101.getLabel(),       model101.getLabel());
+        assertEquals(parser101.getDescription(), model101.getDescription());
+        assertEquals(parser101.getNotes(),       model101.getNotes());
+
+        assertNull(ParseSunSpec.getModelMetadata(12345));
+        assertNull(ParseSunSpec.getModelParser(12345));
+        assertNull(ParseSunSpec.newModelParser(12345));
+    }
+
+    @Test
+    public void sharedParsers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<ModelParser>> calls = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                calls.add(() -> ParseSunSpec.getModelParser(103));
+            }
+            ModelParser expected = ParseSunSpec.getModelParser(103);
+            for (Future<ModelParser> result : executor.invokeAll(calls)) {
+                assertSame(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertNotSame(ParseSunSpec.getModelParser(103), ParseSunSpec.newModelParser(103));
+        assertSame(ParseSunSpec.getModelParser(103), ParseSunSpec.modelParsers().get(103));
+        assertEquals(ParseSunSpec.modelMetadata().size(), ParseSunSpec.modelParsers().size());
+    }
+}
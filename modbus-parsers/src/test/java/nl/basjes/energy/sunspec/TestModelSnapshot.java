@@ -0,0 +1,120 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestModelSnapshot extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SunSpecTestProcessImage.class, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID);
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            ParseSunSpec.Model_101 model101 = new ParseSunSpec.Model_101();
+            byte[] data = dataReader.getRawModel(dataReader.getModelLocation(101));
+
+            ModelSchema schema = model101.getSchema();
+            assertSame(ParseSunSpec.Model_101.SCHEMA, schema);
+            int watts = schema.getFixedSlot("W");
+            int ampsB = schema.getFixedSlot("AphB");
+            int state = schema.getFixedSlot("St");
+            assertEquals(-1, schema.getFixedSlot("W_SF"));
+            assertTrue(schema.isFixedDouble(watts));
+            assertFalse(schema.isFixedDouble(state));
+
+            ModelSnapshot snapshot = new ModelSnapshot(schema);
+            // Reusing the same snapshot gives the same result
+            for (int i = 0; i < 2; i++) {
+                model101.decodeAll(data, snapshot);
+                assertTrue(snapshot.isPresent(watts));
+                assertEquals(model101.getWattsAsDouble(data), snapshot.getDouble(watts), 0.0);
+                assertEquals(model101.getOperatingStateAsLong(data), snapshot.getLong(state));
+                assertFalse(snapshot.isPresent(ampsB));
+                assertEquals(0, snapshot.getRepeatCount());
+            }
+
+            // Model 132 has repeating blocks which are stored as structure of arrays
+            ParseSunSpec.Model_132 model132 = new ParseSunSpec.Model_132();
+            byte[] data132 = dataReader.getRawModel(dataReader.getModelLocation(132));
+            ModelSnapshot snapshot132 = new ModelSnapshot(model132.getSchema());
+            model132.decodeAll(data132, snapshot132);
+            assertTrue(snapshot132.getRepeatCount() > 1);
+            int points = snapshot132.getSchema().getRepeatingSlot("ActPt");
+            assertTrue(points >= 0);
+            for (int index = 0; index < snapshot132.getRepeatCount(); index++) {
+                long expected = model132.getRepeatingActPtAsLong(data132, index);
+                assertEquals(ModelParser.isImplemented(expected), snapshot132.isPresent(points, index));
+                if (ModelParser.isImplemented(expected)) {
+                    assertEquals(expected, snapshot132.getRepeatingLongs(points)[index]);
+                }
+            }
+
+            // A snapshot is only for a single model
+            try {
+                model132.decodeAll(data132, snapshot);
+                throw new AssertionError("Should have failed");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void batch() throws Exception {
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            ParseSunSpec.Model_101 model101 = new ParseSunSpec.Model_101();
+            byte[] data = dataReader.getRawModel(dataReader.getModelLocation(101));
+
+            ModelSnapshotBatch batch = new ModelSnapshotBatch(model101.getSchema(), 10);
+            for (int row = 0; row < 4; row++) {
+                model101.decodeAll(data, batch.row(row, 1000L + row));
+            }
+            assertEquals(4, batch.getRowCount());
+            assertEquals(1003L, batch.getTimestamp(3));
+
+            int watts = model101.getSchema().getFixedSlot("W");
+            double total = 0;
+            double[] column = batch.getDoubleColumn(watts);
+            for (int row = 0; row < batch.getRowCount(); row++) {
+                assertTrue(batch.isPresent(watts, row));
+                total += column[row];
+            }
+            assertEquals(4 * model101.getWattsAsDouble(data), total, 0.001);
+            assertFalse(batch.isPresent(model101.getSchema().getFixedSlot("AphB"), 0));
+
+            batch.clear();
+            assertEquals(0, batch.getRowCount());
+            assertFalse(batch.isPresent(watts, 0));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestPointKey extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SunSpecTestProcessImage.class, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID);
+    }
+
+    private static String oldCleanKey(String key) {
+        return key
+            .replace("%", "Pct")
+            .replace("()", "")
+            .replace("/", "_")
+            .replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    @Test
+    public void keysOfAllValues() throws Exception {
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            SunSpecFetcher fetcher = new SunSpecFetcher(dataReader).useAllModels();
+            fetcher.refresh();
+            Map<String, Object> values = fetcher.toHashMap();
+            assertTrue(values.size() > 100);
+
+            boolean foundRepeating = false;
+            for (String name : values.keySet()) {
+                PointKey pointKey = PointKey.forName(name);
+                assertNotNull("No key for " + name, pointKey);
+                assertSame(pointKey.getName(), name);
+                assertEquals(oldCleanKey(PointKey.PREFIX + name), pointKey.getCleanedName());
+                foundRepeating |= pointKey.getIndex() >= 0;
+            }
+            assertTrue(foundRepeating);
+        }
+    }
+
+    @Test
+    public void pointKeysOfModels() throws Exception {
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            SunSpecFetcher fetcher = new SunSpecFetcher(dataReader).useAllModels();
+            fetcher.refresh();
+            Map<String, Object> values = fetcher.toHashMap();
+            List<PointKey> pointKeys = fetcher.getPointKeys();
+
+            // All values have a key with the right type and the order is the same.
+            List<String> names = new ArrayList<>();
+            for (PointKey pointKey : pointKeys) {
+                Object value = values.get(pointKey.getName());
+                if (value != null) {
+                    names.add(pointKey.getName());
+                    assertTrue(pointKey + " is a " + value.getClass(), pointKey.getValueType().isInstance(value));
+                }
+            }
+            assertEquals(new ArrayList<>(values.keySet()), names);
+        }
+    }
+
+    @Test
+    public void stableKeys() {
+        PointKey watts = PointKey.forName("101|-|Watts|W");
+        assertNotNull(watts);
+        assertEquals(101, watts.getModelId());
+        assertEquals("W", watts.getPointId());
+        assertEquals(-1, watts.getIndex());
+        assertEquals("SunSpec_101___Watts_W", watts.getCleanedName());
+        assertEquals(Double.class, watts.getValueType());
+
+        PointKey.Repeating repeating = PointKey.repeating(-1, 65000, "X", "Example", "W", Double.class);
+        PointKey key = repeating.get(3);
+        assertSame(key, repeating.get(3));
+        assertEquals(3, key.getIndex());
+        assertEquals("65000|3|Example|W", key.getName());
+        assertEquals(Double.class, key.getValueType());
+        assertSame(key, PointKey.forName("65000|3|Example|W"));
+        assertFalse(repeating.get(0) == key);
+    }
+}
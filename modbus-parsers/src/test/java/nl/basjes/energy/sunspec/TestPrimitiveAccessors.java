@@ -0,0 +1,272 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import nl.basjes.energy.sunspec.SunSpecModbusDataReader.ModelLocation;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static nl.basjes.energy.sunspec.ModelParser.NOT_IMPLEMENTED;
+import static nl.basjes.energy.sunspec.ModelParser.isImplemented;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestPrimitiveAccessors extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SunSpecTestProcessImage.class, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID);
+    }
+
+    @Test
+    public void primitiveValues() throws Exception {
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            ParseSunSpec.Model_101 model101 = new ParseSunSpec.Model_101();
+            byte[] data = dataReader.getRawModel(dataReader.getModelLocation(101));
+
+            assertEquals(1307.0, model101.getWattsAsDouble(data),   0.01);
+            assertEquals(5.49,   model101.getAmpsAsDouble(data),    0.01);
+            assertEquals(4,      model101.getVendorOperatingStateAsLong(data));
+            assertEquals(4,      model101.getOperatingStateAsLong(data)); // The raw value of MPPT
+            assertTrue(isImplemented(model101.getWattsAsDouble(data)));
+
+            // Not implemented: the phase B and C currents of a single phase inverter
+            assertFalse(isImplemented(model101.getAmpsPhaseBAsDouble(data)));
+            assertFalse(isImplemented(NOT_IMPLEMENTED));
+            assertFalse(isImplemented(Double.NaN));
+        }
+    }
+
+    private static final Object[] NO_VALUE = {};
+
+    private static Object invoke(Method method, Object target, Object... args) throws Exception {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IndexOutOfBoundsException) { // A repeating block that is not present
+                return NO_VALUE;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Every primitive accessor must give the same value as the boxed accessor.
+     */
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    @Test
+    public void decoders() {
+        ModelParser parser = new ParseSunSpec.Model_1();
+
+        // 32 bit values above 0x7FFFFFFF are not sign extended
+        byte[] u32 = bytes(0, 0, 0xFF, 0xFF, 0xFF, 0xFE);
+        assertEquals(4294967294L,           (long) parser.uint32(u32, 1));
+        assertEquals(4294967294L,           parser.uint32AsLong(u32, 1));
+        assertEquals(-2,                    (int) parser.int32(u32, 1));
+        assertEquals(-2,                    parser.int32AsLong(u32, 1));
+        assertNull(parser.bitfield32(u32, 1));
+        assertNull(parser.uint32(bytes(0xFF, 0xFF, 0xFF, 0xFF), 0));
+        assertEquals(NOT_IMPLEMENTED,       parser.uint32AsLong(bytes(0xFF, 0xFF, 0xFF, 0xFF), 0));
+        assertNull(parser.int32(bytes(0x80, 0, 0, 0), 0));
+        assertEquals(2147483648L,           (long) parser.acc32(bytes(0x80, 0, 0, 0), 0));
+
+        // 64 bit values use exactly 8 bytes
+        byte[] i64 = bytes(0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08);
+        assertEquals(0x0102030405060708L,   (long) parser.int64(i64, 0));
+        assertEquals(0x0102030405060708L,   parser.acc64AsLong(i64, 0));
+        assertNull(parser.int64(bytes(0x80, 0, 0, 0, 0, 0, 0, 0), 0));
+        assertNull(parser.acc64(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFE), 0));
+
+        // float32
+        assertEquals(230.5F,                parser.float32(bytes(0x43, 0x66, 0x80, 0x00), 0), 0.0F);
+        assertEquals(-1.5,                  parser.float32AsDouble(bytes(0xBF, 0xC0, 0x00, 0x00), 0), 0.0);
+        assertNull(parser.float32(bytes(0x7F, 0xC0, 0x00, 0x00), 0));
+        assertFalse(isImplemented(parser.float32AsDouble(bytes(0x7F, 0xC0, 0x00, 0x00), 0)));
+
+        // float64
+        byte[] f64 = bytes(0, 0, 0x40, 0x6C, 0xD0, 0x00, 0x00, 0x00, 0x00, 0x00);
+        assertEquals(230.5,                 parser.float64(f64, 1), 0.0);
+        assertEquals(230.5,                 parser.float64AsDouble(f64, 1), 0.0);
+        assertNull(parser.float64(bytes(0x7F, 0xF8, 0, 0, 0, 0, 0, 0), 0));
+        assertFalse(isImplemented(parser.float64AsDouble(bytes(0x7F, 0xF8, 0, 0, 0, 0, 0, 0), 0)));
+    }
+
+    @Test
+    public void sameAsBoxedValues() throws Exception {
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            int compared = 0;
+            for (ModelLocation modelLocation : dataReader.getModelLocations().values()) {
+                ModelParser parser = ParseSunSpec.getModelParser(modelLocation.id);
+                byte[] data = dataReader.getRawModel(modelLocation);
+
+                for (Method primitive : parser.getClass().getMethods()) {
+                    String name = primitive.getName();
+                    if (!(name.endsWith("AsLong") || name.endsWith("AsDouble")) ||
+                        primitive.getParameterCount() == 0 ||
+                        primitive.getParameterTypes()[0] != byte[].class) {
+                        continue;
+                    }
+                    Class<?>[] parameterTypes = primitive.getParameterTypes();
+                    Method boxed = parser.getClass().getMethod(name.replaceAll("As(Long|Double)$", ""), parameterTypes);
+
+                    for (int index = 0; index < (parameterTypes.length == 1 ? 1 : 3); index++) {
+                        Object[] args = parameterTypes.length == 1 ? new Object[]{data} : new Object[]{data, index};
+                        Object primitiveValue = invoke(primitive, parser, args);
+                        Object boxedValue     = invoke(boxed,     parser, args);
+                        if (primitiveValue == NO_VALUE || boxedValue == NO_VALUE) {
+                            assertTrue(primitiveValue == NO_VALUE && boxedValue == NO_VALUE);
+                            continue;
+                        }
+                        String what = parser.getId() + ":" + name + Arrays.toString(args).replaceAll("\\[B@[0-9a-f]+", "data");
+
+                        boolean implemented = primitiveValue instanceof Long
+                            ? isImplemented((Long) primitiveValue)
+                            : isImplemented((Double) primitiveValue);
+
+                        if (!implemented) {
+                            // Mandatory fields are replaced by a default value in the boxed form
+                            assertTrue(what + " = " + boxedValue,
+                                boxedValue == null ||
+                                (boxedValue instanceof Number && ((Number) boxedValue).doubleValue() == 0) ||
+                                boxedValue.toString().contains("__INVALID__"));
+                        } else if (boxedValue instanceof Number) {
+                            if (primitiveValue instanceof Long) {
+                                assertEquals(what, ((Number) boxedValue).longValue(), primitiveValue);
+                            } else {
+                                assertEquals(what, ((Number) boxedValue).doubleValue(), (Double) primitiveValue, 0.0);
+                            }
+                        } else {
+                            // An enum or EnumSet
+                            assertTrue(what, boxedValue != null);
+                        }
+                        compared++;
+                    }
+                }
+            }
+            assertTrue("Compared only " + compared, compared > 100);
+        }
+    }
+
+    private static class CollectingSink implements PointSink {
+        final List<String>        blocks  = new ArrayList<>();
+        final Map<String, Object> values  = new HashMap<>();
+        final Set<String>         missing = new HashSet<>();
+        private String      prefix = "";
+        private ModelSchema schema = null;
+        private boolean     fixed  = true;
+
+        @Override
+        public void beginBlock(ModelSchema blockSchema, int index) {
+            schema = blockSchema;
+            fixed = index == -1;
+            prefix = blockSchema.getModelId() + "|" + index + "|";
+            blocks.add(prefix);
+        }
+
+        private String name(int slot) {
+            return prefix + (fixed ? schema.getFixedPoint(slot) : schema.getRepeatingPoint(slot));
+        }
+
+        @Override
+        public void onLong(int slot, long value) {
+            assertNull(values.put(name(slot), value));
+        }
+
+        @Override
+        public void onDouble(int slot, double value) {
+            assertNull(values.put(name(slot), value));
+        }
+
+        @Override
+        public void onMissing(int slot) {
+            assertTrue(missing.add(name(slot)));
+        }
+    }
+
+    @Test
+    public void decodeAll() throws Exception {
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            ParseSunSpec.Model_101 model101 = new ParseSunSpec.Model_101();
+            byte[] data = dataReader.getRawModel(dataReader.getModelLocation(101));
+
+            CollectingSink sink = new CollectingSink();
+            model101.decodeAll(data, sink);
+            assertEquals(Arrays.asList("101|-1|"), sink.blocks);
+            assertEquals(model101.getWattsAsDouble(data),             sink.values.get("101|-1|W"));
+            assertEquals(model101.getAmpsAsDouble(data),              sink.values.get("101|-1|A"));
+            assertEquals(model101.getWattHoursAsDouble(data),         sink.values.get("101|-1|WH"));
+            assertEquals(model101.getOperatingStateAsLong(data),      sink.values.get("101|-1|St"));
+            assertEquals(model101.getVendorOperatingStateAsLong(data), sink.values.get("101|-1|StVnd"));
+            assertTrue(sink.missing.contains("101|-1|AphB"));
+            // Scale factors are not passed as separate values
+            assertFalse(sink.values.containsKey("101|-1|W_SF"));
+
+            // Exactly the points that have a public primitive accessor
+            long accessors = Arrays.stream(ParseSunSpec.Model_101.class.getMethods())
+                .filter(m -> m.getName().matches("get.*As(Long|Double)"))
+                .filter(m -> m.getParameterCount() == 1 && m.getParameterTypes()[0] == byte[].class)
+                .count();
+            assertEquals(accessors, sink.values.size() + sink.missing.size());
+
+            // A model with repeating blocks
+            ParseSunSpec.Model_132 model132 = new ParseSunSpec.Model_132();
+            sink = new CollectingSink();
+            model132.decodeAll(dataReader.getRawModel(dataReader.getModelLocation(132)), sink);
+            assertEquals("132|-1|", sink.blocks.get(0));
+            assertTrue(sink.blocks.size() > 2);
+            for (int index = 1; index < sink.blocks.size(); index++) {
+                assertEquals("132|" + (index - 1) + "|", sink.blocks.get(index));
+            }
+
+            // All models of a fetcher
+            SunSpecFetcher fetcher = new SunSpecFetcher(dataReader).useModel(1).useModel(101).useModel(132);
+            fetcher.refresh();
+            CollectingSink fetcherSink = new CollectingSink();
+            fetcher.decodeAll(fetcherSink);
+            assertEquals("1|-1|",   fetcherSink.blocks.get(0));
+            assertEquals("101|-1|", fetcherSink.blocks.get(1));
+            assertEquals(sink.values, new HashMap<String, Object>() {{
+                fetcherSink.values.forEach((k, v) -> { if (k.startsWith("132|")) { put(k, v); } });
+            }});
+        }
+    }
+}
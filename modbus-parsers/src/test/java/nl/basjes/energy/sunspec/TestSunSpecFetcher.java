@@ -17,19 +17,26 @@
 
 package nl.basjes.energy.sunspec;
 
+import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.procimg.Register;
 import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
 import nl.basjes.energy.sunspec.SunSpecModbusDataReader.ModelLocation;
+import nl.basjes.modbus.RegisterReadPlan;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
 import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class TestSunSpecFetcher extends RunProcessImageAsModbusTCPSlave {
 
@@ -40,6 +47,27 @@ public class TestSunSpecFetcher extends RunProcessImageAsModbusTCPSlave {
         startTestSlave(SunSpecTestProcessImage.class, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID);
     }
 
+    @Test
+    public void bulkModelDiscoveryTest() throws Exception {
+        int[] requests = {0};
+        ModbusTCPMaster master = new ModbusTCPMaster(getHost(), getTestport()) {
+            @Override
+            public synchronized Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+                requests[0]++;
+                return super.readMultipleRegisters(unitId, ref, count);
+            }
+        };
+        try(SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(master)) {
+            requests[0] = 0;
+            assertEquals(9, dataReader.walkModelLocations(SUNSPEC_STANDARD_STARTBASE).size());
+            assertEquals(1 + 9 * 2 + 1, requests[0]);
+
+            requests[0] = 0;
+            assertEquals(9, dataReader.getModelLocations(SUNSPEC_STANDARD_STARTBASE).size());
+            assertTrue("Requests: " + requests[0], requests[0] <= 6);
+        }
+    }
+
     @Test
     public void getBlockListTest() throws Exception {
         try(SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
@@ -59,6 +87,9 @@ public class TestSunSpecFetcher extends RunProcessImageAsModbusTCPSlave {
                 { 132, 40711, 226 },
             };
 
+            // Reading the headers one by one gives the same result
+            assertEquals(blockLocations.toString(), dataReader.walkModelLocations(SUNSPEC_STANDARD_STARTBASE).toString());
+
             int exp = 0;
             for (Map.Entry<Integer, ModelLocation> entry : blockLocations.entrySet()) {
                 Integer                               i = entry.getKey();
@@ -118,6 +149,103 @@ public class TestSunSpecFetcher extends RunProcessImageAsModbusTCPSlave {
         }
     }
 
+    @Test
+    public void combinedReadsTest() throws Exception {
+        try(SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+
+            SunSpecFetcher fetcher = new SunSpecFetcher(dataReader)
+                .useModel(1)
+                .useModel(101)
+                .useModel(132);
+
+            // Models 1 and 101 fit in a single request, model 132 needs 2 requests.
+            final RegisterReadPlan readPlan = fetcher.getReadPlan();
+            assertEquals(3, readPlan.getRequests().size());
+
+            fetcher.refresh();
+
+            for (int modelId: new int[]{1, 101, 132}) {
+                ModelLocation modelLocation = dataReader.getModelLocation(modelId);
+                ModelFetcher  modelFetcher  = fetcher.getModelFetcher(dataReader, modelId);
+                modelFetcher.refresh();
+                assertArrayEquals(
+                    "Model " + modelId,
+                    dataReader.getRawModel(modelLocation),
+                    readPlan.execute(dataReader).getRegisterBytes(modelLocation.registerBase, modelLocation.len));
+                assertEquals(modelFetcher.toHashMap(), fetcher.toHashMap().entrySet().stream()
+                    .filter(e -> e.getKey().startsWith(modelId + "|"))
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+            }
+
+            // The same with all 3 requests in flight at the same time
+            final Map<String, Object> serialResult = fetcher.toHashMap();
+            dataReader.setPipelineWindow(3);
+            fetcher.refresh();
+            assertEquals(serialResult, fetcher.toHashMap());
+            assertEquals(3, dataReader.getPipelineWindow());
+
+            // The buffers are swapped and reused on every refresh
+            fetcher.refresh();
+            assertEquals(serialResult, fetcher.toHashMap());
+        }
+    }
+
+    private static int registersRead(RegisterReadPlan readPlan) {
+        return readPlan.getRequests().stream().mapToInt(r -> r.len).sum();
+    }
+
+    @Test
+    public void refreshIntervalsTest() throws Exception {
+        try(SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+
+            SunSpecFetcher fetcher = new SunSpecFetcher(dataReader)
+                .useModel(1, 3_600_000)          // The identity of the device
+                .useModel(101)                   // The measurements: on every refresh
+                .useModel(120, 60_000)           // The nameplate
+                .withRefreshInterval(101, 36, 14, 10_000); // The status and events of model 101
+
+            // Initially everything is retrieved
+            long start = 1_000_000;
+            fetcher.refreshAt(start);
+            assertEquals(fetcher.getReadPlan(), fetcher.getLastReadPlan());
+            assertEquals(65 + 2 + 50 + 2 + 26, registersRead(fetcher.getLastReadPlan()));
+            final Map<String, Object> fullResult = fetcher.toHashMap();
+            long model1Timestamp = fetcher.getDataTimestamp(1, 0);
+            long model101Timestamp = fetcher.getDataTimestamp(101, 0);
+            assertTrue(model1Timestamp > 0);
+
+            Thread.sleep(10);
+
+            // Only the first part of model 101 is due
+            fetcher.refreshAt(start + 1_000);
+            assertEquals(1, fetcher.getLastReadPlan().getRequests().size());
+            assertEquals(40071, fetcher.getLastReadPlan().getRequests().get(0).start);
+            assertEquals(36,    fetcher.getLastReadPlan().getRequests().get(0).len);
+            assertEquals(fullResult, fetcher.toHashMap());
+            assertEquals(model1Timestamp, fetcher.getDataTimestamp(1, 0));
+            assertEquals(model101Timestamp, fetcher.getDataTimestamp(101, 40));
+            assertTrue(fetcher.getDataTimestamp(101, 0) > model101Timestamp);
+
+            // The entire model 101
+            fetcher.refreshAt(start + 10_000);
+            assertEquals(50, registersRead(fetcher.getLastReadPlan()));
+            assertEquals(fullResult, fetcher.toHashMap());
+
+            // Model 101 and the nameplate
+            fetcher.refreshAt(start + 60_000);
+            assertEquals(50 + 2 + 26, registersRead(fetcher.getLastReadPlan()));
+            assertEquals(fullResult, fetcher.toHashMap());
+            assertEquals(model1Timestamp, fetcher.getDataTimestamp(1, 0));
+
+            // Nothing is due if all models have an interval
+            SunSpecFetcher slowFetcher = new SunSpecFetcher(dataReader)
+                .useModel(1, 3_600_000);
+            slowFetcher.refreshAt(start);
+            slowFetcher.refreshAt(start + 1_000);
+            assertNull(slowFetcher.getLastReadPlan());
+            assertEquals("SunSpecText", slowFetcher.toHashMap().get("1|-|Manufacturer|"));
+        }
+    }
 
     @Test(expected = UnsupportedOperationException.class)
     public void requestUnsupportedModel() throws Exception {
@@ -0,0 +1,185 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package nl.basjes.modbus;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import nl.basjes.energy.sdm630.SDM630ProcessImage;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestAdaptiveMaxRegisters extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SDM630ProcessImage.class, 0, 1);
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    // Behaves like a cheap gateway that rejects requests that are too large.
+    private static class LimitedMaster extends ModbusTCPMaster {
+        private final int limit;
+        private int requests = 0;
+        private int timeoutsLeft = 0;
+        private boolean dropOversized = false;
+
+        LimitedMaster(int limit) {
+            super(getHost(), getTestport());
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+            requests++;
+            if (timeoutsLeft > 0) {
+                timeoutsLeft--;
+                throw new ModbusIOException("Simulated timeout");
+            }
+            if (count > limit) {
+                if (dropOversized) {
+                    throw new ModbusIOException("Simulated timeout of a dropped request");
+                }
+                throw new ModbusSlaveException(Modbus.ILLEGAL_VALUE_EXCEPTION);
+            }
+            return super.readMultipleRegisters(unitId, ref, count);
+        }
+    }
+
+    @Test
+    public void learnAndRemember() throws Exception {
+        byte[] expected;
+        try (ModBusDataReader reader = new ModBusDataReader(new ModbusTCPMaster(getHost(), getTestport()), 1)) {
+            expected = reader.getRawRegisterBytes(0, 382);
+        }
+
+        File settingsFile = new File(temporaryFolder.getRoot(), "devices.properties");
+
+        LimitedMaster master = new LimitedMaster(60);
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.enableAdaptiveMaxRegistersPerModbusRequest(new DeviceSettingsStore(settingsFile), "TestDevice");
+            assertTrue(reader.isLearningMaxRegistersPerModbusRequest());
+            assertArrayEquals(expected, reader.getRawRegisterBytes(0, 382));
+            assertFalse(reader.isLearningMaxRegistersPerModbusRequest());
+            assertEquals(60, reader.getMaxRegistersPerModbusRequest());
+        }
+
+        // A new session for the same device starts with the learned value without probing.
+        master = new LimitedMaster(60);
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.enableAdaptiveMaxRegistersPerModbusRequest(new DeviceSettingsStore(settingsFile), "TestDevice");
+            assertFalse(reader.isLearningMaxRegistersPerModbusRequest());
+            assertEquals(60, reader.getMaxRegistersPerModbusRequest());
+            assertArrayEquals(expected, reader.getRawRegisterBytes(0, 382));
+            assertEquals(7, master.requests); // 382 / 60 rounded up
+        }
+    }
+
+    @Test
+    public void noLimit() throws Exception {
+        try (ModBusDataReader reader = new ModBusDataReader(new LimitedMaster(1000), 1)) {
+            reader.enableAdaptiveMaxRegistersPerModbusRequest(null, "TestDevice");
+            reader.getRawRegisterBytes(0, 382);
+            assertFalse(reader.isLearningMaxRegistersPerModbusRequest());
+            assertEquals(125, reader.getMaxRegistersPerModbusRequest());
+        }
+    }
+
+    @Test
+    public void timeoutsAreNotLearned() throws Exception {
+        File settingsFile = new File(temporaryFolder.getRoot(), "devices.properties");
+        DeviceSettingsStore settingsStore = new DeviceSettingsStore(settingsFile);
+
+        // The request and the check with a single register both time out: the device is unreachable.
+        LimitedMaster master = new LimitedMaster(60);
+        master.timeoutsLeft = 2;
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.setRetryPolicy(RetryPolicy.noRetries());
+            reader.enableAdaptiveMaxRegistersPerModbusRequest(settingsStore, "TestDevice");
+            try {
+                reader.getRawRegisterBytes(0, 382);
+                fail("Should have failed");
+            } catch (ModbusIOException e) {
+                // Expected
+            }
+            // The timeouts are no evidence of a smaller maximum.
+            assertTrue(reader.isLearningMaxRegistersPerModbusRequest());
+            assertEquals(125, reader.getMaxRegistersPerModbusRequest());
+            assertNull(settingsStore.getInt("TestDevice", ModBusDataReader.SETTING_MAX_REGISTERS_PER_MODBUS_REQUEST));
+
+            reader.getRawRegisterBytes(0, 382);
+            assertFalse(reader.isLearningMaxRegistersPerModbusRequest());
+            assertEquals(60, reader.getMaxRegistersPerModbusRequest());
+        }
+
+        // With retries a transient timeout does not even fail the read.
+        master = new LimitedMaster(60);
+        master.timeoutsLeft = 1;
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.setRetryPolicy(new RetryPolicy().withMaxRetries(1).withBackoff(1, 1, 1.0));
+            reader.enableAdaptiveMaxRegistersPerModbusRequest(null, "OtherDevice");
+            reader.getRawRegisterBytes(0, 382);
+            assertEquals(60, reader.getMaxRegistersPerModbusRequest());
+        }
+    }
+
+    @Test
+    public void droppedRequestsAreLearned() throws Exception {
+        byte[] expected;
+        try (ModBusDataReader reader = new ModBusDataReader(new ModbusTCPMaster(getHost(), getTestport()), 1)) {
+            expected = reader.getRawRegisterBytes(0, 382);
+        }
+
+        LimitedMaster master = new LimitedMaster(60);
+        master.dropOversized = true;
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.setRetryPolicy(RetryPolicy.noRetries());
+            reader.enableAdaptiveMaxRegistersPerModbusRequest(null, "TestDevice");
+            assertArrayEquals(expected, reader.getRawRegisterBytes(0, 382));
+            assertFalse(reader.isLearningMaxRegistersPerModbusRequest());
+            assertEquals(60, reader.getMaxRegistersPerModbusRequest());
+        }
+    }
+
+    @Test
+    public void smallReadsDoNotLowerTheMaximum() throws Exception {
+        try (ModBusDataReader reader = new ModBusDataReader(new LimitedMaster(1000), 1)) {
+            reader.enableAdaptiveMaxRegistersPerModbusRequest(null, "TestDevice");
+            reader.getRawRegisterBytes(0, 10);
+            assertTrue(reader.isLearningMaxRegistersPerModbusRequest());
+            assertEquals(125, reader.getMaxRegistersPerModbusRequest());
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.modbus;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import nl.basjes.energy.sdm630.SDM630ProcessImage;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestAdaptiveTimeout extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SDM630ProcessImage.class, 0, 1);
+    }
+
+    private static long ms(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Test
+    public void testTimeoutFromPercentile() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(100)
+            .withPercentile(0.99, 2.0)
+            .withBounds(10, 1000)
+            .withMinSamples(10);
+
+        assertEquals(3000, timeout.getTimeoutMs(3000));
+        for (int i = 1; i <= 100; i++) {
+            timeout.recordRoundTrip(ms(i));
+        }
+        assertEquals(99.0, timeout.getRoundTripPercentileMs(0.99), 0.001);
+        assertEquals(198, timeout.getTimeoutMs(3000));
+
+        // Only the most recent round trips count
+        for (int i = 0; i < 100; i++) {
+            timeout.recordRoundTrip(ms(2));
+        }
+        assertEquals(10, timeout.getTimeoutMs(3000));
+
+        // Repeated timeouts make the timeout grow exponentially
+        int current = timeout.getTimeoutMs(3000);
+        int timeouts = 0;
+        while (current < 1000 && timeouts < 20) {
+            timeout.recordTimeout(current);
+            timeouts++;
+            int next = timeout.getTimeoutMs(3000);
+            assertTrue(next >= current);
+            current = next;
+        }
+        assertEquals(1000, current);
+        assertTrue("Needed " + timeouts + " timeouts", timeouts <= 15);
+    }
+
+    @Test
+    public void testAdaptsToFastDevice() throws Exception {
+        ModbusTCPMaster master = new ModbusTCPMaster(getHost(), getTestport());
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            assertEquals(Modbus.DEFAULT_TIMEOUT, reader.getCurrentTimeoutMs());
+
+            AdaptiveTimeout adaptiveTimeout = new AdaptiveTimeout().withBounds(100, 2000).withMinSamples(5);
+            reader.enableAdaptiveTimeout(adaptiveTimeout);
+            for (int i = 0; i < 10; i++) {
+                reader.readU16(0);
+            }
+            reader.getRawRegisterBytes(0, 382);
+            // 382 registers are 4 requests
+            assertEquals(10 + 4, adaptiveTimeout.getSampleCount());
+
+            // The test slave is local so it is very fast
+            assertEquals(100, reader.getCurrentTimeoutMs());
+            assertEquals(100, master.getTimeout());
+
+            reader.disableAdaptiveTimeout();
+            assertEquals(Modbus.DEFAULT_TIMEOUT, master.getTimeout());
+        }
+    }
+
+    @Test
+    public void testGatewayUnitTimeout() throws Exception {
+        try (ModbusGateway gateway = new ModbusGateway(new ModbusTCPMaster(getHost(), getTestport()))) {
+            ModBusDataReader reader = new ModBusDataReader(gateway, 1);
+            reader.enableAdaptiveTimeout(new AdaptiveTimeout().withBounds(100, 2000).withMinSamples(1));
+            for (int i = 0; i < 3; i++) {
+                reader.readU16(0);
+            }
+            assertEquals(100, reader.getCurrentTimeoutMs());
+            // The timeout of the shared connection is unchanged
+            assertEquals(Modbus.DEFAULT_TIMEOUT, gateway.getTimeout());
+        }
+    }
+
+    // Answers every read request (with all registers 0) only after a delay.
+    private static Thread startSlowDevice(ServerSocket serverSocket, long delayMs) {
+        Thread thread = new Thread(() -> {
+            try (Socket socket = serverSocket.accept();
+                 DataInputStream input = new DataInputStream(socket.getInputStream());
+                 DataOutputStream output = new DataOutputStream(socket.getOutputStream())) {
+                while (true) {
+                    int transactionId = input.readUnsignedShort();
+                    input.readUnsignedShort(); // Protocol
+                    input.readUnsignedShort(); // Length
+                    int unitId = input.readUnsignedByte();
+                    int function = input.readUnsignedByte();
+                    input.readUnsignedShort(); // Reference
+                    int count = input.readUnsignedShort();
+                    Thread.sleep(delayMs);
+                    output.writeShort(transactionId);
+                    output.writeShort(0);
+                    output.writeShort(3 + count * 2);
+                    output.writeByte(unitId);
+                    output.writeByte(function);
+                    output.writeByte(count * 2);
+                    output.write(new byte[count * 2]);
+                    output.flush();
+                }
+            } catch (Exception e) {
+                // The test is done.
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testLateResponsesAreRecorded() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             ModbusTCPEventLoop eventLoop = new ModbusTCPEventLoop()) {
+            startSlowDevice(serverSocket, 200);
+
+            NioModbusTCPMaster master = new NioModbusTCPMaster(eventLoop, getHost(), serverSocket.getLocalPort());
+            try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+                master.setTimeout(50);
+                reader.setRetryPolicy(RetryPolicy.noRetries());
+                AdaptiveTimeout adaptiveTimeout = new AdaptiveTimeout().withBounds(10, 5000).withMinSamples(1);
+                reader.enableAdaptiveTimeout(adaptiveTimeout);
+
+                try {
+                    reader.getRawRegisterBytes(0, 2);
+                    fail("Should have timed out");
+                } catch (ModbusIOException e) {
+                    // Expected
+                }
+                // The timeout itself was recorded
+                assertEquals(1, adaptiveTimeout.getSampleCount());
+
+                // And the late response once it arrives
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (adaptiveTimeout.getSampleCount() < 2 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(2, adaptiveTimeout.getSampleCount());
+                assertTrue(adaptiveTimeout.getRoundTripPercentileMs(1.0) >= 150);
+
+                // Now the device gets enough time
+                assertTrue(reader.getCurrentTimeoutMs() >= 450);
+                reader.getRawRegisterBytes(0, 2);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.modbus;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import nl.basjes.energy.sdm630.SDM630ProcessImage;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestConcurrentReads extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SDM630ProcessImage.class, 0, 1);
+    }
+
+    // A device that takes a while to answer and counts the requests it gets.
+    private static class SlowMaster extends ModbusTCPMaster {
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger concurrent = new AtomicInteger();
+        private volatile int maxConcurrent = 0;
+
+        SlowMaster() {
+            super(getHost(), getTestport());
+        }
+
+        @Override
+        public Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+            requests.incrementAndGet();
+            maxConcurrent = Math.max(maxConcurrent, concurrent.incrementAndGet());
+            try {
+                Thread.sleep(200);
+                return super.readMultipleRegisters(unitId, ref, count);
+            } catch (InterruptedException e) {
+                throw new ModbusException("Interrupted");
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testManyThreadsOneReader() throws Exception {
+        byte[] expected;
+        try (ModBusDataReader reader = new ModBusDataReader(new ModbusTCPMaster(getHost(), getTestport()), 1)) {
+            expected = reader.getRawRegisterBytes(0, 382);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (ModBusDataReader reader = new ModBusDataReader(new ModbusTCPMaster(getHost(), getTestport()), 1)) {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 25; i++) {
+                        if (thread % 2 == 0) {
+                            assertArrayEquals(expected, reader.getRawRegisterBytes(0, 382));
+                        } else {
+                            byte[] target = new byte[20];
+                            reader.getRawRegisterBytes(thread, 10, target, 0);
+                            byte[] part = new byte[20];
+                            System.arraycopy(expected, thread * 2, part, 0, 20);
+                            assertArrayEquals(part, target);
+                            assertEquals(Integer.valueOf(((expected[0] & 0xFF) << 8) | (expected[1] & 0xFF)), reader.readU16(0));
+                        }
+                        if (i % 10 == 0) {
+                            reader.disconnect();
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIdenticalReadsAreShared() throws Exception {
+        SlowMaster master = new SlowMaster();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.connect();
+            CyclicBarrier barrier = new CyclicBarrier(4);
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Callable<byte[]> read = () -> {
+                    barrier.await();
+                    return reader.getRawRegisterBytes(0, 10);
+                };
+                results.add(executor.submit(read));
+            }
+            byte[] first = results.get(0).get();
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(first, result.get());
+            }
+            assertEquals(1, master.requests.get());
+            assertEquals(3, reader.getSharedReadCount());
+
+            // Different ranges are not shared but are still done one at a time.
+            results.clear();
+            for (int t = 0; t < 3; t++) {
+                final int base = t;
+                results.add(executor.submit(() -> reader.getRawRegisterBytes(base, 10)));
+            }
+            for (Future<byte[]> result : results) {
+                result.get();
+            }
+            assertEquals(4, master.requests.get());
+            assertEquals(1, master.maxConcurrent);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIdenticalPlanReadsAreShared() throws Exception {
+        SlowMaster master = new SlowMaster();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<RegisterReadPlan.RegisterRange> ranges = new ArrayList<>();
+        ranges.add(new RegisterReadPlan.RegisterRange(0, 10));
+        ranges.add(new RegisterReadPlan.RegisterRange(20, 10));
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.connect();
+            CyclicBarrier barrier = new CyclicBarrier(3);
+            List<Future<List<byte[]>>> results = new ArrayList<>();
+            for (int t = 0; t < 3; t++) {
+                Callable<List<byte[]>> read = () -> {
+                    barrier.await();
+                    return reader.getRawRegisterBytes(ranges);
+                };
+                results.add(executor.submit(read));
+            }
+            List<byte[]> first = results.get(0).get();
+            for (Future<List<byte[]>> result : results) {
+                for (int r = 0; r < ranges.size(); r++) {
+                    assertArrayEquals(first.get(r), result.get().get(r));
+                }
+            }
+            // Each chunk is requested only once, all other threads copied it.
+            assertEquals(2, master.requests.get());
+            assertEquals(4, reader.getSharedReadCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
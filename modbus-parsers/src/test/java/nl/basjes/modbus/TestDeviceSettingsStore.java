@@ -0,0 +1,74 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.modbus;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestDeviceSettingsStore {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void batchedWrites() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "devices.properties");
+        DeviceSettingsStore store = new DeviceSettingsStore(file).withFlushDelayMs(200);
+        for (int device = 0; device < 100; device++) {
+            store.put("Device" + device, "Setting", device);
+        }
+        // Nothing is written for every single change.
+        assertTrue(store.isDirty());
+        assertFalse(file.exists());
+
+        // A while later all changes are written at once.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.isDirty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(store.isDirty());
+        assertEquals(Integer.valueOf(42), new DeviceSettingsStore(file).getInt("Device42", "Setting"));
+
+        store.put("Device42", "Setting", 43);
+        store.close();
+        assertEquals(Integer.valueOf(43), new DeviceSettingsStore(file).getInt("Device42", "Setting"));
+    }
+
+    @Test
+    public void failedWriteLeavesNoTemporaryFile() throws Exception {
+        // The file cannot be replaced because there is a (non empty) directory with that name.
+        File file = temporaryFolder.newFolder("devices.properties");
+        assertTrue(new File(file, "blocker").createNewFile());
+
+        DeviceSettingsStore store = new DeviceSettingsStore(file).withFlushDelayMs(0);
+        store.put("Device", "Setting", 1);
+        // The change is kept to be written on the next flush.
+        assertTrue(store.isDirty());
+        assertEquals(Integer.valueOf(1), store.getInt("Device", "Setting"));
+        assertArrayEquals(new String[]{"devices.properties"}, temporaryFolder.getRoot().list());
+    }
+}
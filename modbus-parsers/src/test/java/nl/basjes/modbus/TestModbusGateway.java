@@ -0,0 +1,194 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package nl.basjes.modbus;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+import com.ghgande.j2mod.modbus.slave.ModbusSlaveFactory;
+import com.ghgande.j2mod.modbus.slave.ModbusSlaveType;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import nl.basjes.energy.sdm630.SDM630ProcessImage;
+import nl.basjes.energy.sdm630.SDM630Reader;
+import nl.basjes.energy.sunspec.SunSpecFetcher;
+import nl.basjes.energy.sunspec.SunSpecModbusDataReader;
+import nl.basjes.energy.sunspec.SunSpecTestProcessImage;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestModbusGateway extends RunProcessImageAsModbusTCPSlave {
+
+    private static final int SDM630_UNITID = 1;
+    private static final int DEAD_UNITID   = 42;
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SunSpecTestProcessImage.class, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID);
+        // A second device behind the same "gateway"
+        ModbusSlaveFactory
+            .getSlave(ModbusSlaveType.TCP, getTestport())
+            .addProcessImage(SDM630_UNITID, new SDM630ProcessImage(0, SDM630_UNITID));
+    }
+
+    @Test
+    public void sharedConnection() throws Exception {
+        try (ModbusGateway gateway = new ModbusGateway(new ModbusTCPMaster(getHost(), getTestport()))) {
+            SunSpecModbusDataReader sunSpecReader = new SunSpecModbusDataReader(gateway);
+            SDM630Reader            sdm630Reader  = new SDM630Reader(gateway, SDM630_UNITID);
+
+            SunSpecFetcher fetcher = new SunSpecFetcher(sunSpecReader).useAllModels();
+            fetcher.refresh();
+            Map<String, Object> expectedSunSpec = fetcher.toHashMap();
+            String expectedSDM630 = sdm630Reader.read().toMap().toString();
+
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                Future<?> sunSpec = executor.submit(() -> {
+                    for (int i = 0; i < 5; i++) {
+                        fetcher.refresh();
+                        assertEquals(expectedSunSpec, fetcher.toHashMap());
+                    }
+                    return null;
+                });
+                Future<?> sdm630 = executor.submit(() -> {
+                    for (int i = 0; i < 5; i++) {
+                        assertEquals(expectedSDM630, sdm630Reader.read().toMap().toString());
+                    }
+                    return null;
+                });
+                sunSpec.get();
+                sdm630.get();
+            } finally {
+                executor.shutdown();
+            }
+
+            // A reader that is closed does not close the connection for the others.
+            sdm630Reader.close();
+            fetcher.refresh();
+            assertEquals(expectedSunSpec, fetcher.toHashMap());
+
+            assertEquals(1, gateway.getConnects());
+            Map<Integer, ModbusGateway.UnitStatistics> statistics = gateway.getAllUnitStatistics();
+            assertEquals(2, statistics.size());
+            assertTrue(statistics.get(SUNSPEC_STANDARD_UNITID).getRequests() > 0);
+            assertTrue(statistics.get(SDM630_UNITID).getRequests() > 0);
+            assertEquals(0, statistics.get(SDM630_UNITID).getFailures());
+        }
+    }
+
+    @Test
+    public void timeoutReplacesTheConnection() throws Exception {
+        // The test slave answers for any unit id so a unit that never answers is simulated.
+        ModbusTCPMaster master = new ModbusTCPMaster(getHost(), getTestport()) {
+            @Override
+            public synchronized Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+                if (unitId == DEAD_UNITID) {
+                    throw new ModbusIOException("Socket timeout reading response");
+                }
+                return super.readMultipleRegisters(unitId, ref, count);
+            }
+        };
+        try (ModbusGateway gateway = new ModbusGateway(master)) {
+            SDM630Reader sdm630Reader = new SDM630Reader(gateway, SDM630_UNITID);
+            SDM630Reader deadReader   = new SDM630Reader(gateway, DEAD_UNITID);
+            deadReader.setRetryPolicy(RetryPolicy.noRetries());
+
+            for (int i = 0; i < 3; i++) {
+                sdm630Reader.read();
+                try {
+                    deadReader.read();
+                    fail("Unit " + DEAD_UNITID + " does not exist");
+                } catch (ModbusException e) {
+                    // Expected
+                }
+            }
+            sdm630Reader.read();
+
+            // After each timeout the next request uses a new connection and the other units keep working.
+            assertEquals(4, gateway.getConnects());
+            assertTrue(gateway.isConnected());
+            assertTrue(gateway.getUnitStatistics(DEAD_UNITID).getFailures() > 0);
+            assertEquals(0, gateway.getUnitStatistics(SDM630_UNITID).getFailures());
+        }
+    }
+
+    @Test
+    public void writesAreSerialized() throws Exception {
+        AtomicInteger concurrent    = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        ModbusTCPMaster master = new ModbusTCPMaster(getHost(), getTestport()) {
+            private <T> T slowly(T result) throws ModbusException {
+                maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new ModbusException("Interrupted");
+                } finally {
+                    concurrent.decrementAndGet();
+                }
+                return result;
+            }
+
+            @Override
+            public synchronized Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+                return slowly(super.readMultipleRegisters(unitId, ref, count));
+            }
+
+            @Override
+            public int writeSingleRegister(int unitId, int ref, Register register) throws ModbusException {
+                // Not synchronized like the real one so only the gateway can keep it apart from the reads.
+                return slowly(0);
+            }
+        };
+        try (ModbusGateway gateway = new ModbusGateway(master)) {
+            gateway.connect();
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    results.add(executor.submit(() -> gateway.readMultipleRegisters(SDM630_UNITID, 0, 2)));
+                    results.add(executor.submit(() -> gateway.writeSingleRegister(SDM630_UNITID, 0, new SimpleRegister(1))));
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            assertEquals(1, maxConcurrent.get());
+            assertEquals(8, gateway.getUnitStatistics(SDM630_UNITID).getRequests());
+        }
+    }
+
+}
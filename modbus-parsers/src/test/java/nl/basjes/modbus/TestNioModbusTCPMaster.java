@@ -0,0 +1,219 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package nl.basjes.modbus;
+
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import nl.basjes.energy.sunspec.SunSpecFetcher;
+import nl.basjes.energy.sunspec.SunSpecModbusDataReader;
+import nl.basjes.energy.sunspec.SunSpecTestProcessImage;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
+import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestNioModbusTCPMaster extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SunSpecTestProcessImage.class, SUNSPEC_STANDARD_STARTBASE, SUNSPEC_STANDARD_UNITID);
+    }
+
+    private Map<String, Object> fetchAll(SunSpecModbusDataReader dataReader) throws Exception {
+        SunSpecFetcher fetcher = new SunSpecFetcher(dataReader).useAllModels();
+        fetcher.refresh();
+        return fetcher.toHashMap();
+    }
+
+    @Test
+    public void sameResultAsBlockingMaster() throws Exception {
+        Map<String, Object> expected;
+        try (SunSpecModbusDataReader dataReader = new SunSpecModbusDataReader(new ModbusTCPMaster(getHost(), getTestport()))) {
+            expected = fetchAll(dataReader);
+        }
+
+        // The test slave only has a few threads so it cannot handle many connections at the same time.
+        try (ModbusTCPEventLoop eventLoop = new ModbusTCPEventLoop()) {
+            List<SunSpecModbusDataReader> dataReaders = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                NioModbusTCPMaster master = new NioModbusTCPMaster(eventLoop, getHost(), getTestport());
+                master.setMaxInFlight(1 + i);
+                dataReaders.add(new SunSpecModbusDataReader(master));
+            }
+            for (SunSpecModbusDataReader dataReader : dataReaders) {
+                assertEquals(expected, fetchAll(dataReader));
+                dataReader.close();
+            }
+        }
+    }
+
+    @Test
+    public void asyncReads() throws Exception {
+        try (ModbusTCPEventLoop eventLoop = new ModbusTCPEventLoop()) {
+            NioModbusTCPMaster master = new NioModbusTCPMaster(eventLoop, getHost(), getTestport());
+            master.connect();
+            assertTrue(master.isConnected());
+
+            byte[] header = master.readMultipleRegistersAsync(SUNSPEC_STANDARD_UNITID, SUNSPEC_STANDARD_STARTBASE, 2).get();
+            assertEquals("SunS", new String(header, StandardCharsets.US_ASCII));
+
+            try {
+                // There are no registers at this address
+                master.readMultipleRegistersAsync(SUNSPEC_STANDARD_UNITID, 1, 2).get();
+                fail("Should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ModbusSlaveException);
+            }
+
+            // The connection must still be usable after an exception response.
+            try (ModBusDataReader dataReader = new ModBusDataReader(master, SUNSPEC_STANDARD_UNITID)) {
+                dataReader.connect();
+                assertEquals(2 * 300, dataReader.getRawRegisterBytesAsync(SUNSPEC_STANDARD_STARTBASE, 300).get().length);
+            }
+        }
+    }
+
+    private static int pendingDeadlines(ModbusTCPEventLoop eventLoop) throws Exception {
+        CompletableFuture<Integer> pending = new CompletableFuture<>();
+        eventLoop.execute(() -> pending.complete(eventLoop.getPendingDeadlines()));
+        return pending.get();
+    }
+
+    @Test
+    public void cleanupOfCompletedAndCancelledReads() throws Exception {
+        try (ModbusTCPEventLoop eventLoop = new ModbusTCPEventLoop()) {
+            NioModbusTCPMaster master = new NioModbusTCPMaster(eventLoop, getHost(), getTestport());
+            master.setTimeout(60000);
+            master.connect();
+
+            for (int i = 0; i < 10; i++) {
+                master.readMultipleRegistersAsync(SUNSPEC_STANDARD_UNITID, SUNSPEC_STANDARD_STARTBASE, 2).get();
+            }
+            // Completed requests do not wait for their deadline to be forgotten.
+            assertEquals(0, pendingDeadlines(eventLoop));
+
+            byte[] target = new byte[20];
+            CompletableFuture<byte[]> cancelled = master.readMultipleRegistersInto(SUNSPEC_STANDARD_UNITID, SUNSPEC_STANDARD_STARTBASE, 10, target, 0);
+            if (cancelled.cancel(false)) {
+                // Any response of the cancelled request has been handled after this one.
+                master.readMultipleRegistersAsync(SUNSPEC_STANDARD_UNITID, SUNSPEC_STANDARD_STARTBASE, 2).get();
+                assertArrayEquals(new byte[20], target);
+            }
+            assertEquals(0, pendingDeadlines(eventLoop));
+
+            master.disconnect();
+            assertFalse(master.isConnected());
+            master.connect();
+            assertTrue(master.isConnected());
+        }
+    }
+
+    // Fails the first reads as if the connection was lost.
+    private static final class FlakyMaster extends NioModbusTCPMaster {
+        private int failuresLeft;
+
+        FlakyMaster(ModbusTCPEventLoop eventLoop, int failures) {
+            super(eventLoop, getHost(), getTestport());
+            failuresLeft = failures;
+        }
+
+        @Override
+        public CompletableFuture<byte[]> readMultipleRegistersInto(int unitId, int reference, int count, byte[] target, int offset, int timeoutMs) {
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                CompletableFuture<byte[]> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new ModbusIOException("Simulated connection failure"));
+                return failed;
+            }
+            return super.readMultipleRegistersInto(unitId, reference, count, target, offset, timeoutMs);
+        }
+    }
+
+    @Test
+    public void asyncReadsUseRetryPolicyAndCircuitBreaker() throws Exception {
+        try (ModbusTCPEventLoop eventLoop = new ModbusTCPEventLoop()) {
+            try (ModBusDataReader dataReader = new ModBusDataReader(new FlakyMaster(eventLoop, 2), SUNSPEC_STANDARD_UNITID)) {
+                dataReader.setRetryPolicy(new RetryPolicy().withMaxRetries(2).withBackoff(1, 1, 1.0));
+                dataReader.connect();
+                byte[] header = dataReader.getRawRegisterBytesAsync(SUNSPEC_STANDARD_STARTBASE, 2).get();
+                assertEquals("SunS", new String(header, StandardCharsets.US_ASCII));
+            }
+
+            try (ModBusDataReader dataReader = new ModBusDataReader(new FlakyMaster(eventLoop, 100), SUNSPEC_STANDARD_UNITID)) {
+                dataReader.setRetryPolicy(RetryPolicy.noRetries());
+                dataReader.setCircuitBreaker(new CircuitBreaker(1, 60000));
+                dataReader.connect();
+                try {
+                    dataReader.getRawRegisterBytesAsync(SUNSPEC_STANDARD_STARTBASE, 2).get();
+                    fail("Should have failed");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof ModbusIOException);
+                }
+                assertEquals(CircuitBreaker.State.OPEN, dataReader.getCircuitState());
+                try {
+                    dataReader.getRawRegisterBytesAsync(SUNSPEC_STANDARD_STARTBASE, 2).get();
+                    fail("Should have failed");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readsDuringCloseAlwaysComplete() throws Exception {
+        ModbusTCPEventLoop eventLoop = new ModbusTCPEventLoop();
+        NioModbusTCPMaster master = new NioModbusTCPMaster(eventLoop, getHost(), getTestport());
+        master.connect();
+
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                futures.add(master.readMultipleRegistersAsync(SUNSPEC_STANDARD_UNITID, SUNSPEC_STANDARD_STARTBASE, 2));
+            }
+        });
+        reader.start();
+        eventLoop.close();
+        reader.join();
+
+        for (CompletableFuture<byte[]> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                // Failing because the event loop was closed is fine; waiting forever is not.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package nl.basjes.modbus;
+
+import nl.basjes.modbus.RegisterReadPlan.RegisterRange;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRegisterReadPlan {
+
+    private void assertRequests(RegisterReadPlan plan, int[][] expected) {
+        List<RegisterRange> requests = plan.getRequests();
+        assertEquals(requests.toString(), expected.length, requests.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], requests.get(i).start);
+            assertEquals(expected[i][1], requests.get(i).len);
+        }
+    }
+
+    @Test
+    public void testMergeNeighbours() {
+        RegisterReadPlan plan = RegisterReadPlan.create(Arrays.asList(
+            new RegisterRange(40071, 50),
+            new RegisterRange(40004, 65),
+            new RegisterRange(40711, 226)
+        ), 125, Integer.MAX_VALUE);
+
+        assertRequests(plan, new int[][]{
+            { 40004, 117 },
+            { 40711, 125 },
+            { 40836, 101 },
+        });
+    }
+
+    @Test
+    public void testOverlapAndGaps() {
+        RegisterReadPlan plan = RegisterReadPlan.create(Arrays.asList(
+            new RegisterRange(0, 10),
+            new RegisterRange(5, 10),
+            new RegisterRange(20, 5),
+            new RegisterRange(100, 2)
+        ), 125, 10);
+
+        assertRequests(plan, new int[][]{
+            {   0, 25 },
+            { 100,  2 },
+        });
+    }
+
+    @Test
+    public void testEmpty() {
+        assertTrue(RegisterReadPlan.create(Collections.emptyList(), 125, 0).getRequests().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadMaximum() {
+        RegisterReadPlan.create(Collections.emptyList(), 0, 0);
+    }
+
+}
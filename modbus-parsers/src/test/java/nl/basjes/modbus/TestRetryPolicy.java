@@ -0,0 +1,240 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.modbus;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.io.AbstractModbusTransport;
+import com.ghgande.j2mod.modbus.io.ModbusRTUTCPTransport;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import nl.basjes.energy.sdm630.SDM630ProcessImage;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestRetryPolicy extends RunProcessImageAsModbusTCPSlave {
+
+    @BeforeClass
+    public static void startTestSlave() throws Exception {
+        startTestSlave(SDM630ProcessImage.class, 0, 1);
+    }
+
+    // Fails the first requests as if the connection was lost.
+    private static class FlakyMaster extends ModbusTCPMaster {
+        private int failuresLeft;
+        private int requests = 0;
+
+        FlakyMaster(int failures) {
+            super(getHost(), getTestport());
+            this.failuresLeft = failures;
+        }
+
+        @Override
+        public synchronized Register[] readMultipleRegisters(int unitId, int ref, int count) throws ModbusException {
+            requests++;
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new ModbusIOException("Simulated connection failure");
+            }
+            return super.readMultipleRegisters(unitId, ref, count);
+        }
+    }
+
+    @Test
+    public void testAllReadMethodsConnect() throws Exception {
+        // None of these require an explicit connect anymore.
+        try (ModBusDataReader reader = new ModBusDataReader(new ModbusTCPMaster(getHost(), getTestport()), 1)) {
+            ByteBuffer raw = ByteBuffer.wrap(new ModBusDataReader(new ModbusTCPMaster(getHost(), getTestport()), 1)
+                .getRawRegisterBytes(0, 2));
+            assertEquals(Float.valueOf(raw.getFloat(0)), reader.readFloat32(0));
+            reader.disconnect();
+            assertEquals(raw.getInt(0), reader.readS32(0));
+            reader.disconnect();
+            assertEquals(raw.getInt(0) & 0xFFFFFFFFL, reader.readU32(0));
+            reader.disconnect();
+            assertEquals(4, reader.readASCII(0, 2).length());
+        }
+    }
+
+    @Test
+    public void testRetriesWithBackoff() throws Exception {
+        FlakyMaster master = new FlakyMaster(2);
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.setRetryPolicy(new RetryPolicy().withMaxRetries(2).withBackoff(5, 20, 2.0).withJitter(0));
+            long start = System.nanoTime();
+            reader.readFloat32(0);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertEquals(3, master.requests);
+            assertTrue("Only waited " + elapsedMs + " ms", elapsedMs >= 5 + 10);
+            assertEquals(CircuitBreaker.State.CLOSED, reader.getCircuitState());
+        }
+    }
+
+    @Test
+    public void testNotEnoughRetries() throws Exception {
+        FlakyMaster master = new FlakyMaster(2);
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.setRetryPolicy(RetryPolicy.noRetries());
+            try {
+                reader.readU16(0);
+                fail("Should have failed");
+            } catch (ModbusIOException e) {
+                // Expected
+            }
+            assertEquals(1, master.requests);
+            assertEquals(1, reader.getCircuitBreaker().getConsecutiveFailures());
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerOnDeadDevice() throws Exception {
+        int deadPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            deadPort = serverSocket.getLocalPort();
+        }
+
+        ModbusTCPMaster master = new ModbusTCPMaster(getHost(), deadPort);
+        master.setTimeout(500);
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.setRetryPolicy(new RetryPolicy().withMaxRetries(1).withBackoff(1, 1, 1.0));
+            reader.setCircuitBreaker(new CircuitBreaker(2, TimeUnit.MINUTES.toMillis(1)));
+
+            for (int i = 0; i < 2; i++) {
+                assertEquals(CircuitBreaker.State.CLOSED, reader.getCircuitState());
+                try {
+                    reader.readU16(0);
+                    fail("Should have failed");
+                } catch (CircuitBreakerOpenException e) {
+                    fail("The circuit should not be open yet");
+                } catch (ModbusException e) {
+                    // Expected
+                }
+            }
+            assertEquals(CircuitBreaker.State.OPEN, reader.getCircuitState());
+
+            long start = System.nanoTime();
+            try {
+                reader.getRawRegisterBytes(0, 10);
+                fail("Should have failed");
+            } catch (CircuitBreakerOpenException e) {
+                // Expected
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+        }
+    }
+
+    @Test
+    public void testNoPipeliningOverRtuOverTcp() throws Exception {
+        // Looks like a master that uses RTU over TCP; the real reads still use Modbus TCP framing.
+        ModbusTCPMaster master = new ModbusTCPMaster(getHost(), getTestport()) {
+            @Override
+            public AbstractModbusTransport getTransport() {
+                return new ModbusRTUTCPTransport();
+            }
+        };
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.setPipelineWindow(3);
+            assertEquals(382 * 2, reader.getRawRegisterBytes(0, 382).length);
+            assertEquals(1, reader.getPipelineWindow());
+        }
+    }
+
+    @Test
+    public void testPipelinedReadOfDeadDevice() throws Exception {
+        int deadPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            deadPort = serverSocket.getLocalPort();
+        }
+
+        ModbusTCPMaster master = new ModbusTCPMaster(getHost(), deadPort);
+        master.setTimeout(500);
+        try (ModBusDataReader reader = new ModBusDataReader(master, 1)) {
+            reader.setPipelineWindow(3);
+            reader.setRetryPolicy(new RetryPolicy().withMaxRetries(1).withBackoff(1, 1, 1.0));
+            reader.setCircuitBreaker(new CircuitBreaker(1, TimeUnit.MINUTES.toMillis(1)));
+            try {
+                reader.getRawRegisterBytes(0, 382);
+                fail("Should have failed");
+            } catch (ModbusException e) {
+                // Expected
+            }
+            // An unreachable device is not a reason to stop pipelining.
+            assertEquals(3, reader.getPipelineWindow());
+            assertEquals(CircuitBreaker.State.OPEN, reader.getCircuitState());
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerStates() {
+        AtomicLong now = new AtomicLong(0);
+        CircuitBreaker breaker = new CircuitBreaker(2, 1000, now::get);
+
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // Only a single trial request
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        // The trial failed: open again for the full duration
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertFalse(breaker.allowRequest());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    public void testBackoff() {
+        RetryPolicy policy = new RetryPolicy().withBackoff(100, 1000, 2.0).withJitter(0);
+        assertEquals(100, policy.getBackoffMs(0));
+        assertEquals(200, policy.getBackoffMs(1));
+        assertEquals(400, policy.getBackoffMs(2));
+        assertEquals(1000, policy.getBackoffMs(5));
+
+        policy.withJitter(0.5);
+        for (int i = 0; i < 100; i++) {
+            long backoff = policy.getBackoffMs(2);
+            assertTrue(backoff >= 200 && backoff <= 400);
+        }
+    }
+}
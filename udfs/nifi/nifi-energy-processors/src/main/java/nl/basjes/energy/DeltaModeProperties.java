@@ -0,0 +1,153 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy;
+
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The properties shared by the processors that can emit only the values that changed.
+ */
+public final class DeltaModeProperties {
+
+    private DeltaModeProperties() {
+    }
+
+    public static final AllowableValue EMIT_FULL  = new AllowableValue("FULL",  "Full",
+        "Every fetch emits all values.");
+    public static final AllowableValue EMIT_DELTA = new AllowableValue("DELTA", "Delta",
+        "Every fetch only emits the values that changed more than their deadband. " +
+        "A value that is no longer available is emitted once as an empty attribute. " +
+        "Every keyframe interval all values are emitted.");
+
+    /**
+     * The attribute that indicates if a FlowFile contains all values (keyframe) or only the changed values (delta).
+     */
+    public static final String EMIT_TYPE_ATTRIBUTE = "emit.type";
+
+    public static final PropertyDescriptor EMIT_MODE = new PropertyDescriptor
+        .Builder().name("EMIT_MODE")
+        .displayName("Emit mode")
+        .description("Emit all values on every fetch or only the values that changed.")
+        .required(true)
+        .allowableValues(EMIT_FULL, EMIT_DELTA)
+        .defaultValue(EMIT_FULL.getValue())
+        .build();
+
+    private static final String DEADBAND_REGEX = "[0-9]+(?:\\.[0-9]+)?";
+
+    public static final PropertyDescriptor DEADBAND = new PropertyDescriptor
+        .Builder().name("DEADBAND")
+        .displayName("Deadband")
+        .description("In delta mode a numerical value is only emitted if it changed more than this " +
+            "since it was last emitted (0 means any change).")
+        .required(true)
+        .defaultValue("0")
+        .addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile(DEADBAND_REGEX)))
+        .build();
+
+    public static final PropertyDescriptor RELATIVE_DEADBAND = new PropertyDescriptor
+        .Builder().name("RELATIVE_DEADBAND")
+        .displayName("Relative deadband (%)")
+        .description("In delta mode a numerical value is only emitted if it changed more than this percentage " +
+            "of the value that was last emitted (0 means any change).")
+        .required(true)
+        .defaultValue("0")
+        .addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile(DEADBAND_REGEX)))
+        .build();
+
+    private static final String POINT_DEADBAND_REGEX = "\\s*([^=,\\s]+)\\s*=\\s*(" + DEADBAND_REGEX + ")\\s*(%?)\\s*";
+    private static final Pattern POINT_DEADBAND = Pattern.compile(POINT_DEADBAND_REGEX);
+
+    public static final PropertyDescriptor POINT_DEADBANDS = new PropertyDescriptor
+        .Builder().name("POINT_DEADBANDS")
+        .displayName("Deadbands per attribute")
+        .description("A comma separated list of attribute=deadband that overrules the deadbands for those attributes. " +
+            "The deadband is an absolute value (like 'SunSpec_101___Watts_W=50') or a percentage " +
+            "(like 'SunSpec_101___Watts_W=2%').")
+        .required(false)
+        .addValidator(StandardValidators.createRegexMatchingValidator(
+            Pattern.compile(POINT_DEADBAND_REGEX + "(?:," + POINT_DEADBAND_REGEX + ")*")))
+        .build();
+
+    public static final PropertyDescriptor KEYFRAME_INTERVAL = new PropertyDescriptor
+        .Builder().name("KEYFRAME_INTERVAL")
+        .displayName("Keyframe interval")
+        .description("In delta mode all values are emitted once every this period so consumers that " +
+            "start later also get all values.")
+        .required(true)
+        .defaultValue("5 min")
+        .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+        .build();
+
+    public static final List<PropertyDescriptor> DESCRIPTORS = Collections.unmodifiableList(Arrays.asList(
+        EMIT_MODE, DEADBAND, RELATIVE_DEADBAND, POINT_DEADBANDS, KEYFRAME_INTERVAL));
+
+    /**
+     * @param context The context with the configured properties
+     * @param attributeName Converts the name of a value into the name of the attribute that is used in the deadbands per attribute.
+     * @return The filter to use or null if all values must be emitted.
+     */
+    public static DeltaFilter createDeltaFilter(ProcessContext context, UnaryOperator<String> attributeName) {
+        if (!EMIT_DELTA.getValue().equals(context.getProperty(EMIT_MODE).getValue())) {
+            return null;
+        }
+
+        DeltaFilter deltaFilter = new DeltaFilter() {
+            @Override
+            protected Deadband findDeadband(String name) {
+                return super.findDeadband(attributeName.apply(name));
+            }
+        };
+
+        deltaFilter
+            .withKeyframeInterval(context.getProperty(KEYFRAME_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS))
+            .withDeadband(
+                Double.parseDouble(context.getProperty(DEADBAND).getValue()),
+                Double.parseDouble(context.getProperty(RELATIVE_DEADBAND).getValue()) / 100.0);
+
+        String pointDeadbands = context.getProperty(POINT_DEADBANDS).getValue();
+        if (pointDeadbands != null) {
+            for (String pointDeadband : pointDeadbands.split(",")) {
+                Matcher matcher = POINT_DEADBAND.matcher(pointDeadband);
+                if (!matcher.matches()) {
+                    continue; // Cannot happen because of the validator
+                }
+                double deadband = Double.parseDouble(matcher.group(2));
+                if (matcher.group(3).isEmpty()) {
+                    deltaFilter.withDeadband(matcher.group(1), deadband, 0);
+                } else {
+                    deltaFilter.withDeadband(matcher.group(1), 0, deadband / 100.0);
+                }
+            }
+        }
+        return deltaFilter;
+    }
+
+}
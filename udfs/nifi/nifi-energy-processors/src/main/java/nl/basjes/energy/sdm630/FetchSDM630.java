@@ -19,6 +19,9 @@ package nl.basjes.energy.sdm630;
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.facade.ModbusSerialMaster;
 import com.ghgande.j2mod.modbus.util.SerialParameters;
+import nl.basjes.energy.DeltaFilter;
+import nl.basjes.energy.DeltaModeProperties;
+import nl.basjes.energy.TickScheduler.Tick;
 import nl.basjes.energy.sdm630.SDM630Reader.SDM630Values;
 import nl.basjes.energy.sdm630.SDM630Reader.SDM630Values.Value;
 import org.apache.nifi.annotation.behavior.InputRequirement;
@@ -49,6 +52,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static com.ghgande.j2mod.modbus.Modbus.SERIAL_ENCODING_ASCII;
 import static com.ghgande.j2mod.modbus.Modbus.SERIAL_ENCODING_RTU;
@@ -234,6 +238,7 @@ public class FetchSDM630 extends AbstractProcessor {
         descriptors.add(UNIT_ID);
 
         descriptors.add(FETCH_INTERVAL);
+        descriptors.addAll(DeltaModeProperties.DESCRIPTORS);
 
         this.descriptors = Collections.unmodifiableList(descriptors);
 
@@ -254,6 +259,7 @@ public class FetchSDM630 extends AbstractProcessor {
 
     private SDM630Reader fetcher = null;
     private long fetchInterval = 1000;
+    private DeltaFilter deltaFilter = null; // null means all values are emitted
     private int unitId;
 
     @OnScheduled
@@ -272,6 +278,8 @@ public class FetchSDM630 extends AbstractProcessor {
 //            List<Integer> unitIds   = context.getProperty(UNIT_ID).getValue().split(",");
 
             fetchInterval = context.getProperty(FETCH_INTERVAL).asLong();
+            // The values are filtered using the attribute names.
+            deltaFilter = DeltaModeProperties.createDeltaFilter(context, name -> name);
 
             SerialParameters serialParameters = new SerialParameters();
             serialParameters.setPortName(portName);
@@ -297,6 +305,7 @@ public class FetchSDM630 extends AbstractProcessor {
             fetcher.disconnect();
             fetcher = null;
         }
+        deltaFilter = null;
     }
 
     public static final String ATTRIBUTE_PREFIX = "SDM630|";
@@ -314,6 +323,13 @@ public class FetchSDM630 extends AbstractProcessor {
 
     private boolean first = true;
 
+    private void reportLateness(Tick tick) {
+        if (tick != null && (tick.getSkipped() > 0 || tick.getLatenessNanos() > TimeUnit.MILLISECONDS.toNanos(fetchInterval) / 10)) {
+            getLogger().warn("The fetch was scheduled at {} but started {} ms late ({} fetches were skipped).",
+                new Object[]{tick.getTimestamp(), tick.getLatenessMs(), tick.getSkipped()});
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
         if (fetcher == null) {
@@ -338,20 +354,47 @@ public class FetchSDM630 extends AbstractProcessor {
             }
 
             timestamp = values.getTimestamp();
+            reportLateness(fetcher.getLastTick());
         } catch (ModbusException e) {
             return; // FIXME: Handle this Oops.  For now ignore
         }
 
+        final Map<String, Value> rawResults = values.toMap();
+        Map<String, Object> attributeValues = new LinkedHashMap<>();
+        for (Map.Entry<String, Value> entry : rawResults.entrySet()) {
+            Value v = entry.getValue();
+            attributeValues.put(cleanKey(ATTRIBUTE_PREFIX + entry.getKey() + (v.unit.isEmpty()?"":"_"+v.unit)), v.value);
+        }
+
+        if (deltaFilter != null) {
+            // All values are read in a single request so all of them are candidates.
+            Map<String, Object> changedValues = deltaFilter.filter(timestamp, attributeValues, null);
+            if (changedValues.isEmpty() && !deltaFilter.isKeyframe()) {
+                return; // Nothing changed enough to emit anything.
+            }
+            attributeValues = changedValues;
+        }
+
         Map<String, String> results = new LinkedHashMap<>();
         FlowFile flowFile = session.create();
 
         session.putAttribute(flowFile, "filename", "SDM630_" + unitId);
 
+        if (deltaFilter != null) {
+            flowFile = session.putAttribute(flowFile, DeltaModeProperties.EMIT_TYPE_ATTRIBUTE, deltaFilter.isKeyframe() ? "keyframe" : "delta");
+        }
+
         String timeKey = cleanKey(ATTRIBUTE_PREFIX + "TimeStamp");
         results.put(timeKey, String.valueOf(timestamp));
 
-        final Map<String, Value> rawResults = values.toMap();
-        rawResults.forEach((k, v) -> results.put(cleanKey(ATTRIBUTE_PREFIX + k + (v.unit.isEmpty()?"":"_"+v.unit)), v.value.toString()));
+        for (Map.Entry<String, Object> entry : attributeValues.entrySet()) {
+            if (entry.getValue() != null) {
+                results.put(entry.getKey(), entry.getValue().toString());
+            } else if (deltaFilter != null) {
+                // A value that is no longer available is emitted as an empty attribute.
+                results.put(entry.getKey(), "");
+            }
+        }
 
         flowFile = session.putAllAttributes(flowFile, results);
 
@@ -18,6 +18,10 @@ package nl.basjes.energy.sunspec;
 
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import nl.basjes.energy.DeltaFilter;
+import nl.basjes.energy.DeltaModeProperties;
+import nl.basjes.energy.TickScheduler.Tick;
+import nl.basjes.modbus.DeviceSettingsStore;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.PrimaryNodeOnly;
 import org.apache.nifi.annotation.behavior.TriggerSerially;
@@ -28,23 +32,38 @@ import org.apache.nifi.annotation.lifecycle.OnRemoved;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
-
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
 import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
@@ -58,7 +77,7 @@ import static org.apache.nifi.annotation.behavior.InputRequirement.Requirement.I
 @InputRequirement(INPUT_FORBIDDEN) // ONLY read data from the configured device
 //@ReadsAttributes({@ReadsAttribute(attribute = "", description = "")})
 //@WritesAttributes({@WritesAttribute(attribute = "", description = "")})
-public class FetchSunSpec extends AbstractProcessor {
+public class FetchSunSpec extends AbstractSessionFactoryProcessor {
 
     public static final PropertyDescriptor HOSTNAME = new PropertyDescriptor
         .Builder().name("HOSTNAME")
@@ -105,6 +124,64 @@ public class FetchSunSpec extends AbstractProcessor {
         .defaultValue("1000")
         .build();
 
+    public static final PropertyDescriptor LAYOUT_CACHE_FILE = new PropertyDescriptor
+        .Builder().name("LAYOUT_CACHE_FILE")
+        .displayName("Device layout cache file")
+        .description("A local file in which the locations of the SunSpec models of the device are remembered. " +
+            "When the processor is started again only model 1 is read to validate the remembered locations " +
+            "instead of discovering all models. Leave empty to always discover all models.")
+        .required(false)
+        .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+        .build();
+
+    public static final AllowableValue OUTPUT_ATTRIBUTES = new AllowableValue("ATTRIBUTES", "Attributes",
+        "Every fetch produces a FlowFile with all values as attributes.");
+    public static final AllowableValue OUTPUT_RECORDS = new AllowableValue("RECORDS", "Records",
+        "Every fetch produces a record with typed fields in the content of a FlowFile. " +
+        "The records of several fetches are combined in a single FlowFile. " +
+        "The Emit mode is not used: every record contains all values.");
+
+    public static final PropertyDescriptor OUTPUT = new PropertyDescriptor
+        .Builder().name("OUTPUT")
+        .displayName("Output")
+        .description("Put the values in the attributes or as records in the content of the FlowFiles.")
+        .required(true)
+        .allowableValues(OUTPUT_ATTRIBUTES, OUTPUT_RECORDS)
+        .defaultValue(OUTPUT_ATTRIBUTES.getValue())
+        .build();
+
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor
+        .Builder().name("RECORD_WRITER")
+        .displayName("Record Writer")
+        .description("The Record Writer used to write the records. The schema has a field for the timestamp " +
+            "and a field for each value of the selected models (with the same name as the attribute).")
+        .identifiesControllerService(RecordSetWriterFactory.class)
+        .required(true)
+        .dependsOn(OUTPUT, OUTPUT_RECORDS)
+        .build();
+
+    public static final PropertyDescriptor RECORDS_PER_FLOWFILE = new PropertyDescriptor
+        .Builder().name("RECORDS_PER_FLOWFILE")
+        .displayName("Records per FlowFile")
+        .description("The maximum number of fetches that are combined into a single FlowFile.")
+        .required(true)
+        .defaultValue("60")
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .dependsOn(OUTPUT, OUTPUT_RECORDS)
+        .build();
+
+    public static final PropertyDescriptor MAX_BATCH_DURATION = new PropertyDescriptor
+        .Builder().name("MAX_BATCH_DURATION")
+        .displayName("Max batch duration")
+        .description("The maximum period of fetches that are combined into a single FlowFile. " +
+            "This is also checked when a fetch fails. " +
+            "The records that have not been written yet are written when the processor is stopped.")
+        .required(true)
+        .defaultValue("1 min")
+        .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+        .dependsOn(OUTPUT, OUTPUT_RECORDS)
+        .build();
+
     public static final Relationship SUCCESS = new Relationship.Builder()
         .name("success")
         .description("Here we route all FlowFiles that have been analyzed.")
@@ -112,7 +189,7 @@ public class FetchSunSpec extends AbstractProcessor {
 
     private List<PropertyDescriptor> descriptors;
 
-    private Map<String, ModelParser> modelProperties;
+    private Map<String, ModelMetadata> modelProperties;
 
     private Set<Relationship> relationships;
 
@@ -126,9 +203,15 @@ public class FetchSunSpec extends AbstractProcessor {
         descriptors.add(FETCH_INTERVAL);
         descriptors.add(SUNSPEC_REGISTER_BASE);
         descriptors.add(SUNSPEC_UNITID);
+        descriptors.add(LAYOUT_CACHE_FILE);
+        descriptors.add(OUTPUT);
+        descriptors.add(RECORD_WRITER);
+        descriptors.add(RECORDS_PER_FLOWFILE);
+        descriptors.add(MAX_BATCH_DURATION);
+        descriptors.addAll(DeltaModeProperties.DESCRIPTORS);
 
-        for (Map.Entry<Integer, ModelParser> entry : ParseSunSpec.modelParsers().entrySet()) {
-            ModelParser m = entry.getValue();
+        // Only the metadata is needed here: the parsers of the models are loaded when they are used.
+        for (ModelMetadata m : ParseSunSpec.modelMetadata()) {
 
             String description = "Model " + m.getId();
             if (m.getLabel() != null) { description += " | " + m.getLabel(); }
@@ -180,9 +263,29 @@ public class FetchSunSpec extends AbstractProcessor {
         return descriptors;
     }
 
+    // All processors that use the same cache file must share the same store.
+    private static final ConcurrentMap<String, DeviceSettingsStore> LAYOUT_CACHES = new ConcurrentHashMap<>();
+
+    // All processors share the profiles of the known types of devices.
+    private static final DeviceProfiles DEVICE_PROFILES = new DeviceProfiles();
+
     private SunSpecFetcher fetcher = null;
     private SunSpecModbusDataReader dataReader = null;
+    private DeviceSettingsStore layoutCache = null;
     private long fetchInterval = 1000;
+    private DeltaFilter deltaFilter = null; // null means all values are emitted
+    private String transitUri = null;
+
+    // Record output
+    private RecordSetWriterFactory recordWriterFactory = null; // null means the values are put in the attributes
+    private int                    recordsPerFlowFile  = 60;
+    private long                   maxBatchDuration    = 60000;
+    private SunSpecRecordSchema    recordSchema        = null;
+    private final List<Record>     records             = new ArrayList<>();
+    private long                   firstRecordTimestamp = 0;
+    private String                 recordsFilename     = null;
+    // Needed to write the pending records when the processor is stopped.
+    private volatile ProcessSessionFactory sessionFactory = null;
 
     @OnScheduled
     public void onScheduled(final ProcessContext context) throws ModbusException {
@@ -192,23 +295,47 @@ public class FetchSunSpec extends AbstractProcessor {
             fetchInterval = context.getProperty(FETCH_INTERVAL).asLong();
             Integer registerBase = context.getProperty(SUNSPEC_REGISTER_BASE).asInteger();
             Integer unitId = context.getProperty(SUNSPEC_UNITID).asInteger();
+            String layoutCacheFile = context.getProperty(LAYOUT_CACHE_FILE).getValue();
+            deltaFilter = DeltaModeProperties.createDeltaFilter(context, this::attributeName);
+            transitUri = "modbus-tcp://" + hostname + ':' + port;
+
+            recordWriterFactory = null;
+            if (OUTPUT_RECORDS.getValue().equals(context.getProperty(OUTPUT).getValue())) {
+                recordWriterFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+                recordsPerFlowFile  = context.getProperty(RECORDS_PER_FLOWFILE).asInteger();
+                maxBatchDuration    = context.getProperty(MAX_BATCH_DURATION).asTimePeriod(TimeUnit.MILLISECONDS);
+            } else if (!records.isEmpty()) {
+                getLogger().warn("Discarding the {} records that could not be written when the processor was stopped.",
+                    new Object[]{records.size()});
+                records.clear();
+                recordSchema = null;
+            }
+
+            layoutCache = null;
+            if (layoutCacheFile != null) {
+                layoutCache = LAYOUT_CACHES.computeIfAbsent(
+                    new File(layoutCacheFile).getAbsolutePath(),
+                    file -> new DeviceSettingsStore(new File(file)));
+            }
 
             dataReader = new SunSpecModbusDataReader(
                 new ModbusTCPMaster(hostname, port),
-                registerBase, unitId
+                registerBase, unitId,
+                layoutCache, hostname + ':' + port,
+                DEVICE_PROFILES
                 );
 
             fetcher = new SunSpecFetcher(dataReader);
 
             for (PropertyDescriptor propertyDescriptor: descriptors) {
+                ModelMetadata modelMetadata = modelProperties.get(propertyDescriptor.getName());
+                if (modelMetadata == null) {
+                    continue; // Not a model property (optional properties may not have a value)
+                }
                 if (context.getProperty(propertyDescriptor).asBoolean()) {
-                    String name = propertyDescriptor.getName();
-                    ModelParser modelParser = modelProperties.get(name);
-                    if (modelParser != null) { // Should always pass
-                        int modelId = modelParser.getId();
-                        if (dataReader.getModelLocations().get(modelId) != null) {
-                            fetcher.useModel(modelId);
-                        }
+                    int modelId = modelMetadata.getId();
+                    if (dataReader.getModelLocations().get(modelId) != null) {
+                        fetcher.useModel(modelId);
                     }
                 }
             }
@@ -222,34 +349,180 @@ public class FetchSunSpec extends AbstractProcessor {
         if (fetcher != null) {
             fetcher = null;
         }
+        deltaFilter = null;
         if (dataReader != null) {
             dataReader.disconnect();
             dataReader = null;
         }
+        if (layoutCache != null) {
+            // Write the learned layouts now instead of waiting for the next batch.
+            layoutCache.flush();
+            layoutCache = null;
+        }
+    }
+
+    // Only when stopped: no onTrigger is running anymore so the records can be written safely.
+    @OnStopped
+    public void writePendingRecords() {
+        flushRecords();
+        if (records.isEmpty()) {
+            recordSchema = null;
+        }
+        recordWriterFactory = null;
     }
 
     public static final String ATTRIBUTE_PREFIX = "SunSpec|";
 
+    private static final String TIME_KEY = PointKey.clean(ATTRIBUTE_PREFIX + "0|-|TimeStamp|");
+
     public String cleanKey(String key) {
-        return key
-            .replace("%", "Pct")
-            .replace("%", "Pct")
-            .replace("%", "Pct")
-            .replace("()", "")
-            .replace("/", "_")
-            .replaceAll("[^a-zA-Z0-9_]", "_");
+        return PointKey.clean(key);
+    }
+
+    // The keys produced by the generated parsers have been cleaned only once.
+    private String attributeName(String key) {
+        PointKey pointKey = PointKey.forName(key);
+        if (pointKey != null) {
+            return pointKey.getCleanedName();
+        }
+        return cleanKey(ATTRIBUTE_PREFIX + key);
     }
 
 
     private boolean first = true;
 
+    private void reportLateness(Tick tick) {
+        if (tick != null && (tick.getSkipped() > 0 || tick.getLatenessNanos() > TimeUnit.MILLISECONDS.toNanos(fetchInterval) / 10)) {
+            getLogger().warn("The fetch was scheduled at {} but started {} ms late ({} fetches were skipped).",
+                new Object[]{tick.getTimestamp(), tick.getLatenessMs(), tick.getSkipped()});
+        }
+    }
+
+    private String getFilename() {
+        try {
+            return fetcher.model_1().getManufacturer() + " " + fetcher.model_1().getModel() + " " + fetcher.model_1().getSerialNumber();
+        } catch (MissingMandatoryFieldException | ModbusException e) {
+            return "SunSpec";
+        }
+    }
+
+    private void addRecord(final ProcessSession session, long timestamp) {
+        final List<PointKey> pointKeys;
+        try {
+            pointKeys = fetcher.getPointKeys();
+        } catch (ModbusException e) {
+            return; // FIXME: Handle this Oops.  For now ignore
+        }
+
+        // All records in a FlowFile must have the same schema.
+        if (recordSchema == null || !recordSchema.getPointKeys().equals(pointKeys)) {
+            writeRecords(session);
+            recordSchema = new SunSpecRecordSchema(TIME_KEY, pointKeys);
+        }
+
+        if (records.isEmpty()) {
+            firstRecordTimestamp = timestamp;
+            recordsFilename      = getFilename();
+        }
+        records.add(recordSchema.toRecord(timestamp, fetcher.toHashMap()));
+
+        if (records.size() >= recordsPerFlowFile ||
+            // The next record would be beyond the max batch duration
+            timestamp + fetchInterval - firstRecordTimestamp >= maxBatchDuration) {
+            writeRecords(session);
+        }
+    }
+
+    /**
+     * Write the records that were fetched but not written yet in a session of their own.
+     * The records are only discarded after the session was committed; if that fails they are
+     * written when the processor is started again.
+     */
+    private void flushRecords() {
+        if (records.isEmpty() || recordWriterFactory == null || sessionFactory == null) {
+            return;
+        }
+        final int pending = records.size();
+        final ProcessSession session = sessionFactory.createSession();
+        try {
+            writeRecords(session, false);
+            session.commitAsync(
+                records::clear,
+                t -> getLogger().error("Unable to write the {} pending records", new Object[]{pending, t}));
+        } catch (final Throwable t) {
+            session.rollback(true);
+            getLogger().error("Unable to write the {} pending records", new Object[]{pending, t});
+        }
+    }
+
+    // The batch is also written if fetching fails for a long time.
+    private void writeExpiredRecords(final ProcessSession session) {
+        if (!records.isEmpty() && System.currentTimeMillis() - firstRecordTimestamp >= maxBatchDuration) {
+            writeRecords(session);
+        }
+    }
+
+    private void writeRecords(final ProcessSession session) {
+        writeRecords(session, true);
+    }
+
+    /**
+     * @param clear Discard the records after they have been written to the session.
+     */
+    private void writeRecords(final ProcessSession session, boolean clear) {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        FlowFile flowFile = session.create();
+        final Map<String, String> attributes = new HashMap<>();
+        try (OutputStream out = session.write(flowFile);
+             RecordSetWriter writer = recordWriterFactory.createWriter(getLogger(), recordSchema.getSchema(), out, flowFile)) {
+            writer.beginRecordSet();
+            for (Record record : records) {
+                writer.write(record);
+            }
+            WriteResult writeResult = writer.finishRecordSet();
+            attributes.putAll(writeResult.getAttributes());
+            attributes.put("record.count", String.valueOf(writeResult.getRecordCount()));
+            attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+        } catch (IOException | SchemaNotFoundException e) {
+            session.remove(flowFile);
+            throw new ProcessException("Unable to write the records", e);
+        }
+        if (clear) {
+            records.clear();
+        }
+
+        attributes.put(CoreAttributes.FILENAME.key(), recordsFilename);
+        flowFile = session.putAllAttributes(flowFile, attributes);
+        session.getProvenanceReporter().receive(flowFile, transitUri);
+        session.transfer(flowFile, SUCCESS);
+    }
+
     @Override
+    public final void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+        this.sessionFactory = sessionFactory;
+        final ProcessSession session = sessionFactory.createSession();
+        try {
+            onTrigger(context, session);
+            session.commitAsync();
+        } catch (final Throwable t) {
+            session.rollback(true);
+            throw t;
+        }
+    }
+
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
         if (fetcher == null || dataReader == null) {
             System.err.println("Fatal error in onTrigger: The fetcher is null...");
             return;
         }
 
+        if (recordWriterFactory != null) {
+            writeExpiredRecords(session);
+        }
+
         long timestamp;
         try {
             fetcher.refresh(fetchInterval);
@@ -260,24 +533,47 @@ public class FetchSunSpec extends AbstractProcessor {
             }
 
             timestamp = fetcher.getCurrentDataTimestamp();
+            reportLateness(fetcher.getLastTick());
         } catch (ModbusException e) {
             return; // FIXME: Handle this Oops.  For now ignore
         }
 
+        if (recordWriterFactory != null) {
+            addRecord(session, timestamp);
+            return;
+        }
+
+        final Map<String, Object> rawResults;
+        if (deltaFilter == null) {
+            rawResults = fetcher.toHashMap();
+        } else {
+            try {
+                rawResults = fetcher.toDeltaHashMap(deltaFilter);
+            } catch (ModbusException e) {
+                return; // FIXME: Handle this Oops.  For now ignore
+            }
+            if (rawResults.isEmpty() && !deltaFilter.isKeyframe()) {
+                return; // Nothing changed enough to emit anything.
+            }
+        }
+
         Map<String, String> results = new LinkedHashMap<>();
         FlowFile flowFile = session.create();
 
         try {
-            session.putAttribute(flowFile, "filename", fetcher.model_1.getManufacturer() + " " + fetcher.model_1.getModel() + " " + fetcher.model_1.getSerialNumber());
+            session.putAttribute(flowFile, "filename", fetcher.model_1().getManufacturer() + " " + fetcher.model_1().getModel() + " " + fetcher.model_1().getSerialNumber());
         } catch (MissingMandatoryFieldException | ModbusException e) {
             // FIXME: Handle this Oops. For now ignore
         }
 
-        String timeKey = cleanKey(ATTRIBUTE_PREFIX + "0|-|TimeStamp|");
-        results.put(timeKey, String.valueOf(timestamp));
+        if (deltaFilter != null) {
+            flowFile = session.putAttribute(flowFile, DeltaModeProperties.EMIT_TYPE_ATTRIBUTE, deltaFilter.isKeyframe() ? "keyframe" : "delta");
+        }
+
+        results.put(TIME_KEY, String.valueOf(timestamp));
 
-        final Map<String, Object> rawResults = fetcher.toHashMap();
-        rawResults.forEach((k, v) -> results.put(cleanKey(ATTRIBUTE_PREFIX + k), v.toString()));
+        // In delta mode a value that is no longer available is emitted as an empty attribute.
+        rawResults.forEach((k, v) -> results.put(attributeName(k), v == null ? "" : v.toString()));
 
         flowFile = session.putAllAttributes(flowFile, results);
 
@@ -301,7 +597,7 @@ public class FetchSunSpec extends AbstractProcessor {
                 }
                 firstEntry=false;
 
-                String k = cleanKey(ATTRIBUTE_PREFIX + entry.getKey());
+                String k = attributeName(entry.getKey());
                 Object value = entry.getValue();
 
                 if (value instanceof Short || value instanceof Integer || value instanceof Long) {
@@ -319,7 +615,7 @@ public class FetchSunSpec extends AbstractProcessor {
 
             }
 
-            sb.append(" ${").append(timeKey).append("}000000");
+            sb.append(" ${").append(TIME_KEY).append("}000000");
 
             sb.append("\n========================================\n");
 
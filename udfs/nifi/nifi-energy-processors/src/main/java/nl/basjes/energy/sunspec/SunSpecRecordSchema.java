@@ -0,0 +1,130 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The record schema of the values of a set of SunSpec models.
+ * Every point is a typed (nullable) field with the same name as the attribute that holds the same value.
+ */
+public class SunSpecRecordSchema {
+
+    private final List<PointKey> pointKeys;
+    private final String         timestampField;
+    private final RecordSchema   schema;
+
+    /**
+     * @param timestampField The name of the field that holds the timestamp (epoch milliseconds) of the values.
+     * @param pointKeys      The keys of all values (in the order of the fields).
+     */
+    public SunSpecRecordSchema(String timestampField, List<PointKey> pointKeys) {
+        this.pointKeys      = new ArrayList<>(pointKeys);
+        this.timestampField = timestampField;
+
+        List<RecordField> fields = new ArrayList<>(pointKeys.size() + 1);
+        fields.add(new RecordField(timestampField, RecordFieldType.LONG.getDataType(), false));
+        for (PointKey pointKey : pointKeys) {
+            fields.add(new RecordField(pointKey.getCleanedName(), dataType(pointKey.getValueType()), true));
+        }
+        schema = new SimpleRecordSchema(fields);
+    }
+
+    public List<PointKey> getPointKeys() {
+        return pointKeys;
+    }
+
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @param timestamp The timestamp of the values
+     * @param values    The values as produced by toHashMap
+     * @return The record with all values converted to the types of the schema.
+     */
+    public Record toRecord(long timestamp, Map<String, Object> values) {
+        Map<String, Object> fieldValues = new HashMap<>(pointKeys.size() * 2);
+        fieldValues.put(timestampField, timestamp);
+        for (PointKey pointKey : pointKeys) {
+            Object value = values.get(pointKey.getName());
+            if (value != null) {
+                fieldValues.put(pointKey.getCleanedName(), fieldValue(value));
+            }
+        }
+        return new MapRecord(schema, fieldValues);
+    }
+
+    static DataType dataType(Class<?> valueType) {
+        if (valueType == Short.class) {
+            return RecordFieldType.SHORT.getDataType();
+        }
+        if (valueType == Integer.class) {
+            return RecordFieldType.INT.getDataType();
+        }
+        if (valueType == Long.class) {
+            return RecordFieldType.LONG.getDataType();
+        }
+        if (valueType == Float.class) {
+            return RecordFieldType.FLOAT.getDataType();
+        }
+        if (valueType == Double.class) {
+            return RecordFieldType.DOUBLE.getDataType();
+        }
+        if (Collection.class.isAssignableFrom(valueType)) {
+            // An EnumSet: the names of all the enum values that are set.
+            return RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.STRING.getDataType());
+        }
+        // String, InetAddress and enums
+        return RecordFieldType.STRING.getDataType();
+    }
+
+    static Object fieldValue(Object value) {
+        if (value instanceof Number || value instanceof String) {
+            return value;
+        }
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        if (value instanceof InetAddress) {
+            return ((InetAddress) value).getHostAddress();
+        }
+        if (value instanceof Collection) {
+            List<String> names = new ArrayList<>();
+            for (Object element : (Collection<?>) value) {
+                names.add(String.valueOf(fieldValue(element)));
+            }
+            return names.toArray();
+        }
+        return value.toString();
+    }
+}
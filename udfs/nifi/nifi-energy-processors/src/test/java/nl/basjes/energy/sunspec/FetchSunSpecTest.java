@@ -16,7 +16,9 @@
  */
 package nl.basjes.energy.sunspec;
 
+import nl.basjes.energy.DeltaModeProperties;
 import nl.basjes.energy.RunProcessImageAsModbusTCPSlave;
+import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -27,15 +29,22 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static nl.basjes.energy.sunspec.FetchSunSpec.FETCH_INTERVAL;
 import static nl.basjes.energy.sunspec.FetchSunSpec.HOSTNAME;
+import static nl.basjes.energy.sunspec.FetchSunSpec.OUTPUT;
+import static nl.basjes.energy.sunspec.FetchSunSpec.OUTPUT_RECORDS;
 import static nl.basjes.energy.sunspec.FetchSunSpec.PORT;
+import static nl.basjes.energy.sunspec.FetchSunSpec.RECORDS_PER_FLOWFILE;
+import static nl.basjes.energy.sunspec.FetchSunSpec.RECORD_WRITER;
 import static nl.basjes.energy.sunspec.FetchSunSpec.SUCCESS;
 import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_STARTBASE;
 import static nl.basjes.energy.sunspec.SunSpecModbusDataReader.SUNSPEC_STANDARD_UNITID;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 public class FetchSunSpecTest extends RunProcessImageAsModbusTCPSlave {
@@ -79,6 +88,112 @@ public class FetchSunSpecTest extends RunProcessImageAsModbusTCPSlave {
 
     }
 
+    @Test
+    public void testDeltaMode() {
+        runner.setProperty(HOSTNAME, getHost());
+        runner.setProperty(PORT,     String.valueOf(getTestport()));
+        runner.setProperty(FETCH_INTERVAL, "500");
+        runner.setProperty(DeltaModeProperties.EMIT_MODE,         DeltaModeProperties.EMIT_DELTA.getValue());
+        runner.setProperty(DeltaModeProperties.POINT_DEADBANDS,   "SunSpec_101___Watts_W=50, SunSpec_101___Amps_A=2%");
+        runner.setProperty(DeltaModeProperties.KEYFRAME_INTERVAL, "1 hour");
+
+        runner.run(3);
+        runner.assertQueueEmpty();
+
+        // The test device does not change so only the initial keyframe is emitted.
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(SUCCESS);
+        assertEquals("1 keyframe", 1, results.size());
+        results.get(0).assertAttributeEquals(DeltaModeProperties.EMIT_TYPE_ATTRIBUTE, "keyframe");
+        results.get(0).assertAttributeEquals("SunSpec_1___Manufacturer_",  "SunSpecText");
+    }
+
+    @Test
+    public void testRecords() throws InitializationException {
+        runner.setProperty(HOSTNAME, getHost());
+        runner.setProperty(PORT,     String.valueOf(getTestport()));
+        runner.setProperty(FETCH_INTERVAL, "500");
+        runner.setProperty("SunSpec Model 101", "true");
+
+        TestRecordWriter recordWriter = new TestRecordWriter();
+        runner.addControllerService("recordWriter", recordWriter);
+        runner.enableControllerService(recordWriter);
+
+        runner.setProperty(OUTPUT,               OUTPUT_RECORDS.getValue());
+        runner.setProperty(RECORD_WRITER,        "recordWriter");
+        runner.setProperty(RECORDS_PER_FLOWFILE, "3");
+
+        runner.run(7);
+        runner.assertQueueEmpty();
+
+        // The last record is written when the processor is stopped.
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(SUCCESS);
+        assertEquals(3, results.size());
+
+        int[] recordCounts = {3, 3, 1};
+        for (int i = 0; i < results.size(); i++) {
+            MockFlowFile flowFile = results.get(i);
+            flowFile.assertAttributeEquals("record.count", String.valueOf(recordCounts[i]));
+            flowFile.assertAttributeEquals("filename", "SunSpecText TestInverter sn-123456789");
+            // The values are in the content, not in the attributes.
+            flowFile.assertAttributeNotExists("SunSpec_101___Watts_W");
+
+            String[] lines = flowFile.getContent().split("\n");
+            assertEquals(1 + recordCounts[i], lines.length);
+
+            List<String> fields = Arrays.asList(lines[0].split("\t"));
+            assertEquals("SunSpec_0___TimeStamp_:LONG", fields.get(0));
+            assertTrue(fields.contains("SunSpec_1___Manufacturer_:STRING"));
+            assertTrue(fields.contains("SunSpec_101___Watts_W:DOUBLE"));
+            assertTrue(fields.contains("SunSpec_101___OperatingState_:STRING"));
+            assertTrue(fields.contains("SunSpec_101___Event1_:ARRAY[STRING]"));
+            for (int line = 1; line < lines.length; line++) {
+                List<String> values = Arrays.asList(lines[line].split("\t"));
+                assertEquals(fields.size(), values.size());
+                assertEquals("SunSpecText", values.get(fields.indexOf("SunSpec_1___Manufacturer_:STRING")));
+                assertFalse(values.get(fields.indexOf("SunSpec_101___Watts_W:DOUBLE")).isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void testRecordsKeptAfterFailedWrite() throws InitializationException {
+        runner.setProperty(HOSTNAME, getHost());
+        runner.setProperty(PORT,     String.valueOf(getTestport()));
+        runner.setProperty(FETCH_INTERVAL, "500");
+
+        TestRecordWriter recordWriter = new TestRecordWriter();
+        runner.addControllerService("recordWriter", recordWriter);
+        runner.enableControllerService(recordWriter);
+
+        runner.setProperty(OUTPUT,               OUTPUT_RECORDS.getValue());
+        runner.setProperty(RECORD_WRITER,        "recordWriter");
+        runner.setProperty(RECORDS_PER_FLOWFILE, "10");
+
+        // The pending records cannot be written when the processor is stopped ...
+        recordWriter.setFailing(true);
+        runner.run(2);
+        assertEquals(0, runner.getFlowFilesForRelationship(SUCCESS).size());
+
+        // ... so they are written together with the next records.
+        recordWriter.setFailing(false);
+        runner.run(1);
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(SUCCESS);
+        assertEquals(1, results.size());
+        results.get(0).assertAttributeEquals("record.count", "3");
+        results.get(0).assertAttributeEquals("filename", "SunSpecText TestInverter sn-123456789");
+    }
+
+    @Test
+    public void testInvalidDeadbands() {
+        runner.setProperty(HOSTNAME, getHost());
+        runner.setProperty(DeltaModeProperties.POINT_DEADBANDS, "SunSpec_101___Watts_W");
+        runner.assertNotValid();
+        runner.setProperty(DeltaModeProperties.POINT_DEADBANDS, "SunSpec_101___Watts_W=-1");
+        runner.assertNotValid();
+        runner.setProperty(DeltaModeProperties.POINT_DEADBANDS, "SunSpec_101___Watts_W=1.5");
+        runner.assertValid();
+    }
+
     @Ignore
     @Test
     public void runSlaveForEver() throws InterruptedException {
@@ -0,0 +1,95 @@
+/*
+ * Energy readers and parsers toolkit
+ * Copyright (C) 2019-2023 Niels Basjes
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-NoDerivatives 4.0 International License.
+ *
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://creativecommons.org/licenses/by-nc-nd/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+
+package nl.basjes.energy.sunspec;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.AbstractRecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A trivial RecordSetWriter for testing: the first line has "name:TYPE" of all fields,
+ * then a line per record with the values (separated by a tab).
+ */
+public class TestRecordWriter extends AbstractControllerService implements RecordSetWriterFactory {
+
+    // When set no writer can be created.
+    private volatile boolean failing = false;
+
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    @Override
+    public RecordSchema getSchema(Map<String, String> variables, RecordSchema readSchema) {
+        return readSchema;
+    }
+
+    @Override
+    public RecordSetWriter createWriter(ComponentLog logger, RecordSchema schema, OutputStream out, Map<String, String> variables)
+        throws IOException {
+        if (failing) {
+            throw new IOException("Simulated write failure");
+        }
+        return new AbstractRecordSetWriter(out) {
+            @Override
+            protected void onBeginRecordSet() throws IOException {
+                writeLine(schema.getFields().stream()
+                    .map(field -> field.getFieldName() + ':' + field.getDataType())
+                    .collect(Collectors.joining("\t")));
+            }
+
+            @Override
+            protected Map<String, String> writeRecord(Record record) throws IOException {
+                StringBuilder sb = new StringBuilder();
+                for (RecordField field : schema.getFields()) {
+                    if (sb.length() > 0) {
+                        sb.append('\t');
+                    }
+                    Object value = record.getValue(field);
+                    sb.append(value instanceof Object[] ? Arrays.toString((Object[]) value) : String.valueOf(value));
+                }
+                writeLine(sb.toString());
+                return Collections.emptyMap();
+            }
+
+            private void writeLine(String line) throws IOException {
+                getOutputStream().write((line + '\n').getBytes(UTF_8));
+            }
+
+            @Override
+            public String getMimeType() {
+                return "text/plain";
+            }
+        };
+    }
+}